@@ -0,0 +1,102 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// In-process answer to "which rooms are free for [checkIn, checkOut)", read from an
+// OccupancyBitmap: a room is free when none of its bits for those nights is set. The bitmap
+// may reach back before the horizon (for popularity), but searches starting before the
+// horizon, or made after the index has gone stale, must be answered by the database.
+public class AvailabilityIndex implements ReservationListener {
+
+    private final Map<String, Room> rooms = new LinkedHashMap<>();
+    private final OccupancyBitmap occupancy;
+    private final long horizon;
+    private final long createdAt;
+    private final long maxAgeMillis;
+    private volatile boolean stale = false;
+
+    public AvailabilityIndex(Collection<Room> rooms, Collection<Reservation> reservations, LocalDate horizon, long maxAgeMillis) {
+        this(rooms, OccupancyBitmap.create(codes(rooms), horizon, OccupancyBitmap.DEFAULT_DAYS), horizon, maxAgeMillis);
+        occupancy.addAll(reservations);
+    }
+
+    // Takes over a bitmap already holding every stay ending after its origin
+    public AvailabilityIndex(Collection<Room> rooms, OccupancyBitmap occupancy, LocalDate horizon, long maxAgeMillis) {
+        if (horizon.isBefore(occupancy.getOrigin()))
+            throw new IllegalArgumentException("Horizon " + horizon + " is before the occupancy origin " + occupancy.getOrigin());
+        for (Room room : rooms)
+            this.rooms.put(room.getCode(), room);
+        this.occupancy = occupancy;
+        this.horizon = horizon.toEpochDay();
+        this.createdAt = System.currentTimeMillis();
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public boolean covers(LocalDate checkIn) {
+        return !isStale()
+                && System.currentTimeMillis() - createdAt < maxAgeMillis
+                && checkIn.toEpochDay() >= horizon;
+    }
+
+    public boolean covers(LocalDate checkIn, LocalDate checkOut) {
+        return covers(checkIn) && occupancy.covers(checkIn, checkOut);
+    }
+
+    public boolean isStale() {
+        return stale || occupancy.isStale();
+    }
+
+    public void invalidate() {
+        stale = true;
+    }
+
+    public OccupancyBitmap getOccupancy() {
+        return occupancy;
+    }
+
+    public Room getRoom(String roomCode) {
+        return rooms.get(roomCode);
+    }
+
+    public List<Room> getRooms() {
+        return new ArrayList<>(rooms.values());
+    }
+
+    public List<Room> findAvailable(LocalDate checkIn, LocalDate checkOut, int occupants, String roomCode, String bedType) {
+        List<Room> available = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (RoomCatalog.matches(room, occupants, roomCode, bedType) && occupancy.isFree(room.getCode(), checkIn, checkOut))
+                available.add(room);
+        }
+        return available;
+    }
+
+    public boolean isFree(String roomCode, LocalDate checkIn, LocalDate checkOut) {
+        return rooms.containsKey(roomCode) && occupancy.isFree(roomCode, checkIn, checkOut);
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        occupancy.reservationCreated(reservation);
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        occupancy.reservationChanged(before, after);
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        occupancy.reservationCancelled(reservation);
+    }
+
+    private static List<String> codes(Collection<Room> rooms) {
+        List<String> codes = new ArrayList<>();
+        for (Room room : rooms)
+            codes.add(room.getCode());
+        return codes;
+    }
+}
@@ -0,0 +1,361 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Sits between quoting a room and confirming the booking. A hold reserves a room for a date
+// range, within this process, until it is confirmed, released or expires, so two clerks or
+// requests quoting the same room can't both get to confirm it. Holds are kept per room and
+// each room's are guarded by that room's own monitor, so bookings for different rooms never
+// wait on each other.
+//
+// Confirmed bookings queue up for a single writer thread, which hands everything queued while
+// the previous commit was running to DatabaseHandler.bookReservations as one group commit.
+// Under load that is one transaction for many bookings instead of one each; with nothing else
+// queued a booking is committed on its own right away. The group commit's locked overlap
+// check is what actually prevents double-booking, including against other processes and
+// writes that never took a hold.
+public class BookingCoordinator implements AutoCloseable {
+
+    public static final long DEFAULT_HOLD_MILLIS = 5 * 60_000;
+    public static final int DEFAULT_MAX_GROUP_SIZE = 128;
+
+    public enum Status { BOOKED, EXPIRED, CONFLICTING, INVALID }
+
+    public static class Hold {
+        private final String token = UUID.randomUUID().toString();
+        private final String room;
+        private final LocalDate checkIn;
+        private final LocalDate checkOut;
+        private final double rate;
+        private final int adults;
+        private final int kids;
+        private final long expiresAt;
+        // The list holding this hold, whose monitor guards it
+        private final List<Hold> roomHolds;
+        // Set once confirmed, after which the hold no longer expires; guarded by the room's monitor
+        private boolean confirming = false;
+
+        Hold(String room, LocalDate checkIn, LocalDate checkOut, double rate, int adults, int kids, long expiresAt, List<Hold> roomHolds) {
+            this.room = room;
+            this.checkIn = checkIn;
+            this.checkOut = checkOut;
+            this.rate = rate;
+            this.adults = adults;
+            this.kids = kids;
+            this.expiresAt = expiresAt;
+            this.roomHolds = roomHolds;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public LocalDate getCheckIn() {
+            return checkIn;
+        }
+
+        public LocalDate getCheckOut() {
+            return checkOut;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getAdults() {
+            return adults;
+        }
+
+        public int getKids() {
+            return kids;
+        }
+
+        // System.currentTimeMillis() at which the hold lapses unless confirmed
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        boolean isLive(long now) {
+            return confirming || now < expiresAt;
+        }
+
+        boolean overlaps(LocalDate from, LocalDate to) {
+            return checkIn.isBefore(to) && checkOut.isAfter(from);
+        }
+    }
+
+    public static class Result {
+        private final Status status;
+        private final int code;
+        private final String message;
+
+        Result(Status status, int code, String message) {
+            this.status = status;
+            this.code = code;
+            this.message = message;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        // The new reservation code, or 0 if nothing was booked
+        public int getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static class Pending {
+        final Reservation booking;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Pending(Reservation booking) {
+            this.booking = booking;
+        }
+    }
+
+    private final DatabaseHandler dbHandler;
+    private final int maxGroupSize;
+    // Room code -> that room's holds; rooms without any have no entry
+    private final Map<String, List<Hold>> holds = new ConcurrentHashMap<>();
+    private final Map<String, Hold> holdsByToken = new ConcurrentHashMap<>();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public BookingCoordinator(DatabaseHandler dbHandler) {
+        this(dbHandler, DEFAULT_MAX_GROUP_SIZE);
+    }
+
+    public BookingCoordinator(DatabaseHandler dbHandler, int maxGroupSize) {
+        if (maxGroupSize < 1)
+            throw new IllegalArgumentException("Group size must be at least 1");
+        this.dbHandler = dbHandler;
+        this.maxGroupSize = maxGroupSize;
+        // Quotes leave out rooms someone here is holding, so they aren't offered what hold() refuses
+        dbHandler.setHeldStays(this::isHeld);
+        writer = new Thread(this::writeGroups, "booking-group-commit");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Null if another live hold already covers any night of the range. The rate and guests are
+    // the ones quoted, and are what the booking is made with.
+    public Hold hold(String room, LocalDate checkIn, LocalDate checkOut, double rate, int adults, int kids, long holdMillis) {
+        if (!checkIn.isBefore(checkOut))
+            throw new IllegalArgumentException("Check-out must be after check-in");
+        if (holdMillis <= 0)
+            throw new IllegalArgumentException("Hold time must be positive");
+        long now = System.currentTimeMillis();
+        while (true) {
+            List<Hold> roomHolds = holds.computeIfAbsent(room, r -> new ArrayList<>());
+            synchronized (roomHolds) {
+                // Dropped for being empty before the monitor was ours; start over with a new one
+                if (holds.get(room) != roomHolds)
+                    continue;
+                prune(roomHolds, now);
+                for (Hold other : roomHolds) {
+                    if (other.overlaps(checkIn, checkOut))
+                        return null;
+                }
+                Hold hold = new Hold(room, checkIn, checkOut, rate, adults, kids, now + holdMillis, roomHolds);
+                roomHolds.add(hold);
+                holdsByToken.put(hold.getToken(), hold);
+                return hold;
+            }
+        }
+    }
+
+    // Whether a live hold covers any night of the range
+    public boolean isHeld(String room, LocalDate checkIn, LocalDate checkOut) {
+        List<Hold> roomHolds = holds.get(room);
+        if (roomHolds == null)
+            return false;
+        long now = System.currentTimeMillis();
+        synchronized (roomHolds) {
+            for (Hold hold : roomHolds) {
+                if (hold.isLive(now) && hold.overlaps(checkIn, checkOut))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    // Null if the token is unknown or has expired
+    public Hold getHold(String token) {
+        Hold hold = holdsByToken.get(token);
+        if (hold == null)
+            return null;
+        synchronized (roomHolds(hold)) {
+            return hold.isLive(System.currentTimeMillis()) ? hold : null;
+        }
+    }
+
+    public void release(String token) {
+        Hold hold = holdsByToken.get(token);
+        if (hold == null)
+            return;
+        List<Hold> roomHolds = roomHolds(hold);
+        synchronized (roomHolds) {
+            if (!hold.confirming)
+                remove(roomHolds, hold);
+        }
+    }
+
+    // Books the held stay at the held rate for the held guests and waits for its group commit.
+    // The hold is gone afterwards whatever the outcome.
+    public Result confirm(String token, String lastName, String firstName) throws SQLException {
+        Hold hold = holdsByToken.get(token);
+        if (hold == null)
+            return new Result(Status.EXPIRED, 0, "No hold " + token + "; it may have expired");
+        List<Hold> roomHolds = roomHolds(hold);
+        synchronized (roomHolds) {
+            if (hold.confirming)
+                return new Result(Status.INVALID, 0, "Hold " + token + " is already being confirmed");
+            if (!hold.isLive(System.currentTimeMillis())) {
+                remove(roomHolds, hold);
+                return new Result(Status.EXPIRED, 0, "Hold " + token + " has expired");
+            }
+            hold.confirming = true;
+        }
+
+        Pending pending = new Pending(new Reservation(0, hold.getRoom(), hold.getCheckIn(), hold.getCheckOut(), hold.getRate(), lastName, firstName, hold.getAdults(), hold.getKids()));
+        try {
+            if (closed)
+                throw new IllegalStateException("Booking coordinator is closed");
+            queue.add(pending);
+            // close() may have drained the queue just before this was added
+            if (closed && queue.remove(pending))
+                throw new IllegalStateException("Booking coordinator is closed");
+            return await(pending);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        } finally {
+            if (pending.result.isDone() || closed) {
+                synchronized (roomHolds) {
+                    remove(roomHolds, hold);
+                }
+            } else {
+                pending.result.whenComplete((result, failure) -> {
+                    synchronized (roomHolds) {
+                        remove(roomHolds, hold);
+                    }
+                });
+            }
+        }
+    }
+
+    // Waits through interrupts, since once queued the booking may commit whatever this thread
+    // does, and reporting a failure for it would leave the guest booked without a code. The
+    // interrupt is restored once the outcome is known.
+    private static Result await(Pending pending) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pending.result.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getHoldCount() {
+        return holdsByToken.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dbHandler.setHeldStays(null);
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Pending> abandoned = new ArrayList<>();
+        queue.drainTo(abandoned);
+        for (Pending pending : abandoned)
+            pending.result.completeExceptionally(new SQLException("Booking coordinator closed before the booking was committed"));
+    }
+
+    private static List<Hold> roomHolds(Hold hold) {
+        return hold.roomHolds;
+    }
+
+    // Both called with the room's monitor held
+    private void prune(List<Hold> roomHolds, long now) {
+        for (int i = roomHolds.size() - 1; i >= 0; --i) {
+            Hold hold = roomHolds.get(i);
+            if (!hold.isLive(now)) {
+                roomHolds.remove(i);
+                holdsByToken.remove(hold.getToken());
+            }
+        }
+    }
+
+    // An emptied room's list is dropped, so the map only holds rooms with holds in them
+    private void remove(List<Hold> roomHolds, Hold hold) {
+        roomHolds.remove(hold);
+        holdsByToken.remove(hold.getToken());
+        if (roomHolds.isEmpty())
+            holds.remove(hold.getRoom(), roomHolds);
+    }
+
+    private void writeGroups() {
+        List<Pending> group = new ArrayList<>(maxGroupSize);
+        while (!closed) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(group, maxGroupSize - 1);
+
+            List<Reservation> bookings = new ArrayList<>(group.size());
+            for (Pending pending : group)
+                bookings.add(pending.booking);
+            try {
+                ImportReport report = dbHandler.bookReservations(bookings);
+                for (ImportReport.Outcome outcome : report.getOutcomes()) {
+                    Status status = switch (outcome.getStatus()) {
+                        case ACCEPTED -> Status.BOOKED;
+                        case CONFLICTING -> Status.CONFLICTING;
+                        case INVALID -> Status.INVALID;
+                    };
+                    group.get(outcome.getRow() - 1).result.complete(new Result(status, outcome.getCode(), outcome.getMessage()));
+                }
+            } catch (SQLException | RuntimeException e) {
+                for (Pending pending : group)
+                    pending.result.completeExceptionally(e);
+            }
+            group.clear();
+        }
+    }
+}
@@ -0,0 +1,455 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-interactive front end: JSON over the JDK's built-in HTTP server, driving the same
+// DatabaseHandler operations as the desk menu.
+//
+//   GET    /rooms                                     rooms and rates
+//   GET    /availability?room=&bed=&checkIn=&checkOut=&children=&adults=
+//   GET    /suggestions?<same as availability>
+//   GET    /reservations?firstName=&lastName=&checkIn=&checkout=&room=&code=&pageSize=&afterCheckIn=&afterCode=
+//   GET    /reservations/{code}
+//   GET    /guests?firstName=&lastName=&limit=         reservations by name, prefix or one typo, best first
+//   POST   /reservations      {"room", "checkIn", "checkOut", "firstName", "lastName", "children", "adults"}
+//   PATCH  /reservations/{code}  (If-Match: <ETag>) any of {"firstName", "lastName", "checkIn", "checkOut", "children", "adults"}
+//   DELETE /reservations/{code}
+//   POST   /holds             {"room", "checkIn", "checkOut", "children", "adults"} quote and hold the room
+//   POST   /holds/{token}     {"firstName", "lastName"} confirm the held booking
+//   DELETE /holds/{token}
+//   GET    /revenue
+//   GET    /statistics?from=&to=                      per-room stays, occupancy, revenue, popularity
+//   GET    /metrics                                   OperationMetrics per operation and phase
+//
+// Every request runs on its own virtual thread when the JVM has them (Java 21+) and on a
+// bounded pool otherwise. At most maxInFlight requests run at once; the rest wait up to
+// queueTimeoutMillis for a slot and then get 503. A request still running after
+// requestTimeoutMillis gets 504. Its worker is not interrupted, since that can leave a pooled
+// connection unusable mid-statement; instead every statement carries a query timeout of the
+// same length, so the worker fails soon after. Its slot is only given back once the worker
+// actually finishes, so timeouts can't pile up unbounded database work. Requests that book
+// (POST /reservations and POST /holds/{token}) never get 504: once queued the booking may
+// commit regardless, so they wait for the outcome, which the query timeout bounds.
+//
+// The SQL is MySQL's (GET_LOCK, LAST_INSERT_ID(expr), CRC32, MAKEDATE), so the server needs
+// a MySQL database to run against. It does not yet run on an embedded database.
+public class BookingServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 1000;
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    private final DatabaseHandler dbHandler;
+    private final BookingCoordinator bookings;
+    private final HttpServer server;
+    private final ExecutorService dispatcher;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final long queueTimeoutMillis;
+    private final long requestTimeoutMillis;
+
+    public BookingServer(DatabaseHandler dbHandler, int port) throws IOException {
+        this(dbHandler, port, DEFAULT_MAX_IN_FLIGHT, DEFAULT_QUEUE_TIMEOUT_MILLIS, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    public BookingServer(DatabaseHandler dbHandler, int port, int maxInFlight, long queueTimeoutMillis, long requestTimeoutMillis) throws IOException {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("At least one request must be allowed in flight");
+        this.dbHandler = dbHandler;
+        this.bookings = new BookingCoordinator(dbHandler);
+        this.inFlight = new Semaphore(maxInFlight, true);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        // Separate executors so a full worker pool can never starve the threads waiting on it
+        this.dispatcher = newRequestExecutor("booking-http", maxInFlight * 2);
+        this.workers = newRequestExecutor("booking-worker", maxInFlight);
+        // Unless the caller already bounded statements, bound them by the request timeout
+        ConnectionPool pool = dbHandler.getConnectionPool();
+        if (pool.getQueryTimeoutSeconds() == 0)
+            pool.setQueryTimeoutSeconds((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(requestTimeoutMillis + 999)));
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(dispatcher);
+        server.createContext("/", this::dispatch);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        dispatcher.shutdownNow();
+        workers.shutdownNow();
+        bookings.close();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor where it exists; the build targets Java 17,
+    // so it is looked up reflectively
+    static ExecutorService newRequestExecutor(String name, int fallbackThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(fallbackThreads, r -> {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) {
+        try (exchange) {
+            Response response;
+            if (!acquireSlot()) {
+                response = new Response(503, error("Server busy, try again shortly"));
+            } else {
+                Future<Response> future;
+                try {
+                    future = workers.submit(() -> {
+                        try {
+                            return route(exchange);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                response = await(future, books(exchange));
+            }
+            send(exchange, response);
+        } catch (IOException | RuntimeException e) {
+            // The client went away or the executor is shutting down; nothing left to tell anyone
+        }
+    }
+
+    private boolean acquireSlot() {
+        try {
+            return inFlight.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean books(HttpExchange exchange) {
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+        return exchange.getRequestMethod().equals("POST")
+                && ((path.length == 1 && path[0].equals("reservations")) || (path.length == 2 && path[0].equals("holds")));
+    }
+
+    private Response await(Future<Response> future, boolean books) {
+        try {
+            return books ? future.get() : future.get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            return new Response(504, error("Request timed out after " + requestTimeoutMillis + "ms"));
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            return new Response(503, error(books ? "Server shutting down; the booking may still have been made" : "Server shutting down"));
+        } catch (ExecutionException e) {
+            return failure(e.getCause());
+        }
+    }
+
+    private Response route(HttpExchange exchange) throws IOException, SQLException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        switch (path[0]) {
+            case "rooms" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return ok(dbHandler.getRoomsAndRates(Json::rows));
+            }
+            case "availability", "suggestions" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return availability(path[0].equals("suggestions"), query);
+            }
+            case "reservations" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return search(query);
+                if (path.length == 1 && method.equals("POST"))
+                    return book(Json.parseObject(readBody(exchange)));
+                if (path.length == 2 && method.equals("GET"))
+                    return reservation(path[1]);
+                if (path.length == 2 && method.equals("PATCH"))
+                    return change(path[1], exchange.getRequestHeaders().getFirst("If-Match"), Json.parseObject(readBody(exchange)));
+                if (path.length == 2 && method.equals("DELETE"))
+                    return cancel(path[1]);
+            }
+            case "holds" -> {
+                if (path.length == 1 && method.equals("POST"))
+                    return hold(Json.parseObject(readBody(exchange)));
+                if (path.length == 2 && method.equals("POST"))
+                    return confirm(path[1], Json.parseObject(readBody(exchange)));
+                if (path.length == 2 && method.equals("DELETE")) {
+                    bookings.release(path[1]);
+                    return new Response(204, null);
+                }
+            }
+            case "guests" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return ok(dbHandler.findGuests(query.get("firstName"), query.get("lastName"), Integer.parseInt(query.getOrDefault("limit", Integer.toString(ReservationSearch.DEFAULT_PAGE_SIZE))), Json::rows));
+            }
+            case "revenue" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return ok(dbHandler.getRevenue(Json::rows));
+            }
+            case "statistics" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return ok(dbHandler.getRoomStatistics(LocalDate.parse(required(query, "from")), LocalDate.parse(required(query, "to")), Json::rows));
+            }
+            case "metrics" -> {
+                if (path.length == 1 && method.equals("GET"))
+                    return ok(OperationMetrics.toJson());
+            }
+        }
+        return new Response(404, error("No such endpoint: " + method + " " + exchange.getRequestURI().getPath()));
+    }
+
+    private Response availability(boolean suggestions, Map<String, String> query) throws SQLException {
+        String room = query.getOrDefault("room", "Any");
+        String bed = query.getOrDefault("bed", "Any");
+        String checkIn = required(query, "checkIn");
+        String checkOut = required(query, "checkOut");
+        String children = query.getOrDefault("children", "0");
+        String adults = required(query, "adults");
+        if (suggestions)
+            return ok(dbHandler.getSimilarRooms(room, bed, checkIn, checkOut, children, adults, Json::rows));
+        return ok(dbHandler.getAvailableRooms(room, bed, checkIn, checkOut, children, adults, Json::rows));
+    }
+
+    private Response search(Map<String, String> query) throws SQLException {
+        ReservationSearch search = ReservationSearch.of(
+                query.getOrDefault("firstName", ""),
+                query.getOrDefault("lastName", ""),
+                query.getOrDefault("checkIn", ""),
+                query.getOrDefault("checkout", ""),
+                query.getOrDefault("room", ""),
+                query.getOrDefault("code", ""));
+        if (query.containsKey("pageSize"))
+            search.pageSize(Integer.parseInt(query.get("pageSize")));
+        if (query.containsKey("afterCheckIn"))
+            search.after(query.get("afterCheckIn"), required(query, "afterCode"));
+        return ok(dbHandler.searchReservations(search, Json::rows));
+    }
+
+    private Response reservation(String code) throws SQLException {
+        Reservation reservation = dbHandler.getReservation(Integer.toString(Integer.parseInt(code)));
+        if (reservation == null)
+            return new Response(404, error("No reservation " + code));
+        return new Response(200, toJson(reservation), etag(reservation));
+    }
+
+    // Books the room at its base rate if it is still free for the requested dates: a hold and
+    // an immediate confirm, so concurrent bookings share group commits
+    private Response book(Map<String, String> body) throws SQLException {
+        required(body, "firstName");
+        required(body, "lastName");
+        Response held = hold(body);
+        if (held.status != 201)
+            return held;
+        return confirm(Json.parseObject(held.body).get("token"), body);
+    }
+
+    // Quotes the room and holds it for the stay so the quote can be confirmed later
+    private Response hold(Map<String, String> body) throws SQLException {
+        String room = required(body, "room");
+        if (room.equalsIgnoreCase("Any") || room.contains("%") || room.contains("_"))
+            throw new IllegalArgumentException("Bookings need an exact room code");
+        String checkIn = required(body, "checkIn");
+        String checkOut = required(body, "checkOut");
+        String children = body.getOrDefault("children", "0");
+        String adults = required(body, "adults");
+
+        String[] quote = dbHandler.getAvailableRooms(room, "Any", checkIn, checkOut, children, adults,
+                rs -> rs.next() ? new String[] {rs.getString("basePrice"), rs.getString("Cost"), rs.getString("RoomCode")} : null);
+        if (quote == null)
+            return new Response(409, error("Room " + room + " is not available for " + (Integer.parseInt(children) + Integer.parseInt(adults)) + " guests from " + checkIn + " to " + checkOut));
+        // The room as the database spells it, so "aob" and "AOB" share one set of holds
+        room = quote[2];
+        BookingCoordinator.Hold hold = bookings.hold(room, LocalDate.parse(checkIn), LocalDate.parse(checkOut), Double.parseDouble(quote[0]), Integer.parseInt(adults), Integer.parseInt(children), BookingCoordinator.DEFAULT_HOLD_MILLIS);
+        if (hold == null)
+            return new Response(409, error("Room " + room + " is being booked by someone else for some of " + checkIn + " to " + checkOut));
+        return new Response(201, Json.object("token", hold.getToken(), "room", room, "checkIn", checkIn, "checkOut", checkOut,
+                "children", Integer.parseInt(children), "adults", Integer.parseInt(adults),
+                "rate", hold.getRate(), "cost", Double.parseDouble(quote[1]), "expiresAt", hold.getExpiresAt()));
+    }
+
+    private Response confirm(String token, Map<String, String> body) throws SQLException {
+        BookingCoordinator.Hold hold = bookings.getHold(token);
+        if (hold == null)
+            return new Response(404, error("No hold " + token + "; it may have expired"));
+        String firstName = required(body, "firstName");
+        String lastName = required(body, "lastName");
+
+        BookingCoordinator.Result result = bookings.confirm(token, lastName, firstName);
+        return switch (result.getStatus()) {
+            case BOOKED -> new Response(201, Json.object("code", result.getCode(), "room", hold.getRoom(), "checkIn", hold.getCheckIn(), "checkOut", hold.getCheckOut(),
+                    "rate", hold.getRate(), "cost", StayPricing.cost(hold.getRate(), hold.getCheckIn(), hold.getCheckOut())));
+            case EXPIRED -> new Response(404, error(result.getMessage()));
+            case CONFLICTING -> new Response(409, error(result.getMessage()));
+            case INVALID -> new Response(400, error(result.getMessage()));
+        };
+    }
+
+    // With If-Match set to the ETag from GET /reservations/{code}, the change is a
+    // compare-and-set and fails with 412 if anyone else has changed the reservation since
+    private Response change(String code, String ifMatch, Map<String, String> body) throws SQLException {
+        ReservationChange change = ReservationChange.of(code,
+                body.getOrDefault("firstName", ""),
+                body.getOrDefault("lastName", ""),
+                body.getOrDefault("checkIn", ""),
+                body.getOrDefault("checkOut", ""),
+                body.getOrDefault("children", ""),
+                body.getOrDefault("adults", ""));
+        if (ifMatch != null) {
+            Reservation seen = dbHandler.getReservation(Integer.toString(change.getCode()));
+            if (seen == null)
+                return new Response(404, error("No reservation " + code));
+            if (!ifMatch.equals(etag(seen)))
+                return new Response(412, error("Reservation " + code + " has changed"));
+            change.expect(seen);
+        }
+        ReservationChange.Result result = dbHandler.changeReservation(change);
+        return switch (result.getStatus()) {
+            case CHANGED -> new Response(200, toJson(result.getReservation()), etag(result.getReservation()));
+            case NOT_FOUND -> new Response(404, error(result.getMessage()));
+            case STALE -> new Response(412, error(result.getMessage()));
+            case CONFLICTING -> new Response(409, error(result.getMessage()));
+            case INVALID -> new Response(400, error(result.getMessage()));
+        };
+    }
+
+    private Response cancel(String code) throws SQLException {
+        code = Integer.toString(Integer.parseInt(code));
+        if (!dbHandler.cancelReservation(code))
+            return new Response(404, error("No reservation " + code));
+        return new Response(204, null);
+    }
+
+    private static Response failure(Throwable cause) {
+        if (cause instanceof IllegalArgumentException || cause instanceof DateTimeParseException)
+            return new Response(400, error(cause.getMessage()));
+        if (cause instanceof SQLTransientException)
+            return new Response(503, error(cause.getMessage()));
+        if (cause instanceof SQLException)
+            return new Response(500, error("Database error: " + cause.getMessage()));
+        return new Response(500, error(String.valueOf(cause)));
+    }
+
+    private static String toJson(Reservation reservation) {
+        return Json.object("code", reservation.getCode(),
+                "room", reservation.getRoom(),
+                "checkIn", reservation.getCheckIn(),
+                "checkOut", reservation.getCheckout(),
+                "rate", reservation.getRate(),
+                "lastName", reservation.getLastName(),
+                "firstName", reservation.getFirstName(),
+                "adults", reservation.getAdults(),
+                "children", reservation.getKids());
+    }
+
+    private static String etag(Reservation reservation) {
+        return '"' + Integer.toHexString(toJson(reservation).hashCode()) + '"';
+    }
+
+    private static String required(Map<String, String> values, String name) {
+        String value = values.get(name);
+        if (value == null || value.isBlank())
+            throw new IllegalArgumentException("Missing " + name);
+        return value;
+    }
+
+    private static Response ok(String json) {
+        return new Response(200, json);
+    }
+
+    private static String error(String message) {
+        return Json.object("error", message);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty())
+            return query;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            query.put(name, value);
+        }
+        return query;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES)
+                throw new IllegalArgumentException("Request body larger than " + MAX_BODY_BYTES + " bytes");
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void send(HttpExchange exchange, Response response) throws IOException {
+        if (response.body == null) {
+            exchange.sendResponseHeaders(response.status, -1);
+            return;
+        }
+        if (response.etag != null)
+            exchange.getResponseHeaders().set("ETag", response.etag);
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+        final String etag;
+
+        Response(int status, String body) {
+            this(status, body, null);
+        }
+
+        Response(int status, String body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Ordered record of the reservation writes committed through a DatabaseHandler, appended to
+// memory-mapped segment files in one directory. Every change gets the next sequence number.
+// A consumer that remembers the last sequence it applied catches up after a restart with
+// replay() instead of re-reading the table; subscribe() replays and then hands over new
+// changes as they are appended, in sequence order and with no gap in between.
+//
+// Records go straight into the mapping, which survives the process crashing but not the
+// machine. Every CHECKPOINT_INTERVAL records (and on close) the segment is forced to disk and
+// the checkpoint noted in its header. On open, records after the last checkpoint are kept up
+// to the first one whose length, CRC or sequence doesn't check out.
+//
+// Segments are deleted by deleteBefore(), or on rollover up to the sequence a retention
+// callback says must still be replayable.
+public class ChangeJournal implements AutoCloseable {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    private static final int MAGIC = 0x494E4E4A;
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, first sequence, checkpoint sequence, checkpoint position
+    private static final int FIRST_SEQUENCE_OFFSET = 8;
+    private static final int CHECKPOINT_SEQUENCE_OFFSET = 16;
+    private static final int CHECKPOINT_POSITION_OFFSET = 24;
+    private static final int HEADER_BYTES = 32;
+    // Body length and CRC32 of the body, then the body: sequence, type, reservations
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int HAS_BEFORE = 1;
+    private static final int HAS_AFTER = 2;
+    private static final String SEGMENT_PREFIX = "changes-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    public enum Type { CREATED, CHANGED, CANCELLED }
+
+    public static class Change {
+        private final long sequence;
+        private final Type type;
+        private final Reservation before;
+        private final Reservation after;
+
+        Change(long sequence, Type type, Reservation before, Reservation after) {
+            this.sequence = sequence;
+            this.type = type;
+            this.before = before;
+            this.after = after;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        // Null for a creation
+        public Reservation getBefore() {
+            return before;
+        }
+
+        // Null for a cancellation
+        public Reservation getAfter() {
+            return after;
+        }
+
+        // Makes the ReservationListener call this change was recorded from
+        public void applyTo(ReservationListener listener) {
+            switch (type) {
+                case CREATED -> listener.reservationCreated(after);
+                case CHANGED -> listener.reservationChanged(before, after);
+                case CANCELLED -> listener.reservationCancelled(before);
+            }
+        }
+    }
+
+    // Called with the journal locked, so keep it short and don't append from it
+    @FunctionalInterface
+    public interface Subscriber {
+        void onChange(Change change);
+    }
+
+    public class Subscription implements AutoCloseable {
+        private final Subscriber subscriber;
+
+        private Subscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ChangeJournal.this) {
+                subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    private static class Segment {
+        final Path file;
+        final long firstSequence;
+        final MappedByteBuffer buffer;
+        // Position after the last record, and that record's sequence
+        int end;
+        long lastSequence;
+
+        Segment(Path file, long firstSequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+            this.end = HEADER_BYTES;
+            this.lastSequence = firstSequence - 1;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private int sinceCheckpoint = 0;
+    private LongSupplier retainFrom = null;
+    private boolean closed = false;
+
+    private ChangeJournal(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public static ChangeJournal open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public static ChangeJournal open(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes < 4096)
+            throw new IllegalArgumentException("Segments must be at least 4096 bytes");
+        Files.createDirectories(directory);
+        ChangeJournal journal = new ChangeJournal(directory, segmentBytes);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(ChangeJournal::isSegment).sorted().toList();
+        }
+        for (Path file : files) {
+            Segment segment = journal.map(file);
+            if (segment == null)
+                throw new IOException(file + " is not a change journal segment");
+            journal.recover(segment);
+            journal.segments.add(segment);
+        }
+        if (journal.segments.isEmpty())
+            journal.segments.add(journal.createSegment(1));
+        return journal;
+    }
+
+    public synchronized long getLastSequence() {
+        return active().lastSequence;
+    }
+
+    public synchronized long getFirstSequence() {
+        return segments.get(0).firstSequence;
+    }
+
+    // True if every change from this sequence on is still held (or none has happened yet)
+    public synchronized boolean canReplayFrom(long sequence) {
+        return sequence >= getFirstSequence() && sequence <= getLastSequence() + 1;
+    }
+
+    // Records a committed write and hands it to the subscribers. Throws UncheckedIOException if
+    // a new segment can't be created, in which case nothing was recorded.
+    public synchronized Change append(Type type, Reservation before, Reservation after) {
+        if (closed)
+            throw new IllegalStateException("Change journal is closed");
+        Segment segment = active();
+        Change change = new Change(segment.lastSequence + 1, type, before, after);
+        byte[] body = encode(change);
+        if (HEADER_BYTES + RECORD_HEADER_BYTES + body.length + 4 > segmentBytes)
+            throw new IllegalArgumentException("Change " + change.getSequence() + " is too large for a journal segment");
+        if (segment.end + RECORD_HEADER_BYTES + body.length + 4 > segmentBytes) {
+            checkpoint(segment);
+            try {
+                segment = createSegment(change.getSequence());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.add(segment);
+            trim();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        // Body first, so a record is never complete until its length is in place
+        segment.buffer.put(segment.end + RECORD_HEADER_BYTES, body);
+        segment.buffer.putInt(segment.end + 4, (int) crc.getValue());
+        segment.buffer.putInt(segment.end, body.length);
+        segment.end += RECORD_HEADER_BYTES + body.length;
+        segment.buffer.putInt(segment.end, 0);
+        segment.lastSequence = change.getSequence();
+        if (++sinceCheckpoint >= CHECKPOINT_INTERVAL)
+            checkpoint(segment);
+
+        for (Subscriber subscriber : subscribers)
+            subscriber.onChange(change);
+        return change;
+    }
+
+    // Delivers every held change from fromSequence on and returns the last sequence delivered
+    // (fromSequence - 1 if there were none)
+    public synchronized long replay(long fromSequence, Subscriber subscriber) {
+        if (!canReplayFrom(fromSequence))
+            throw new IllegalArgumentException("Changes before " + getFirstSequence() + " are no longer held, cannot replay from " + fromSequence);
+        long last = fromSequence - 1;
+        for (Segment segment : segments) {
+            if (segment.lastSequence < fromSequence)
+                continue;
+            for (int position = HEADER_BYTES; position < segment.end; ) {
+                int length = segment.buffer.getInt(position);
+                long sequence = segment.buffer.getLong(position + RECORD_HEADER_BYTES);
+                if (sequence >= fromSequence) {
+                    subscriber.onChange(decode(segment.buffer, position + RECORD_HEADER_BYTES));
+                    last = sequence;
+                }
+                position += RECORD_HEADER_BYTES + length;
+            }
+        }
+        return last;
+    }
+
+    // Replays from fromSequence, then passes on each change as it is appended until closed
+    public synchronized Subscription subscribe(long fromSequence, Subscriber subscriber) {
+        replay(fromSequence, subscriber);
+        subscribers.add(subscriber);
+        return new Subscription(subscriber);
+    }
+
+    // Only the changes appended from now on
+    public synchronized Subscription subscribe(Subscriber subscriber) {
+        return subscribe(getLastSequence() + 1, subscriber);
+    }
+
+    // Forces the active segment to disk and records the checkpoint in its header
+    public synchronized void checkpoint() {
+        checkpoint(active());
+    }
+
+    // Called on every rollover, with the journal locked, for the first sequence that must stay
+    // replayable; older segments are then deleted. Without one, segments are kept until
+    // deleteBefore() is called.
+    public synchronized void setRetention(LongSupplier retainFrom) {
+        this.retainFrom = retainFrom;
+    }
+
+    // Deletes the segments holding only changes before this sequence; the active segment is
+    // always kept
+    public synchronized void deleteBefore(long sequence) throws IOException {
+        while (segments.size() > 1 && segments.get(1).firstSequence <= sequence) {
+            Segment segment = segments.remove(0);
+            Files.deleteIfExists(segment.file);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        checkpoint(active());
+        subscribers.clear();
+        closed = true;
+    }
+
+    private void trim() {
+        if (retainFrom == null)
+            return;
+        try {
+            deleteBefore(retainFrom.getAsLong());
+        } catch (IOException e) {
+            // Tried again on the next rollover
+        }
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void checkpoint(Segment segment) {
+        segment.buffer.force();
+        segment.buffer.putLong(CHECKPOINT_SEQUENCE_OFFSET, segment.lastSequence);
+        segment.buffer.putInt(CHECKPOINT_POSITION_OFFSET, segment.end);
+        segment.buffer.force(0, HEADER_BYTES);
+        sinceCheckpoint = 0;
+    }
+
+    // Finds the real end of a segment: trusted up to its checkpoint, then record by record
+    private void recover(Segment segment) {
+        int position = segment.buffer.getInt(CHECKPOINT_POSITION_OFFSET);
+        long sequence = segment.buffer.getLong(CHECKPOINT_SEQUENCE_OFFSET);
+        if (position < HEADER_BYTES || position > segmentBytes - 4) {
+            position = HEADER_BYTES;
+            sequence = segment.firstSequence - 1;
+        }
+        while (position + RECORD_HEADER_BYTES <= segmentBytes - 4) {
+            int length = segment.buffer.getInt(position);
+            if (length <= 8 || position + RECORD_HEADER_BYTES + length > segmentBytes - 4)
+                break;
+            byte[] body = new byte[length];
+            segment.buffer.get(position + RECORD_HEADER_BYTES, body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != segment.buffer.getInt(position + 4))
+                break;
+            if (ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).getLong(0) != sequence + 1)
+                break;
+            ++sequence;
+            position += RECORD_HEADER_BYTES + length;
+        }
+        // Anything past here is a torn write; make sure it reads as the end
+        segment.buffer.putInt(position, 0);
+        segment.end = position;
+        segment.lastSequence = sequence;
+    }
+
+    private Segment createSegment(long firstSequence) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putLong(FIRST_SEQUENCE_OFFSET, firstSequence);
+            buffer.putLong(CHECKPOINT_SEQUENCE_OFFSET, firstSequence - 1);
+            buffer.putInt(CHECKPOINT_POSITION_OFFSET, HEADER_BYTES);
+            buffer.force();
+            return new Segment(file, firstSequence, buffer);
+        }
+    }
+
+    private Segment map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != segmentBytes)
+                return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+                return null;
+            return new Segment(file, buffer.getLong(FIRST_SEQUENCE_OFFSET), buffer);
+        }
+    }
+
+    private static boolean isSegment(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static byte[] encode(Change change) {
+        ByteBuffer buffer = ByteBuffer.allocate(10 + size(change.getBefore()) + size(change.getAfter())).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(change.getSequence());
+        buffer.put((byte) change.getType().ordinal());
+        buffer.put((byte) ((change.getBefore() != null ? HAS_BEFORE : 0) | (change.getAfter() != null ? HAS_AFTER : 0)));
+        if (change.getBefore() != null)
+            encode(buffer, change.getBefore());
+        if (change.getAfter() != null)
+            encode(buffer, change.getAfter());
+        return buffer.array();
+    }
+
+    private static void encode(ByteBuffer buffer, Reservation reservation) {
+        buffer.putInt(reservation.getCode());
+        putString(buffer, reservation.getRoom());
+        buffer.putLong(reservation.getCheckIn().toEpochDay());
+        buffer.putLong(reservation.getCheckout().toEpochDay());
+        buffer.putDouble(reservation.getRate());
+        putString(buffer, reservation.getLastName());
+        putString(buffer, reservation.getFirstName());
+        buffer.putInt(reservation.getAdults());
+        buffer.putInt(reservation.getKids());
+    }
+
+    private static int size(Reservation reservation) {
+        if (reservation == null)
+            return 0;
+        return 4 + size(reservation.getRoom()) + 8 + 8 + 8 + size(reservation.getLastName()) + size(reservation.getFirstName()) + 4 + 4;
+    }
+
+    private static Change decode(ByteBuffer source, int position) {
+        ByteBuffer buffer = source.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(position);
+        long sequence = buffer.getLong();
+        Type type = Type.values()[buffer.get()];
+        int present = buffer.get();
+        Reservation before = (present & HAS_BEFORE) != 0 ? decodeReservation(buffer) : null;
+        Reservation after = (present & HAS_AFTER) != 0 ? decodeReservation(buffer) : null;
+        return new Change(sequence, type, before, after);
+    }
+
+    private static Reservation decodeReservation(ByteBuffer buffer) {
+        int code = buffer.getInt();
+        String room = getString(buffer);
+        LocalDate checkIn = LocalDate.ofEpochDay(buffer.getLong());
+        LocalDate checkout = LocalDate.ofEpochDay(buffer.getLong());
+        double rate = buffer.getDouble();
+        String lastName = getString(buffer);
+        String firstName = getString(buffer);
+        int adults = buffer.getInt();
+        int kids = buffer.getInt();
+        return new Reservation(code, room, checkIn, checkout, rate, lastName, firstName, adults, kids);
+    }
+
+    private static int size(String value) {
+        return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
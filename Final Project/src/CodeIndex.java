@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+// Reservation code -> a non-negative int (a row, an id), open addressing over two int arrays
+// so lookups don't box
+class CodeIndex {
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 2048;
+    private int[] keys = newKeys(INITIAL_CAPACITY);
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int count = 0;
+
+    // Returns the value, or -1 if the code is not present
+    int get(int code) {
+        int slot = find(keys, code);
+        return keys[slot] == EMPTY ? -1 : values[slot];
+    }
+
+    void put(int code, int value) {
+        if ((count + 1) * 2 > keys.length)
+            grow();
+        int slot = find(keys, code);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = code;
+            ++count;
+        }
+        values[slot] = value;
+    }
+
+    // Returns the removed value, or -1 if the code was not present
+    int remove(int code) {
+        int slot = find(keys, code);
+        if (keys[slot] == EMPTY)
+            return -1;
+        int removed = values[slot];
+        keys[slot] = EMPTY;
+        --count;
+        // Re-insert the rest of the probe run so later lookups don't stop at the hole
+        int mask = keys.length - 1;
+        for (int next = (slot + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+            int key = keys[next];
+            int value = values[next];
+            keys[next] = EMPTY;
+            int target = find(keys, key);
+            keys[target] = key;
+            values[target] = value;
+        }
+        return removed;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = newKeys(oldKeys.length * 2);
+        values = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int find(int[] keys, int code) {
+        int mask = keys.length - 1;
+        int slot = (code * 0x9E3779B9) >>> 1 & mask;
+        while (keys[slot] != EMPTY && keys[slot] != code)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
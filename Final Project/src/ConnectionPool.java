@@ -0,0 +1,222 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.DriverManager;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_SIZE = 16;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+    private static final long VALIDATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long acquireTimeoutMillis;
+    private final int statementCacheSize;
+    // Applied to every statement handed out; 0 waits forever
+    private volatile int queryTimeoutSeconds = 0;
+    private final LongAdder statementCacheHits = new LongAdder();
+    private final LongAdder statementCacheMisses = new LongAdder();
+
+    // One permit per connection that may be checked out at the same time
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String url, String username, String password) {
+        this(url, username, password, DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_ACQUIRE_TIMEOUT_MILLIS, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    public ConnectionPool(String url, String username, String password, int maxSize, long idleTimeoutMillis, long acquireTimeoutMillis, int statementCacheSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(idleTimeoutMillis, VALIDATION_INTERVAL_MILLIS) / 2);
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool is closed");
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SQLTransientConnectionException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isHealthy(pooled)) {
+                    pooled.checkOut();
+                    return pooled;
+                }
+                pooled.closeQuietly();
+            }
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pooled) {
+        try {
+            if (closed || pooled.isBroken() || pooled.connection().isClosed()) {
+                pooled.closeQuietly();
+                return;
+            }
+            // Never hand the next caller somebody else's open transaction or read snapshot
+            pooled.connection().rollback();
+            pooled.markUsed();
+            synchronized (idle) {
+                if (idle.size() < maxSize) {
+                    idle.push(pooled);
+                    return;
+                }
+            }
+            pooled.closeQuietly();
+        } catch (SQLException e) {
+            pooled.closeQuietly();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    // A statement still running after this long is cancelled by the driver and throws, which
+    // leaves the connection usable, unlike interrupting the thread waiting on it
+    public void setQueryTimeoutSeconds(int queryTimeoutSeconds) {
+        if (queryTimeoutSeconds < 0)
+            throw new IllegalArgumentException("Query timeout can't be negative");
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+    }
+
+    public int getQueryTimeoutSeconds() {
+        return queryTimeoutSeconds;
+    }
+
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        List<PooledConnection> toClose;
+        synchronized (idle) {
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (PooledConnection pooled : toClose)
+            pooled.closeQuietly();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, username, password);
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+        return new PooledConnection(this, conn, new StatementCache(conn, statementCacheSize, statementCacheHits, statementCacheMisses));
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pooled) {
+        if (System.currentTimeMillis() - pooled.getLastUsed() < VALIDATION_INTERVAL_MILLIS)
+            return true;
+        try {
+            return pooled.connection().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Drops connections that have sat idle too long or that the server has since closed.
+    // Idle connections are kept most-recently-used first, so the stale ones are at the tail.
+    private void evict() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> candidates = new ArrayList<>();
+        synchronized (idle) {
+            while (!idle.isEmpty() && now - idle.peekLast().getLastUsed() >= idleTimeoutMillis)
+                candidates.add(idle.pollLast());
+        }
+        for (PooledConnection pooled : candidates)
+            pooled.closeQuietly();
+
+        List<PooledConnection> toValidate;
+        synchronized (idle) {
+            toValidate = new ArrayList<>(idle);
+            idle.clear();
+        }
+        List<PooledConnection> healthy = new ArrayList<>();
+        for (PooledConnection pooled : toValidate) {
+            if (isHealthy(pooled))
+                healthy.add(pooled);
+            else
+                pooled.closeQuietly();
+        }
+        synchronized (idle) {
+            while (!healthy.isEmpty() && idle.size() < maxSize)
+                idle.addLast(healthy.remove(0));
+        }
+        for (PooledConnection pooled : healthy)
+            pooled.closeQuietly();
+    }
+}
@@ -1,305 +1,1766 @@
 import java.sql.ResultSet;
-import java.sql.Statement;
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.SQLException;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.sql.rowset.CachedRowSet;
 
-public class DatabaseHandler {
+// Every operation checks a connection out of the pool for its own duration, so one handler
+// can be shared by any number of threads. Statements come from the connection's statement
+// cache and are never closed here; result sets always are. Query results are fully read into
+// disconnected CachedRowSets before the connection goes back, so no cursor outlives a call.
+public class DatabaseHandler implements AutoCloseable {
 
-    private final Connection conn;
+    // Receives a forward-only result while its connection is still checked out. Methods that
+    // return a CachedRowSet instead copy the whole result first.
+    @FunctionalInterface
+    public interface ResultHandler<T> {
+        T handle(ResultSet rs) throws SQLException;
+    }
+
+    // Stays promised to someone in this process but not yet committed, such as
+    // BookingCoordinator's holds. Availability and suggestions leave them out.
+    @FunctionalInterface
+    public interface HeldStays {
+        boolean isHeld(String roomCode, LocalDate checkIn, LocalDate checkOut);
+    }
+
+    public static final int DEFAULT_FETCH_SIZE = 256;
+    // A saved occupancy file is re-anchored at today - 180 days once its origin is this old
+    private static final int OCCUPANCY_REANCHOR_DAYS = 30;
+    // Name patterns matching more reservations than this are left to the database
+    private static final int MAX_NAME_PATTERN_CODES = 1000;
+
+    private static final String ROOMS_AND_RATES_SQL = roomsAndRatesSql(false);
+    private static final String ROOM_RATES_SQL = roomsAndRatesSql(true);
+    private static final String LAST_STAYS_SQL = lastStaysSql(false);
+    private static final String ROOM_LAST_STAY_SQL = lastStaysSql(true);
+    private static final String INSERT_RESERVATION_SQL = "INSERT INTO gholland.lab7_reservations (CODE, Room, CheckIn, Checkout, Rate, LastName, FirstName, Adults, Kids) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String LOCK_ROOM_SQL = "SELECT maxOcc FROM gholland.lab7_rooms WHERE RoomCode = ? FOR UPDATE";
+    private static final String LOCK_RESERVATION_SQL = "SELECT * FROM gholland.lab7_reservations WHERE CODE = ? FOR UPDATE";
+    private static final String OVERLAPPING_STAYS_SQL = "SELECT CheckIn, Checkout FROM gholland.lab7_reservations WHERE Room = ? AND CODE <> ? AND CheckIn < ? AND Checkout > ? LIMIT 1 FOR UPDATE";
+    private static final String UPDATE_RESERVATION_SQL = "UPDATE gholland.lab7_reservations SET FirstName = ?, LastName = ?, CheckIn = ?, Checkout = ?, Kids = ?, Adults = ? WHERE CODE = ?";
+    private static final String SNAPSHOT_SQL = "SELECT CODE, Room, CheckIn, Checkout, Rate FROM gholland.lab7_reservations";
+    private static final String GUEST_NAMES_SQL = "SELECT CODE, FirstName, LastName FROM gholland.lab7_reservations";
+    private static final String ROOMS_SQL = "SELECT * FROM gholland.lab7_rooms ORDER BY RoomCode";
+    private static final String RESERVATIONS_ENDING_AFTER_SQL = "SELECT * FROM gholland.lab7_reservations WHERE Checkout > ?";
+    private static final String ALL_RESERVATIONS_SQL = "SELECT * FROM gholland.lab7_reservations";
+    private static final String RESERVATION_SQL = "SELECT * FROM gholland.lab7_reservations WHERE CODE = ?";
+    private static final String DELETE_RESERVATION_SQL = "DELETE FROM gholland.lab7_reservations WHERE Code = ?";
+    // Rooms come from the room catalog; only their stays need the database
+    private static final String OCCUPIED_ROOMS_SQL = "SELECT DISTINCT Room FROM gholland.lab7_reservations WHERE CheckIn < ? AND Checkout > ?";
+    private static final String PRICING_PARITY_SQL =
+            "SELECT RoomCode, basePrice, ROUND(basePrice * (DATEDIFF(?, ?) + DATEDIFF(ADDDATE(?, 1 - DAYOFWEEK(?)), ADDDATE(?, 1 - DAYOFWEEK(?))) / 7 * 0.2 + (DAYOFWEEK(?) = 1) * 0.1 - (DAYOFWEEK(?) = 1) * 0.1), 2) Cost\n" +
+                    "FROM gholland.lab7_rooms";
+    private static final String REVENUE_SQL =
+            "WITH revenues AS (\n" +
+                    "    SELECT \n" +
+                    "        Room,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-02-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-01-01'))), 0))) January,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-03-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-02-01'))), 0))) February,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-04-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-03-01'))), 0))) March,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-05-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-04-01'))), 0))) April,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-06-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-05-01'))), 0))) May,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-07-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-06-01'))), 0))) June,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-08-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-07-01'))), 0))) July,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-09-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-08-01'))), 0))) August,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-10-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-09-01'))), 0))) September,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-11-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-10-01'))), 0))) October,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-12-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-11-01'))), 0))) November,\n" +
+                    "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE())+1, '-01-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-12-01'))), 0))) December,\n" +
+                    "        ROUND(SUM(Rate * DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE())+1, '-01-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-01-01'))))) Total\n" +
+                    "    FROM gholland.lab7_reservations\n" +
+                    "    WHERE CheckIn < MAKEDATE(YEAR(CURDATE()) + 1, 1) AND Checkout >= MAKEDATE(YEAR(CURDATE()), 1)\n" +
+                    "    GROUP BY Room\n" +
+                    ")\n" +
+                    "SELECT *\n" +
+                    "FROM (\n" +
+                    "    (SELECT * FROM revenues) \n" +
+                    "    UNION ALL \n" +
+                    "    (SELECT 'All Rooms', SUM(January), SUM(February), SUM(March), SUM(April), SUM(May), SUM(June), SUM(July), SUM(August), SUM(September), SUM(October), SUM(November), SUM(December), SUM(Total) FROM revenues)\n" +
+                    ") result\n";
+    // Prepared on every connection warmUp opens
+    private static final List<String> WARM_STATEMENTS = List.of(ROOMS_AND_RATES_SQL, ROOM_RATES_SQL, OCCUPIED_ROOMS_SQL,
+            RESERVATION_SQL, LOCK_ROOM_SQL, LOCK_RESERVATION_SQL, OVERLAPPING_STAYS_SQL, INSERT_RESERVATION_SQL,
+            UPDATE_RESERVATION_SQL, DELETE_RESERVATION_SQL);
+
+    private final ConnectionPool pool;
+    private final ReservationCodeAllocator codeAllocator;
+    private final List<ReservationListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Bumped on every committed write, so an index rebuilt concurrently with a write can tell
+    // that it may have missed it
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicBoolean indexRebuilding = new AtomicBoolean(false);
+    private final AtomicBoolean rollupRebuilding = new AtomicBoolean(false);
+    private final AtomicBoolean snapshotRebuilding = new AtomicBoolean(false);
+    private final AtomicBoolean guestIndexRebuilding = new AtomicBoolean(false);
+    private volatile AvailabilityIndex availabilityIndex;
+    private volatile long availabilityIndexMaxAgeMillis;
+    private volatile Path occupancyFile;
+    private final Object occupancyFileLock = new Object();
+    private volatile RevenueRollup revenueRollup;
+    private volatile ReservationSnapshot analyticsSnapshot;
+    private volatile GuestNameIndex guestNameIndex;
+    private volatile ChangeJournal changeJournal;
+    private volatile RoomsAndRatesCache roomsAndRatesCache;
+    private volatile RoomCatalog roomCatalog;
+    private volatile ReplicaRouter replicaRouter;
+    private volatile HeldStays heldStays;
+    private volatile int fetchSize = DEFAULT_FETCH_SIZE;
 
     public DatabaseHandler(String url, String username, String password) throws SQLException {
-        conn = DriverManager.getConnection(url, username, password);
-        conn.setAutoCommit(false);
-    }
-
-    public ResultSet getRoomsAndRates() throws SQLException {
-        String sql =
-                "WITH\n" +
-                        "    popularities AS (\n" +
-                        "        SELECT Room, ROUND(SUM(GREATEST(DATEDIFF(LEAST(Checkout, CURDATE()), GREATEST(CheckIn, DATE_SUB(CURDATE(), INTERVAL 180 DAY))), 0))/180, 2) Popularity\n" +
-                        "        FROM gholland.lab7_reservations\n" +
-                        "        GROUP BY Room\n" +
-                        "    ),\n" +
-                        "    checkIns AS (\n" +
-                        "        SELECT Room, IFNULL(MIN(Checkout), CURDATE()) NextCheckIn\n" +
-                        "        FROM gholland.lab7_reservations\n" +
-                        "        WHERE Checkout >= CURDATE()\n" +
-                        "        AND CODE NOT IN (\n" +
-                        "            SELECT r1.CODE\n" +
-                        "            FROM gholland.lab7_reservations r1 JOIN gholland.lab7_reservations r2 USING (Room)\n" +
-                        "            WHERE r1.Checkout = r2.CheckIn\n" +
-                        "        )\n" +
-                        "        GROUP BY Room\n" +
-                        "    ),\n" +
-                        "    lastStays AS (\n" +
-                        "        SELECT Room, DATEDIFF(LastStayCheckout, CheckIn) LastStayDays, LastStayCheckout\n" +
-                        "        FROM gholland.lab7_reservations JOIN (\n" +
-                        "            SELECT Room, MAX(Checkout) LastStayCheckout\n" +
-                        "            FROM gholland.lab7_reservations\n" +
-                        "            WHERE Checkout <= CURDATE()\n" +
-                        "            GROUP BY Room\n" +
-                        "        ) maxCheckouts USING (Room)\n" +
-                        "        WHERE Checkout = LastStayCheckout\n" +
-                        "    )\n" +
-                        "SELECT rooms.*, Popularity, NextCheckIn, LastStayDays, LastStayCheckOut\n" +
-                        "FROM gholland.lab7_rooms rooms LEFT JOIN popularities p ON RoomCode = p.Room LEFT JOIN checkIns c ON RoomCode = c.Room LEFT JOIN lastStays l ON RoomCode = l.Room\n" +
-                        "ORDER BY Popularity DESC;";
-        Statement statement = conn.createStatement();
-
-        return statement.executeQuery(sql);
+        this(new ConnectionPool(url, username, password));
+        // Fail fast on bad credentials rather than on the first menu option
+        try {
+            pool.acquire().close();
+        } catch (SQLException e) {
+            pool.close();
+            throw e;
+        }
     }
 
-    public int getMaxCapacity() throws SQLException {
-        String sql = "SELECT MAX(maxOcc) maxCapacity FROM gholland.lab7_rooms";
-        Statement statement = conn.createStatement();
-
-        ResultSet rs = statement.executeQuery(sql);
-        rs.next();
-        return rs.getInt("maxCapacity");
-    }
-
-    public ResultSet getAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults) throws SQLException {
-        String sql =
-                "WITH input AS (\n" +
-                        "    SELECT ? UserCheckIn, ? UserCheckout\n" +
-                        ")\n" +
-                        "SELECT *, ROUND(basePrice * (DATEDIFF(UserCheckout, UserCheckIn) + DATEDIFF(ADDDATE(UserCheckout, 1 - DAYOFWEEK(UserCheckout)), ADDDATE(UserCheckIn, 1 - DAYOFWEEK(UserCheckIn))) / 7 * 0.2 + (DAYOFWEEK(UserCheckIn) = 1) * 0.1 - (DAYOFWEEK(UserCheckout) = 1) * 0.1), 2) Cost\n" +
-                        "FROM gholland.lab7_rooms, input\n" +
-                        "WHERE ? <= maxOcc AND (RoomCode = ? OR ?) AND (bedType = ? OR ?)\n" +
-                        "AND NOT EXISTS (\n" +
-                        "    SELECT CODE\n" +
-                        "    FROM gholland.lab7_reservations\n" +
-                        "    WHERE RoomCode = Room AND NOT CheckIn >= UserCheckout AND NOT Checkout <= UserCheckIn\n" +
-                        ")";
-        PreparedStatement pstmt = conn.prepareStatement(sql);
-        pstmt.setString(1, checkIn);
-        pstmt.setString(2, checkOut);
-        pstmt.setString(3, numChildren+numAdults);
-        pstmt.setString(4, roomCode);
-        pstmt.setBoolean(5, roomCode.equals("Any"));
-        pstmt.setString(6, bedType);
-        pstmt.setBoolean(7, bedType.equals("Any"));
-
-        return pstmt.executeQuery();
-    }
-
-    public ResultSet getSimilarRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults) throws SQLException {
-        // TODO: Write better SQL
-        String sql =
-                "WITH input AS (SELECT 'Any' UserRoomCode, true NoRoomPref, 'Any' UserbedType, true NoBedPref, '2021-12-10' UserCheckIn, '2021-12-25' UserCheckout, 4 People) SELECT rooms.*, UserCheckIn CheckIn, UserCheckout Checkout, ROUND(basePrice * (DATEDIFF(UserCheckout, UserCheckIn) + DATEDIFF(ADDDATE(UserCheckout, 1 - DAYOFWEEK(UserCheckout)), ADDDATE(UserCheckIn, 1 - DAYOFWEEK(UserCheckIn))) / 7 * 0.2 + (DAYOFWEEK(UserCheckIn) = 1) * 0.1 - (DAYOFWEEK(UserCheckout) = 1) * 0.1), 2) Cost FROM gholland.lab7_rooms rooms, input WHERE People <= maxOcc AND NOT EXISTS ( SELECT CODE FROM gholland.lab7_reservations WHERE RoomCode = Room AND NOT CheckIn >= UserCheckout AND NOT Checkout <= UserCheckIn) ORDER BY (RoomCode = UserRoomCode OR NoRoomPref) DESC, (bedType = UserbedType OR NoBedPref) DESC ";
-        PreparedStatement pstmt = conn.prepareStatement(sql);
-        pstmt.setString(1, roomCode);
-        pstmt.setBoolean(2, roomCode.equals("Any"));
-        pstmt.setString(3, bedType);
-        pstmt.setBoolean(4, bedType.equals("Any"));
-        pstmt.setString(5, checkIn);
-        pstmt.setString(6, checkOut);
-        pstmt.setString(7, numChildren+numAdults);
-
-        return pstmt.executeQuery();
-    }
-
-    public void createReservation(String roomCode, String checkIn, String checkOut, String rate, String lastName, String firstName, String numAdults, String numChildren) throws SQLException {
-        String sql = "SELECT MAX(CODE) maxCode FROM gholland.lab7_reservations";
-        Statement statement = conn.createStatement();
-
-        ResultSet rs = statement.executeQuery(sql);
-        rs.next();
-
-        sql = "INSERT INTO gholland.lab7_reservations (CODE, Room, CheckIn, Checkout, Rate, LastName, FirstName, Adults, Kids) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setInt(1, rs.getInt("maxCode")+1);
+    public DatabaseHandler(ConnectionPool pool) throws SQLException {
+        this.pool = pool;
+        this.codeAllocator = new ReservationCodeAllocator(pool);
+    }
+
+    // Rows fetched per round trip by the ResultHandler variants. With MySQL Connector/J this only
+    // takes effect with useCursorFetch=true in the URL; otherwise the driver buffers everything.
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    // Null to quote every free room again
+    public void setHeldStays(HeldStays heldStays) {
+        this.heldStays = heldStays;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    @Override
+    public void close() {
+        disableChangeJournal();
+        disableReadReplicas();
+        pool.close();
+    }
+
+    public void addReservationListener(ReservationListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeReservationListener(ReservationListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Records every write made through this handler in a ChangeJournal in the directory, for
+    // getChangeJournal().subscribe() consumers, and keeps a persisted occupancy bitmap in step
+    // with it so that on restart the bitmap catches up from the journal. Only the segments the
+    // bitmap would still need are kept. Enable before the availability index.
+    public void enableChangeJournal(Path directory) throws IOException {
+        ChangeJournal journal = ChangeJournal.open(directory);
+        journal.subscribe(change -> {
+            AvailabilityIndex index = availabilityIndex;
+            if (index != null) {
+                change.applyTo(index);
+                index.getOccupancy().setJournalSequence(change.getSequence());
+            }
+        });
+        // Nothing but the occupancy file replays after a restart, and it only needs the changes
+        // since the last one it applied
+        journal.setRetention(() -> {
+            AvailabilityIndex index = availabilityIndex;
+            long applied = index == null || occupancyFile == null ? -1 : index.getOccupancy().getJournalSequence();
+            return applied >= 0 ? applied + 1 : Long.MAX_VALUE;
+        });
+        ChangeJournal previous = changeJournal;
+        changeJournal = journal;
+        if (previous != null)
+            previous.close();
+    }
+
+    public void disableChangeJournal() {
+        ChangeJournal journal = changeJournal;
+        changeJournal = null;
+        if (journal != null)
+            journal.close();
+    }
+
+    public ChangeJournal getChangeJournal() {
+        return changeJournal;
+    }
+
+    // Serves getAvailableRooms, and the popularity and next check-in columns of Rooms and
+    // Rates, from memory from now on. The index is rebuilt in the background once it is older
+    // than maxAgeMillis, since other clients may write to the tables directly.
+    public void enableAvailabilityIndex(long maxAgeMillis) throws SQLException {
+        enableAvailabilityIndex(maxAgeMillis, null);
+    }
+
+    // As above, with the occupancy bitmap kept in a memory-mapped file, so a restart reuses it
+    // after checking it against the table instead of reading every stay again
+    public void enableAvailabilityIndex(long maxAgeMillis, Path occupancyFile) throws SQLException {
+        availabilityIndexMaxAgeMillis = maxAgeMillis;
+        this.occupancyFile = occupancyFile;
+        rebuildAvailabilityIndex();
+    }
+
+    public void disableAvailabilityIndex() {
+        availabilityIndex = null;
+    }
+
+    public void rebuildAvailabilityIndex() throws SQLException {
+        long sequence = writeSequence.get();
+        ChangeJournal journal = changeJournal;
+        long journalSequence = journal == null ? -1 : journal.getLastSequence();
+        LocalDate today = LocalDate.now();
+        List<Room> rooms = getRooms();
+        // Reach back far enough to count popularity from the same bitmap
+        OccupancyBitmap occupancy = loadOccupancy(rooms, today.minusDays(OccupancyBitmap.POPULARITY_DAYS));
+        occupancy.setJournalSequence(journalSequence);
+        AvailabilityIndex index = new AvailabilityIndex(rooms, occupancy, today, availabilityIndexMaxAgeMillis);
+        // Publish before checking, so a write either reaches the new index or is detected here
+        availabilityIndex = index;
+        if (writeSequence.get() != sequence)
+            index.invalidate();
+    }
+
+    private OccupancyBitmap loadOccupancy(List<Room> rooms, LocalDate origin) throws SQLException {
+        List<String> codes = new ArrayList<>();
+        for (Room room : rooms)
+            codes.add(room.getCode());
+        Path file = occupancyFile;
+        if (file != null) {
+            synchronized (occupancyFileLock) {
+                try {
+                    return loadOccupancy(file, codes, origin);
+                } catch (IOException e) {
+                    // An unwritable or corrupt file only costs the fast restart
+                }
+            }
+        }
+        OccupancyBitmap occupancy = OccupancyBitmap.create(codes, origin, OccupancyBitmap.DEFAULT_DAYS);
+        occupancy.addAll(getReservationsEndingAfter(origin));
+        return occupancy;
+    }
+
+    // Reuses the file if it holds the same rooms, was anchored recently enough and matches the
+    // table's fingerprint, if need be after replaying the journal from where the file left
+    // off; otherwise writes a new one beside it and moves it into place
+    private OccupancyBitmap loadOccupancy(Path file, List<String> rooms, LocalDate origin) throws IOException, SQLException {
+        OccupancyBitmap saved = OccupancyBitmap.open(file);
+        // A stale file (one that ever held overlapping stays) can match the fingerprint with
+        // bits missing, so it is never reused
+        if (saved != null
+                && !saved.isStale()
+                && saved.getRooms().equals(rooms)
+                && !saved.getOrigin().isAfter(origin)
+                && saved.getOrigin().plusDays(OCCUPANCY_REANCHOR_DAYS).isAfter(origin)
+                && !saved.isClipped()) {
+            if (matchesTable(saved))
+                return saved;
+            ChangeJournal journal = changeJournal;
+            long next = saved.getJournalSequence() + 1;
+            if (journal != null && saved.getJournalSequence() >= 0 && next <= journal.getLastSequence() && journal.canReplayFrom(next)) {
+                journal.replay(next, change -> {
+                    change.applyTo(saved);
+                    saved.setJournalSequence(change.getSequence());
+                });
+                if (!saved.isStale() && matchesTable(saved))
+                    return saved;
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        OccupancyBitmap occupancy = OccupancyBitmap.create(temporary, rooms, origin, OccupancyBitmap.DEFAULT_DAYS);
+        occupancy.addAll(getReservationsEndingAfter(origin));
+        occupancy.force();
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return occupancy;
+    }
+
+    private boolean matchesTable(OccupancyBitmap occupancy) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            PreparedStatement pstmt = prepare(pc, OccupancyBitmap.FINGERPRINT_SQL);
+            pstmt.setDate(1, Date.valueOf(occupancy.getOrigin()));
+            try (ResultSet rs = execute(pstmt)) {
+                return rs.next() && rs.getLong("stays") == occupancy.getStayCount() && rs.getLong("checksum") == occupancy.getChecksum();
+            }
+        }
+    }
+
+    private void rebuildAvailabilityIndexInBackground() {
+        if (!indexRebuilding.compareAndSet(false, true))
+            return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (availabilityIndex != null)
+                    rebuildAvailabilityIndex();
+            } catch (SQLException e) {
+                // Searches keep using the database until a rebuild succeeds
+            } finally {
+                indexRebuilding.set(false);
+            }
+        });
+    }
+
+    // Serves getRevenue from a per-room, per-month rollup maintained from this handler's writes
+    public void enableRevenueRollup() throws SQLException {
+        rebuildRevenueRollup();
+    }
+
+    public void disableRevenueRollup() {
+        RevenueRollup rollup = revenueRollup;
+        revenueRollup = null;
+        if (rollup != null)
+            listeners.remove(rollup);
+    }
+
+    // Recomputes the rollup from the table, e.g. to reconcile after writes made by other clients
+    public void rebuildRevenueRollup() throws SQLException {
+        long sequence = writeSequence.get();
+        RevenueRollup rollup = new RevenueRollup(getAllReservations());
+        RevenueRollup previous = revenueRollup;
+        listeners.add(rollup);
+        revenueRollup = rollup;
+        if (previous != null)
+            listeners.remove(previous);
+        if (writeSequence.get() != sequence)
+            rollup.invalidate();
+    }
+
+    private void rebuildRevenueRollupInBackground() {
+        if (!rollupRebuilding.compareAndSet(false, true))
+            return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (revenueRollup != null)
+                    rebuildRevenueRollup();
+            } catch (SQLException e) {
+                // Reports keep using the database until a rebuild succeeds
+            } finally {
+                rollupRebuilding.set(false);
+            }
+        });
+    }
+
+    // Serves getRevenue (when there is no rollup) and getRoomStatistics from a columnar copy of
+    // every reservation, aggregated with parallel scans instead of queries against the tables
+    public void enableAnalyticsSnapshot() throws SQLException {
+        rebuildAnalyticsSnapshot();
+    }
+
+    public void disableAnalyticsSnapshot() {
+        ReservationSnapshot snapshot = analyticsSnapshot;
+        analyticsSnapshot = null;
+        if (snapshot != null)
+            listeners.remove(snapshot);
+    }
+
+    public void rebuildAnalyticsSnapshot() throws SQLException {
+        long sequence = writeSequence.get();
+        ReservationSnapshot snapshot = loadSnapshot(false);
+        ReservationSnapshot previous = analyticsSnapshot;
+        listeners.add(snapshot);
+        analyticsSnapshot = snapshot;
+        if (previous != null)
+            listeners.remove(previous);
+        if (writeSequence.get() != sequence)
+            snapshot.invalidate();
+    }
+
+    private void rebuildAnalyticsSnapshotInBackground() {
+        if (!snapshotRebuilding.compareAndSet(false, true))
+            return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (analyticsSnapshot != null)
+                    rebuildAnalyticsSnapshot();
+            } catch (SQLException e) {
+                // Reports keep using the database until a rebuild succeeds
+            } finally {
+                snapshotRebuilding.set(false);
+            }
+        });
+    }
+
+    // Streams only the five columns the snapshot keeps, straight into its arrays. A snapshot
+    // that will be kept current from listener events must load from the primary.
+    private ReservationSnapshot loadSnapshot(boolean fromReplica) throws SQLException {
+        List<String> rooms = new ArrayList<>();
+        for (Room room : getRooms())
+            rooms.add(room.getCode());
+        try (PooledConnection pc = fromReplica ? acquireForRead() : pool.acquire()) {
+            PreparedStatement pstmt = prepare(pc, SNAPSHOT_SQL);
+            pstmt.setFetchSize(fetchSize);
+            try (ResultSet rs = execute(pstmt)) {
+                return ReservationSnapshot.load(rooms, rs);
+            }
+        }
+    }
+
+    // Resolves guest name patterns in reservation searches (leading wildcards included) from
+    // memory, and serves findGuests' prefix and one-typo lookups
+    public void enableGuestNameIndex() throws SQLException {
+        rebuildGuestNameIndex();
+    }
+
+    public void disableGuestNameIndex() {
+        GuestNameIndex index = guestNameIndex;
+        guestNameIndex = null;
+        if (index != null)
+            listeners.remove(index);
+    }
+
+    public void rebuildGuestNameIndex() throws SQLException {
+        long sequence = writeSequence.get();
+        GuestNameIndex index = new GuestNameIndex();
+        try (PooledConnection pc = pool.acquire()) {
+            PreparedStatement pstmt = prepare(pc, GUEST_NAMES_SQL);
+            pstmt.setFetchSize(fetchSize);
+            try (ResultSet rs = execute(pstmt)) {
+                while (rs.next())
+                    index.add(rs.getInt("CODE"), rs.getString("FirstName"), rs.getString("LastName"));
+            }
+        }
+        GuestNameIndex previous = guestNameIndex;
+        listeners.add(index);
+        guestNameIndex = index;
+        if (previous != null)
+            listeners.remove(previous);
+        if (writeSequence.get() != sequence)
+            index.invalidate();
+    }
+
+    private void rebuildGuestNameIndexInBackground() {
+        if (!guestIndexRebuilding.compareAndSet(false, true))
+            return;
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (guestNameIndex != null)
+                    rebuildGuestNameIndex();
+            } catch (SQLException e) {
+                // Searches keep using the database until a rebuild succeeds
+            } finally {
+                guestIndexRebuilding.set(false);
+            }
+        });
+    }
+
+    // Sends the heavy read-only reports (Rooms and Rates when not cached, revenue when not held
+    // in memory, reservation searches and one-off statistics) to the replicas whenever one is
+    // no more than maxStalenessMillis behind and has every write made through this handler.
+    // Bookings, changes, cancellations, availability and the in-memory views' own loads stay on
+    // the primary. The replicas' pools are closed along with the handler.
+    public void enableReadReplicas(List<ConnectionPool> replicas, long maxStalenessMillis) {
+        ReplicaRouter previous = replicaRouter;
+        replicaRouter = new ReplicaRouter(pool, replicas, maxStalenessMillis);
+        if (previous != null)
+            previous.close();
+    }
+
+    public void disableReadReplicas() {
+        ReplicaRouter router = replicaRouter;
+        replicaRouter = null;
+        if (router != null)
+            router.close();
+    }
+
+    // Serves getRoomsAndRates from a per-room cache for the current date; writes made through
+    // this handler re-query only the rooms they touched
+    public void enableRoomsAndRatesCache() {
+        RoomsAndRatesCache cache = new RoomsAndRatesCache(this::loadRoomsAndRates);
+        listeners.add(cache);
+        roomsAndRatesCache = cache;
+    }
+
+    public void disableRoomsAndRatesCache() {
+        RoomsAndRatesCache cache = roomsAndRatesCache;
+        roomsAndRatesCache = null;
+        if (cache != null)
+            listeners.remove(cache);
+    }
+
+    // Reads lab7_rooms, refreshing the room catalog along the way
+    public List<Room> getRooms() throws SQLException {
+        return refreshRoomCatalog().getRooms();
+    }
+
+    // Loaded on first use and kept until refreshed
+    public RoomCatalog getRoomCatalog() throws SQLException {
+        RoomCatalog catalog = roomCatalog;
+        return catalog != null ? catalog : refreshRoomCatalog();
+    }
+
+    public RoomCatalog refreshRoomCatalog() throws SQLException {
+        try (PooledConnection pc = pool.acquire();
+             ResultSet rs = execute(prepare(pc, ROOMS_SQL))) {
+            List<Room> rooms = new ArrayList<>();
+            while (rs.next())
+                rooms.add(Room.from(rs));
+            RoomCatalog catalog = new RoomCatalog(rooms);
+            roomCatalog = catalog;
+            return catalog;
+        }
+    }
+
+    // Opens up to 'connections' pool connections, prepares the statements the desk and booking
+    // paths run on each of them, and loads the room catalog, so the first real request pays for
+    // none of it
+    public void warmUp(int connections) throws SQLException {
+        List<PooledConnection> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(connections, pool.getMaxSize()); ++i) {
+                PooledConnection pc = pool.acquire();
+                opened.add(pc);
+                for (String sql : WARM_STATEMENTS)
+                    pc.prepare(sql);
+            }
+        } finally {
+            for (PooledConnection pc : opened)
+                pc.close();
+        }
+        refreshRoomCatalog();
+    }
+
+    public List<Reservation> getReservationsEndingAfter(LocalDate date) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            PreparedStatement pstmt = prepare(pc, RESERVATIONS_ENDING_AFTER_SQL);
+            pstmt.setDate(1, java.sql.Date.valueOf(date));
+            try (ResultSet rs = execute(pstmt)) {
+                List<Reservation> reservations = new ArrayList<>();
+                while (rs.next())
+                    reservations.add(Reservation.from(rs));
+                return reservations;
+            }
+        }
+    }
+
+    public List<Reservation> getAllReservations() throws SQLException {
+        try (PooledConnection pc = pool.acquire();
+             ResultSet rs = execute(prepare(pc, ALL_RESERVATIONS_SQL))) {
+            List<Reservation> reservations = new ArrayList<>();
+            while (rs.next())
+                reservations.add(Reservation.from(rs));
+            return reservations;
+        }
+    }
+
+    private Reservation findReservation(PooledConnection pc, String code) throws SQLException {
+        PreparedStatement pstmt = prepare(pc, RESERVATION_SQL);
+        pstmt.setString(1, code);
+        try (ResultSet rs = execute(pstmt)) {
+            return rs.next() ? Reservation.from(rs) : null;
+        }
+    }
+
+    private boolean hasListeners() {
+        return availabilityIndex != null || changeJournal != null || !listeners.isEmpty();
+    }
+
+    private void recordWrite() {
+        writeSequence.incrementAndGet();
+        ReplicaRouter router = replicaRouter;
+        if (router != null)
+            router.recordWrite();
+    }
+
+    private PooledConnection acquireForRead() throws SQLException {
+        ReplicaRouter router = replicaRouter;
+        return router == null ? pool.acquire() : router.acquireForRead();
+    }
+
+    // With a journal, the change is recorded there first and reaches the availability index
+    // through the journal's subscription, so the bitmap knows the sequence it has applied
+    private void updateIndex(ChangeJournal.Type type, Reservation before, Reservation after) {
+        ChangeJournal journal = changeJournal;
+        if (journal != null) {
+            try {
+                journal.append(type, before, after);
+                return;
+            } catch (UncheckedIOException | IllegalStateException | IllegalArgumentException e) {
+                // No room for a new segment, a change too large for one, or closed meanwhile;
+                // the write itself has committed
+                if (changeJournal == journal)
+                    disableChangeJournal();
+            }
+        }
+        AvailabilityIndex index = availabilityIndex;
+        if (index != null) {
+            new ChangeJournal.Change(-1, type, before, after).applyTo(index);
+            index.getOccupancy().setJournalSequence(-1);
+        }
+    }
+
+    private void fireCreated(Reservation reservation) {
+        recordWrite();
+        if (reservation == null)
+            return;
+        updateIndex(ChangeJournal.Type.CREATED, null, reservation);
+        for (ReservationListener listener : listeners)
+            listener.reservationCreated(reservation);
+    }
+
+    private void fireChanged(Reservation before, Reservation after) {
+        recordWrite();
+        if (before == null || after == null)
+            return;
+        updateIndex(ChangeJournal.Type.CHANGED, before, after);
+        for (ReservationListener listener : listeners)
+            listener.reservationChanged(before, after);
+    }
+
+    private void fireCancelled(Reservation reservation) {
+        recordWrite();
+        if (reservation == null)
+            return;
+        updateIndex(ChangeJournal.Type.CANCELLED, reservation, null);
+        for (ReservationListener listener : listeners)
+            listener.reservationCancelled(reservation);
+    }
+
+    public CachedRowSet getRoomsAndRates() throws SQLException {
+        return getRoomsAndRates(RowSets::detach);
+    }
+
+    public <T> T getRoomsAndRates(ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.ROOMS_AND_RATES);
+        try {
+            T result = queryRoomsAndRates(handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private <T> T queryRoomsAndRates(ResultHandler<T> handler) throws SQLException {
+        RoomsAndRatesCache cache = roomsAndRatesCache;
+        if (cache != null) {
+            try (CachedRowSet crs = cache.get(LocalDate.now())) {
+                return fetch(handler, crs);
+            }
+        }
+        try (PooledConnection pc = acquireForRead()) {
+            OccupancyBitmap occupancy = currentOccupancy(LocalDate.now());
+            if (occupancy != null) {
+                try (CachedRowSet crs = roomsAndRates(pc, null, occupancy, LocalDate.now())) {
+                    return fetch(handler, crs);
+                }
+            }
+            PreparedStatement pstmt = prepare(pc, ROOMS_AND_RATES_SQL);
+            pstmt.setFetchSize(fetchSize);
+            try (ResultSet rs = execute(pstmt)) {
+                return fetch(handler, rs);
+            }
+        }
+    }
+
+    private CachedRowSet loadRoomsAndRates(String roomCode) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            OccupancyBitmap occupancy = currentOccupancy(LocalDate.now());
+            if (occupancy != null)
+                return roomsAndRates(pc, roomCode, occupancy, LocalDate.now());
+            PreparedStatement pstmt;
+            if (roomCode == null) {
+                pstmt = prepare(pc, ROOMS_AND_RATES_SQL);
+            } else {
+                pstmt = prepare(pc, ROOM_RATES_SQL);
+                for (int i = 1; i <= 4; ++i)
+                    pstmt.setString(i, roomCode);
+            }
+            try (ResultSet rs = execute(pstmt)) {
+                return RowSets.detach(rs);
+            }
+        }
+    }
+
+    // The live index's bitmap, if it is current and reaches back over the popularity window
+    private OccupancyBitmap currentOccupancy(LocalDate today) {
+        AvailabilityIndex index = availabilityIndex;
+        if (index == null || !index.covers(today))
+            return null;
+        OccupancyBitmap occupancy = index.getOccupancy();
+        if (occupancy.isClipped() || occupancy.getOrigin().isAfter(today.minusDays(OccupancyBitmap.POPULARITY_DAYS)))
+            return null;
+        return occupancy;
+    }
+
+    // Rooms and Rates with Popularity and NextCheckIn read from the bitmap; only the last
+    // completed stay, which may predate the bitmap, still comes from the table
+    private static CachedRowSet roomsAndRates(PooledConnection pc, String roomCode, OccupancyBitmap occupancy, LocalDate today) throws SQLException {
+        PreparedStatement pstmt;
+        if (roomCode == null) {
+            pstmt = prepare(pc, LAST_STAYS_SQL);
+        } else {
+            pstmt = prepare(pc, ROOM_LAST_STAY_SQL);
+            pstmt.setString(1, roomCode);
             pstmt.setString(2, roomCode);
-            pstmt.setString(3, checkIn);
-            pstmt.setString(4, checkOut);
-            pstmt.setString(5, rate);
-            pstmt.setString(6, lastName.toUpperCase(Locale.ROOT));
-            pstmt.setString(7, firstName.toUpperCase(Locale.ROOT));
-            pstmt.setString(8, numAdults);
-            pstmt.setString(9, numChildren);
-            pstmt.execute();
-            conn.commit();
-        } catch(SQLException e){
-            conn.rollback();
+        }
+        try (ResultSet rs = execute(pstmt)) {
+            String[] columns = RowSets.columnNames(rs.getMetaData());
+            int[] types = RowSets.columnTypes(rs.getMetaData());
+            // rooms.* and then the two last stay columns
+            int roomColumns = columns.length - 2;
+            String[] allColumns = new String[columns.length + 2];
+            int[] allTypes = new int[columns.length + 2];
+            System.arraycopy(columns, 0, allColumns, 0, roomColumns);
+            System.arraycopy(types, 0, allTypes, 0, roomColumns);
+            allColumns[roomColumns] = "Popularity";
+            allTypes[roomColumns] = Types.DECIMAL;
+            allColumns[roomColumns + 1] = "NextCheckIn";
+            allTypes[roomColumns + 1] = Types.DATE;
+            System.arraycopy(columns, roomColumns, allColumns, roomColumns + 2, 2);
+            System.arraycopy(types, roomColumns, allTypes, roomColumns + 2, 2);
+
+            List<Object[]> rows = new ArrayList<>();
+            int roomCodeColumn = rs.findColumn("RoomCode");
+            while (rs.next()) {
+                String room = rs.getString(roomCodeColumn);
+                Object[] row = new Object[allColumns.length];
+                for (int i = 0; i < roomColumns; ++i)
+                    row[i] = rs.getObject(i + 1);
+                Object lastStayDays = rs.getObject(roomColumns + 1);
+                Object lastStayCheckOut = rs.getObject(roomColumns + 2);
+                LocalDate nextCheckIn = occupancy.getNextCheckIn(room, today);
+                // A room that has never had a stay has no popularity, as in the SQL version
+                boolean neverBooked = lastStayCheckOut == null && nextCheckIn == null;
+                row[roomColumns] = neverBooked ? null : occupancy.getPopularity(room, today);
+                row[roomColumns + 1] = nextCheckIn == null ? null : Date.valueOf(nextCheckIn);
+                row[roomColumns + 2] = lastStayDays;
+                row[roomColumns + 3] = lastStayCheckOut;
+                rows.add(row);
+            }
+            // ORDER BY Popularity DESC, where NULL sorts last
+            int popularity = roomColumns;
+            Comparator<Object[]> byPopularity = Comparator.comparing(row -> (BigDecimal) row[popularity], Comparator.nullsFirst(Comparator.naturalOrder()));
+            rows.sort(byPopularity.reversed().thenComparing(row -> String.valueOf(row[roomCodeColumn - 1])));
+
+            CachedRowSet crs = RowSets.create(allColumns, allTypes);
+            for (Object[] row : rows)
+                RowSets.append(crs, row);
+            crs.beforeFirst();
+            return crs;
+        }
+    }
+
+    // With roomFilter set, every CTE and the outer query are restricted to one room (4 parameters)
+    private static String roomsAndRatesSql(boolean roomFilter) {
+        return "WITH\n" +
+                "    popularities AS (\n" +
+                "        SELECT Room, ROUND(SUM(GREATEST(DATEDIFF(LEAST(Checkout, CURDATE()), GREATEST(CheckIn, DATE_SUB(CURDATE(), INTERVAL 180 DAY))), 0))/180, 2) Popularity\n" +
+                "        FROM gholland.lab7_reservations\n" +
+                (roomFilter ? "        WHERE Room = ?\n" : "") +
+                "        GROUP BY Room\n" +
+                "    ),\n" +
+                "    checkIns AS (\n" +
+                "        SELECT Room, IFNULL(MIN(Checkout), CURDATE()) NextCheckIn\n" +
+                "        FROM gholland.lab7_reservations\n" +
+                "        WHERE Checkout >= CURDATE()\n" +
+                (roomFilter ? "        AND Room = ?\n" : "") +
+                "        AND CODE NOT IN (\n" +
+                "            SELECT r1.CODE\n" +
+                "            FROM gholland.lab7_reservations r1 JOIN gholland.lab7_reservations r2 USING (Room)\n" +
+                "            WHERE r1.Checkout = r2.CheckIn\n" +
+                (roomFilter ? "            AND Room = ?\n" : "") +
+                "        )\n" +
+                "        GROUP BY Room\n" +
+                "    ),\n" +
+                lastStaysCte(roomFilter) +
+                "SELECT rooms.*, Popularity, NextCheckIn, LastStayDays, LastStayCheckOut\n" +
+                "FROM gholland.lab7_rooms rooms LEFT JOIN popularities p ON RoomCode = p.Room LEFT JOIN checkIns c ON RoomCode = c.Room LEFT JOIN lastStays l ON RoomCode = l.Room\n" +
+                (roomFilter ? "WHERE RoomCode = ?\n" : "") +
+                "ORDER BY Popularity DESC;";
+    }
+
+    // Just the rooms and their last completed stays, for when the bitmap supplies the rest
+    // (2 parameters with roomFilter set)
+    private static String lastStaysSql(boolean roomFilter) {
+        return "WITH\n" +
+                lastStaysCte(roomFilter) +
+                "SELECT rooms.*, LastStayDays, LastStayCheckOut\n" +
+                "FROM gholland.lab7_rooms rooms LEFT JOIN lastStays l ON RoomCode = l.Room\n" +
+                (roomFilter ? "WHERE RoomCode = ?\n" : "") +
+                "ORDER BY RoomCode;";
+    }
+
+    private static String lastStaysCte(boolean roomFilter) {
+        return "    lastStays AS (\n" +
+                "        SELECT Room, DATEDIFF(LastStayCheckout, CheckIn) LastStayDays, LastStayCheckout\n" +
+                "        FROM gholland.lab7_reservations JOIN (\n" +
+                "            SELECT Room, MAX(Checkout) LastStayCheckout\n" +
+                "            FROM gholland.lab7_reservations\n" +
+                "            WHERE Checkout <= CURDATE()\n" +
+                (roomFilter ? "            AND Room = ?\n" : "") +
+                "            GROUP BY Room\n" +
+                "        ) maxCheckouts USING (Room)\n" +
+                "        WHERE Checkout = LastStayCheckout\n" +
+                "    )\n";
+    }
+
+    public int getMaxCapacity() throws SQLException {
+        return getRoomCatalog().getMaxCapacity();
+    }
+
+    public CachedRowSet getAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults) throws SQLException {
+        return getAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, RowSets::detach);
+    }
+
+    public <T> T getAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults, ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.AVAILABLE_ROOMS);
+        try {
+            T result = findAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
             throw e;
         }
     }
 
-    public boolean changeReservation(String changing, String firstName, String lastName, String beginDate, String endDate, String numChildren, String numAdults, String code) throws SQLException {
-        String sql;
-        if (!beginDate.equals("") || !endDate.equals("")) {
-            sql = "SELECT * FROM gholland.lab7_reservations r2\n" +
-                    "WHERE ((? > r2.CheckIn AND ? < r2.Checkout) OR (? > r2.CheckIn AND ? < r2.Checkout))\n" +
-                    "  AND r2.Room = (\n" +
-                    "     SELECT r1.Room FROM gholland.lab7_reservations r1\n" +
-                    "     WHERE r1.CODE = ?\n";
-
-            PreparedStatement pstmt = conn.prepareStatement(sql);
-            pstmt.setString(1, beginDate);
-            pstmt.setString(2, beginDate);
-            pstmt.setString(3, endDate);
-            pstmt.setString(4, endDate);
-            pstmt.setString(5, code);
-
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) return false;
-        }
-        switch (changing) {
-            case "1" -> {
-                sql = "UPDATE gholland.lab7_reservations SET firstname = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, firstName);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed first name to " + firstName);
-                } catch (SQLException e) {
-                    conn.rollback();
-                    throw e;
+    private <T> T findAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults, ResultHandler<T> handler) throws SQLException {
+        int occupants = Integer.parseInt(numChildren) + Integer.parseInt(numAdults);
+        LocalDate from;
+        LocalDate to;
+        try {
+            from = LocalDate.parse(checkIn);
+            to = LocalDate.parse(checkOut);
+        } catch (DateTimeParseException e) {
+            throw new SQLException("Dates must be YYYY-MM-DD", e);
+        }
+
+        AvailabilityIndex index = availabilityIndex;
+        if (index != null) {
+            if (index.covers(from, to)) {
+                List<Room> rooms = withoutHeld(index.findAvailable(from, to, occupants, roomCode, bedType), from, to);
+                try (CachedRowSet crs = availableRoomsRowSet(rooms, from, to)) {
+                    return fetch(handler, crs);
                 }
             }
-            case "2" -> {
-                sql = "UPDATE gholland.lab7_reservations SET lastname = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, lastName);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed last name to " + lastName);
-                } catch (SQLException e) {
-                    conn.rollback();
-                    throw e;
+            if (!from.isBefore(LocalDate.now()))
+                rebuildAvailabilityIndexInBackground();
+        }
+
+        // The database only says which rooms are taken; the catalog filters and StayPricing prices
+        List<Room> rooms = getRoomCatalog().matching(occupants, roomCode, bedType);
+        if (!rooms.isEmpty()) {
+            Set<String> occupied = new HashSet<>();
+            try (PooledConnection pc = pool.acquire()) {
+                PreparedStatement pstmt = prepare(pc, OCCUPIED_ROOMS_SQL);
+                pstmt.setDate(1, Date.valueOf(to));
+                pstmt.setDate(2, Date.valueOf(from));
+                try (ResultSet rs = execute(pstmt)) {
+                    while (rs.next())
+                        occupied.add(rs.getString("Room"));
                 }
             }
-            case "3" -> {
-                sql = "UPDATE gholland.lab7_reservations SET checkIn = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, beginDate);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed check in date to to " + beginDate);
-                } catch (SQLException e) {
-                    conn.rollback();
-                    throw e;
+            rooms.removeIf(room -> occupied.contains(room.getCode()));
+        }
+        try (CachedRowSet crs = availableRoomsRowSet(withoutHeld(rooms, from, to), from, to)) {
+            return fetch(handler, crs);
+        }
+    }
+
+    private List<Room> withoutHeld(List<Room> rooms, LocalDate from, LocalDate to) {
+        HeldStays held = heldStays;
+        if (held != null)
+            rooms.removeIf(room -> held.isHeld(room.getCode(), from, to));
+        return rooms;
+    }
+
+    // Same columns the SQL availability query used to return: rooms.*, UserCheckIn, UserCheckout, Cost
+    private CachedRowSet availableRoomsRowSet(List<Room> rooms, LocalDate from, LocalDate to) throws SQLException {
+        double[] basePrices = new double[rooms.size()];
+        for (int i = 0; i < basePrices.length; ++i)
+            basePrices[i] = rooms.get(i).getBasePrice();
+        double[] costs = StayPricing.getDefault().price(basePrices, from, to);
+
+        CachedRowSet crs = RowSets.create(
+                new String[] {"RoomCode", "RoomName", "Beds", "bedType", "maxOcc", "basePrice", "decor", "UserCheckIn", "UserCheckout", "Cost"},
+                new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.INTEGER, Types.DOUBLE, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.DOUBLE});
+        for (int i = 0; i < costs.length; ++i) {
+            Room room = rooms.get(i);
+            RowSets.append(crs, room.getCode(), room.getName(), room.getBeds(), room.getBedType(), room.getMaxOccupancy(), room.getBasePrice(), room.getDecor(),
+                    from.toString(), to.toString(), costs[i]);
+        }
+        crs.beforeFirst();
+        return crs;
+    }
+
+    // Compares StayPricing with the SQL expression it replaced, for every room over each
+    // [checkIns[i], checkOuts[i]) window. Returns one line per mismatch; empty means parity.
+    // PricingParityCheck runs it over a spread of stays.
+    public List<String> verifyPricingParity(LocalDate[] checkIns, LocalDate[] checkOuts) throws SQLException {
+        List<String> mismatches = new ArrayList<>();
+        try (PooledConnection pc = pool.acquire()) {
+            PreparedStatement pstmt = prepare(pc, PRICING_PARITY_SQL);
+            for (int i = 0; i < checkIns.length; ++i) {
+                Date in = Date.valueOf(checkIns[i]);
+                Date out = Date.valueOf(checkOuts[i]);
+                Date[] params = {out, in, out, out, in, in, in, out};
+                for (int p = 0; p < params.length; ++p)
+                    pstmt.setDate(p + 1, params[p]);
+                try (ResultSet rs = execute(pstmt)) {
+                    while (rs.next()) {
+                        double expected = rs.getBigDecimal("Cost").doubleValue();
+                        double actual = StayPricing.cost(rs.getDouble("basePrice"), checkIns[i], checkOuts[i]);
+                        if (expected != actual)
+                            mismatches.add(rs.getString("RoomCode") + " " + checkIns[i] + ".." + checkOuts[i] + ": SQL " + expected + ", Java " + actual);
+                    }
                 }
             }
-            case "4" -> {
-                sql = "UPDATE gholland.lab7_reservations SET checkOut = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, endDate);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed check out date to " + endDate);
-                } catch (SQLException e) {
+        }
+        return mismatches;
+    }
+
+    public CachedRowSet getSimilarRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults) throws SQLException {
+        return getSimilarRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, RowSets::detach);
+    }
+
+    // Alternatives for a search with no exact match, from SuggestionEngine. Same columns as the
+    // availability search except that each row carries its own CheckIn and Checkout.
+    public <T> T getSimilarRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults, ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.SIMILAR_ROOMS);
+        try {
+            T result = findSimilarRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private <T> T findSimilarRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults, ResultHandler<T> handler) throws SQLException {
+        int occupants = Integer.parseInt(numChildren) + Integer.parseInt(numAdults);
+        List<SuggestionEngine.Suggestion> suggestions = suggestRooms(roomCode, bedType, LocalDate.parse(checkIn), LocalDate.parse(checkOut), occupants,
+                SuggestionEngine.DEFAULT_MAX_SHIFT_DAYS, SuggestionEngine.DEFAULT_LIMIT);
+
+        try (CachedRowSet crs = RowSets.create(
+                new String[] {"RoomCode", "RoomName", "Beds", "bedType", "maxOcc", "basePrice", "decor", "CheckIn", "Checkout", "Cost"},
+                new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.INTEGER, Types.DOUBLE, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.DOUBLE})) {
+            HeldStays held = heldStays;
+            for (SuggestionEngine.Suggestion suggestion : suggestions) {
+                Room room = suggestion.getRoom();
+                if (held != null && held.isHeld(room.getCode(), suggestion.getCheckIn(), suggestion.getCheckout()))
+                    continue;
+                RowSets.append(crs, room.getCode(), room.getName(), room.getBeds(), room.getBedType(), room.getMaxOccupancy(), room.getBasePrice(), room.getDecor(),
+                        suggestion.getCheckIn().toString(), suggestion.getCheckout().toString(), suggestion.getCost());
+            }
+            crs.beforeFirst();
+            return fetch(handler, crs);
+        }
+    }
+
+    // Uses the live availability index when it is current, otherwise a one-off snapshot
+    public List<SuggestionEngine.Suggestion> suggestRooms(String roomCode, String bedType, LocalDate checkIn, LocalDate checkOut, int occupants, int maxShiftDays, int limit) throws SQLException {
+        LocalDate today = LocalDate.now();
+        AvailabilityIndex index = availabilityIndex;
+        if (index == null || !index.covers(today))
+            index = new AvailabilityIndex(getRooms(), getReservationsEndingAfter(today), today, Long.MAX_VALUE);
+        return new SuggestionEngine(index).suggest(roomCode, bedType, checkIn, checkOut, occupants, maxShiftDays, limit);
+    }
+
+    // Books one stay through the same locked check as bookReservations
+    public int createReservation(String roomCode, String checkIn, String checkOut, String rate, String lastName, String firstName, String numAdults, String numChildren) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.CREATE_RESERVATION);
+        try {
+            Reservation booking;
+            try {
+                booking = new Reservation(0, roomCode, LocalDate.parse(checkIn), LocalDate.parse(checkOut), Double.parseDouble(rate),
+                        lastName, firstName, Integer.parseInt(numAdults), Integer.parseInt(numChildren));
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new SQLException("Invalid reservation: " + e.getMessage(), e);
+            }
+            // Rejected bookings fail like the INSERT they replaced did, so callers catching
+            // SQLException see every refusal
+            ImportReport.Outcome outcome = insertBookings(List.of(booking)).getOutcomes().get(0);
+            if (outcome.getStatus() != ImportReport.Status.ACCEPTED)
+                throw new SQLException(outcome.getMessage());
+            OperationMetrics.finish(start, 1);
+            return outcome.getCode();
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    // Group commit: inserts every acceptable booking in one transaction with one batch and one
+    // commit. Rows are numbered from 1 in list order and incoming codes are ignored. Each room
+    // row is locked first, in room code order so concurrent groups and changeReservation can't
+    // deadlock, and each booking is then checked against the stays already in the room and the
+    // bookings before it in the list. Bookings that overlap or fail validation are reported
+    // and left out; the rest still commit.
+    public ImportReport bookReservations(List<Reservation> bookings) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.BOOK_RESERVATIONS);
+        try {
+            ImportReport result = insertBookings(bookings);
+            OperationMetrics.finish(start, result.count(ImportReport.Status.ACCEPTED));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private ImportReport insertBookings(List<Reservation> bookings) throws SQLException {
+        ImportReport report = new ImportReport();
+        if (bookings.isEmpty())
+            return report;
+        // Allocated before checking out a connection, since a block refill needs one of its own
+        int[] codes = new int[bookings.size()];
+        for (int i = 0; i < codes.length; ++i)
+            codes[i] = codeAllocator.next();
+
+        List<Reservation> accepted = new ArrayList<>();
+        List<Integer> acceptedRows = new ArrayList<>();
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                Map<String, Integer> maxOccupancy = lockRooms(pc, bookings);
+
+                Map<String, List<Reservation>> booked = new HashMap<>();
+                for (int i = 0; i < bookings.size(); ++i) {
+                    Reservation booking = bookings.get(i);
+                    int row = i + 1;
+                    int maxOcc = maxOccupancy.get(booking.getRoom());
+                    if (maxOcc < 0) {
+                        report.add(row, ImportReport.Status.INVALID, 0, "Unknown room " + booking.getRoom());
+                        continue;
+                    }
+                    if (booking.getCheckIn() == null || booking.getCheckout() == null || booking.getLastName() == null || booking.getFirstName() == null) {
+                        report.add(row, ImportReport.Status.INVALID, 0, "Dates and guest first and last name are required");
+                        continue;
+                    }
+                    Reservation reservation = new Reservation(codes[i],
+                            booking.getRoom(),
+                            booking.getCheckIn(),
+                            booking.getCheckout(),
+                            booking.getRate(),
+                            booking.getLastName().toUpperCase(Locale.ROOT),
+                            booking.getFirstName().toUpperCase(Locale.ROOT),
+                            booking.getAdults(),
+                            booking.getKids());
+                    String problem = validateChange(reservation, maxOcc);
+                    if (problem == null && reservation.getRate() <= 0)
+                        problem = "Rate must be positive";
+                    if (problem != null) {
+                        report.add(row, ImportReport.Status.INVALID, 0, problem);
+                        continue;
+                    }
+
+                    String conflict = null;
+                    for (Reservation other : booked.getOrDefault(reservation.getRoom(), List.of())) {
+                        if (other.getCheckIn().isBefore(reservation.getCheckout()) && other.getCheckout().isAfter(reservation.getCheckIn()))
+                            conflict = "Room " + reservation.getRoom() + " is already booked between " + other.getCheckIn() + " and " + other.getCheckout();
+                    }
+                    if (conflict == null)
+                        conflict = findOverlap(pc, reservation);
+                    if (conflict != null) {
+                        report.add(row, ImportReport.Status.CONFLICTING, 0, conflict);
+                        continue;
+                    }
+                    booked.computeIfAbsent(reservation.getRoom(), room -> new ArrayList<>()).add(reservation);
+                    accepted.add(reservation);
+                    acceptedRows.add(row);
+                }
+
+                if (accepted.isEmpty()) {
                     conn.rollback();
-                    throw e;
+                    return report;
+                }
+                PreparedStatement pstmt = prepare(pc, INSERT_RESERVATION_SQL);
+                for (Reservation reservation : accepted) {
+                    pstmt.setInt(1, reservation.getCode());
+                    pstmt.setString(2, reservation.getRoom());
+                    pstmt.setDate(3, Date.valueOf(reservation.getCheckIn()));
+                    pstmt.setDate(4, Date.valueOf(reservation.getCheckout()));
+                    pstmt.setDouble(5, reservation.getRate());
+                    pstmt.setString(6, reservation.getLastName());
+                    pstmt.setString(7, reservation.getFirstName());
+                    pstmt.setInt(8, reservation.getAdults());
+                    pstmt.setInt(9, reservation.getKids());
+                    pstmt.addBatch();
+                }
+                updateBatch(pstmt);
+                commit(conn);
+            } catch (SQLException e) {
+                conn.rollback();
+                prepare(pc, INSERT_RESERVATION_SQL).clearBatch();
+                throw e;
+            }
+        }
+        for (int i = 0; i < accepted.size(); ++i) {
+            report.add(acceptedRows.get(i), ImportReport.Status.ACCEPTED, accepted.get(i).getCode(), null);
+            fireCreated(accepted.get(i));
+        }
+        return report;
+    }
+
+    // Locks each room the reservations are for, in room code order so concurrent writers can't
+    // deadlock, and returns each room's maximum occupancy, -1 for rooms that don't exist
+    private static Map<String, Integer> lockRooms(PooledConnection pc, List<Reservation> reservations) throws SQLException {
+        Map<String, Integer> maxOccupancy = new TreeMap<>();
+        for (Reservation reservation : reservations)
+            maxOccupancy.put(reservation.getRoom(), null);
+        for (Map.Entry<String, Integer> room : maxOccupancy.entrySet()) {
+            PreparedStatement pstmt = prepare(pc, LOCK_ROOM_SQL);
+            pstmt.setString(1, room.getKey());
+            try (ResultSet rs = execute(pstmt)) {
+                room.setValue(rs.next() ? rs.getInt("maxOcc") : -1);
+            }
+        }
+        return maxOccupancy;
+    }
+
+    // A description of a stay already in the database overlapping the reservation, or null
+    private static String findOverlap(PooledConnection pc, Reservation reservation) throws SQLException {
+        PreparedStatement pstmt = prepare(pc, OVERLAPPING_STAYS_SQL);
+        pstmt.setString(1, reservation.getRoom());
+        pstmt.setInt(2, reservation.getCode());
+        pstmt.setDate(3, Date.valueOf(reservation.getCheckout()));
+        pstmt.setDate(4, Date.valueOf(reservation.getCheckIn()));
+        try (ResultSet rs = execute(pstmt)) {
+            return rs.next() ? "Room " + reservation.getRoom() + " is already booked between " + rs.getDate("CheckIn") + " and " + rs.getDate("Checkout") : null;
+        }
+    }
+
+    // Validates each reservation against the rooms and every stay ending after today, including
+    // the rows accepted earlier in the same import, then inserts the accepted ones with one
+    // JDBC batch and one commit per commitInterval rows. Incoming codes are ignored; accepted
+    // rows get fresh ones. With MySQL Connector/J, add rewriteBatchedStatements=true to the
+    // URL so each batch goes over the wire as a single multi-row INSERT.
+    public ImportReport importReservations(Stream<Reservation> reservations, int commitInterval) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.IMPORT_RESERVATIONS);
+        try {
+            ImportReport result = importAll(reservations, commitInterval);
+            OperationMetrics.finish(start, result.count(ImportReport.Status.ACCEPTED));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private ImportReport importAll(Stream<Reservation> reservations, int commitInterval) throws SQLException {
+        if (commitInterval < 1)
+            throw new IllegalArgumentException("Commit interval must be at least 1");
+        LocalDate today = LocalDate.now();
+        AvailabilityIndex index = new AvailabilityIndex(getRooms(), getReservationsEndingAfter(today), today, Long.MAX_VALUE);
+        ImportReport report = new ImportReport();
+        List<Reservation> batch = new ArrayList<>(commitInterval);
+        List<Integer> batchRows = new ArrayList<>(commitInterval);
+
+        int row = 0;
+        Iterator<Reservation> it = reservations.iterator();
+        while (it.hasNext()) {
+            Reservation reservation = it.next();
+            ++row;
+            String problem = validateImport(reservation, index.getRoom(reservation.getRoom()), today);
+            if (problem != null) {
+                report.add(row, ImportReport.Status.INVALID, 0, problem);
+                continue;
+            }
+            if (!index.isFree(reservation.getRoom(), reservation.getCheckIn(), reservation.getCheckout())) {
+                report.add(row, ImportReport.Status.CONFLICTING, 0, "Room " + reservation.getRoom() + " is already booked between " + reservation.getCheckIn() + " and " + reservation.getCheckout());
+                continue;
+            }
+
+            Reservation accepted = new Reservation(codeAllocator.next(),
+                    reservation.getRoom(),
+                    reservation.getCheckIn(),
+                    reservation.getCheckout(),
+                    reservation.getRate(),
+                    reservation.getLastName().toUpperCase(Locale.ROOT),
+                    reservation.getFirstName().toUpperCase(Locale.ROOT),
+                    reservation.getAdults(),
+                    reservation.getKids());
+            index.reservationCreated(accepted);
+            batch.add(accepted);
+            batchRows.add(row);
+            if (batch.size() == commitInterval) {
+                insertBatch(batch, batchRows, index, report);
+                batch.clear();
+                batchRows.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            insertBatch(batch, batchRows, index, report);
+        return report;
+    }
+
+    private static String validateImport(Reservation reservation, Room room, LocalDate today) {
+        if (room == null)
+            return "Unknown room " + reservation.getRoom();
+        if (reservation.getCheckIn() == null || reservation.getCheckout() == null || !reservation.getCheckIn().isBefore(reservation.getCheckout()))
+            return "Check-out must be after check-in";
+        if (!reservation.getCheckout().isAfter(today))
+            return "Stay has already ended";
+        if (reservation.getAdults() < 1 || reservation.getKids() < 0)
+            return "At least one adult is required";
+        if (reservation.getAdults() + reservation.getKids() > room.getMaxOccupancy())
+            return "Room " + room.getCode() + " holds at most " + room.getMaxOccupancy() + " guests";
+        if (reservation.getLastName() == null || reservation.getLastName().isBlank() || reservation.getFirstName() == null || reservation.getFirstName().isBlank())
+            return "Guest first and last name are required";
+        if (reservation.getRate() <= 0)
+            return "Rate must be positive";
+        return null;
+    }
+
+    // The index the import checks against was loaded when it started, so each batch locks its
+    // rooms and re-checks every row against the database before inserting; rows somebody else
+    // has booked over since are reported CONFLICTING. A batch the database refuses is rolled
+    // back as a whole and its rows reported invalid.
+    private void insertBatch(List<Reservation> batch, List<Integer> rows, AvailabilityIndex index, ImportReport report) throws SQLException {
+        List<Reservation> accepted = new ArrayList<>(batch.size());
+        List<Integer> acceptedRows = new ArrayList<>(batch.size());
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                lockRooms(pc, batch);
+                List<String> conflicts = new ArrayList<>(batch.size());
+                for (Reservation reservation : batch)
+                    conflicts.add(findOverlap(pc, reservation));
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (conflicts.get(i) == null) {
+                        accepted.add(batch.get(i));
+                        acceptedRows.add(rows.get(i));
+                    }
+                }
+
+                if (!accepted.isEmpty()) {
+                    PreparedStatement pstmt = prepare(pc, INSERT_RESERVATION_SQL);
+                    for (Reservation reservation : accepted) {
+                        pstmt.setInt(1, reservation.getCode());
+                        pstmt.setString(2, reservation.getRoom());
+                        pstmt.setDate(3, java.sql.Date.valueOf(reservation.getCheckIn()));
+                        pstmt.setDate(4, java.sql.Date.valueOf(reservation.getCheckout()));
+                        pstmt.setDouble(5, reservation.getRate());
+                        pstmt.setString(6, reservation.getLastName());
+                        pstmt.setString(7, reservation.getFirstName());
+                        pstmt.setInt(8, reservation.getAdults());
+                        pstmt.setInt(9, reservation.getKids());
+                        pstmt.addBatch();
+                    }
+                    updateBatch(pstmt);
+                }
+                commit(conn);
+
+                for (int i = 0; i < batch.size(); ++i) {
+                    if (conflicts.get(i) != null) {
+                        index.reservationCancelled(batch.get(i));
+                        report.add(rows.get(i), ImportReport.Status.CONFLICTING, 0, conflicts.get(i));
+                    }
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                prepare(pc, INSERT_RESERVATION_SQL).clearBatch();
+                for (int i = 0; i < batch.size(); ++i) {
+                    index.reservationCancelled(batch.get(i));
+                    report.add(rows.get(i), ImportReport.Status.INVALID, 0, e.getMessage());
                 }
+                return;
             }
-            case "5" -> {
-                sql = "UPDATE gholland.lab7_reservations SET kids = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, numChildren);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed number of children to " + numChildren);
-                } catch (SQLException e) {
+        }
+        for (int i = 0; i < accepted.size(); ++i) {
+            report.add(acceptedRows.get(i), ImportReport.Status.ACCEPTED, accepted.get(i).getCode(), null);
+            fireCreated(accepted.get(i));
+        }
+    }
+
+    public Reservation getReservation(String code) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            return findReservation(pc, code);
+        }
+    }
+
+    // Applies every field of the change in one transaction and one UPDATE. The reservation's
+    // room row is locked first, so changes to stays in the same room queue up behind each other
+    // instead of each passing its overlap check and then double-booking. The reservation row
+    // and the overlap check are locking reads, so the check also holds off a concurrent insert
+    // into the new date range until this transaction commits.
+    public ReservationChange.Result changeReservation(ReservationChange change) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.CHANGE_RESERVATION);
+        try {
+            ReservationChange.Result result = applyChange(change);
+            OperationMetrics.finish(start, result.getStatus() == ReservationChange.Status.CHANGED ? 1 : 0);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private ReservationChange.Result applyChange(ReservationChange change) throws SQLException {
+        String code = String.valueOf(change.getCode());
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                Reservation seen = findReservation(pc, code);
+                if (seen == null)
+                    return new ReservationChange.Result(ReservationChange.Status.NOT_FOUND, null, "No reservation " + code);
+
+                PreparedStatement pstmt = prepare(pc, LOCK_ROOM_SQL);
+                pstmt.setString(1, seen.getRoom());
+                int maxOccupancy;
+                try (ResultSet rs = execute(pstmt)) {
+                    maxOccupancy = rs.next() ? rs.getInt("maxOcc") : Integer.MAX_VALUE;
+                }
+
+                pstmt = prepare(pc, LOCK_RESERVATION_SQL);
+                pstmt.setString(1, code);
+                Reservation current;
+                try (ResultSet rs = execute(pstmt)) {
+                    current = rs.next() ? Reservation.from(rs) : null;
+                }
+                if (current == null) {
                     conn.rollback();
-                    throw e;
+                    return new ReservationChange.Result(ReservationChange.Status.NOT_FOUND, null, "No reservation " + code);
                 }
+                if (!change.isCurrent(current)) {
+                    conn.rollback();
+                    return new ReservationChange.Result(ReservationChange.Status.STALE, current, "Reservation " + code + " was changed by someone else");
+                }
+                if (change.isEmpty()) {
+                    conn.rollback();
+                    return new ReservationChange.Result(ReservationChange.Status.CHANGED, current, null);
+                }
+
+                Reservation after = change.applyTo(current);
+                String problem = validateChange(after, maxOccupancy);
+                if (problem != null) {
+                    conn.rollback();
+                    return new ReservationChange.Result(ReservationChange.Status.INVALID, current, problem);
+                }
+
+                if (change.changesDates()) {
+                    pstmt = prepare(pc, OVERLAPPING_STAYS_SQL);
+                    pstmt.setString(1, after.getRoom());
+                    pstmt.setInt(2, after.getCode());
+                    pstmt.setDate(3, Date.valueOf(after.getCheckout()));
+                    pstmt.setDate(4, Date.valueOf(after.getCheckIn()));
+                    try (ResultSet rs = execute(pstmt)) {
+                        if (rs.next()) {
+                            conn.rollback();
+                            return new ReservationChange.Result(ReservationChange.Status.CONFLICTING, current,
+                                    "Room " + after.getRoom() + " is already booked between " + rs.getDate("CheckIn") + " and " + rs.getDate("Checkout"));
+                        }
+                    }
+                }
+
+                pstmt = prepare(pc, UPDATE_RESERVATION_SQL);
+                pstmt.setString(1, after.getFirstName());
+                pstmt.setString(2, after.getLastName());
+                pstmt.setDate(3, Date.valueOf(after.getCheckIn()));
+                pstmt.setDate(4, Date.valueOf(after.getCheckout()));
+                pstmt.setInt(5, after.getKids());
+                pstmt.setInt(6, after.getAdults());
+                pstmt.setInt(7, after.getCode());
+                update(pstmt);
+                commit(conn);
+                fireChanged(current, after);
+                return new ReservationChange.Result(ReservationChange.Status.CHANGED, after, null);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
             }
-            case "6" -> {
-                sql = "UPDATE gholland.lab7_reservations SET adults = ? WHERE code = ?";
-                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-                    pstmt.setString(1, numAdults);
-                    pstmt.setString(2, code);
-                    pstmt.executeUpdate();
-                    conn.commit();
-                    System.out.println("Successfully changed number of adults to " + numAdults);
-                } catch (SQLException e) {
+        }
+    }
+
+    private static String validateChange(Reservation reservation, int maxOccupancy) {
+        if (!reservation.getCheckIn().isBefore(reservation.getCheckout()))
+            return "Check-out must be after check-in";
+        if (reservation.getAdults() < 1 || reservation.getKids() < 0)
+            return "At least one adult is required";
+        if (reservation.getAdults() + reservation.getKids() > maxOccupancy)
+            return "Room " + reservation.getRoom() + " holds at most " + maxOccupancy + " guests";
+        if (reservation.getLastName().isBlank() || reservation.getFirstName().isBlank())
+            return "Guest first and last name are required";
+        return null;
+    }
+
+    // False if there was no such reservation
+    public boolean cancelReservation(String code) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.CANCEL_RESERVATION);
+        try {
+            boolean cancelled = deleteReservation(code);
+            OperationMetrics.finish(start, cancelled ? 1 : 0);
+            return cancelled;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    // The row is read with a lock in the same transaction, so listeners are told about the
+    // reservation as it was deleted even if a change committed just before
+    private boolean deleteReservation(String code) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                // Only listeners need the row; the DELETE's count says whether there was one
+                Reservation cancelled = null;
+                PreparedStatement pstmt;
+                if (hasListeners()) {
+                    pstmt = prepare(pc, LOCK_RESERVATION_SQL);
+                    pstmt.setString(1, code);
+                    try (ResultSet rs = execute(pstmt)) {
+                        cancelled = rs.next() ? Reservation.from(rs) : null;
+                    }
+                    if (cancelled == null) {
+                        conn.rollback();
+                        return false;
+                    }
+                }
+                pstmt = prepare(pc, DELETE_RESERVATION_SQL);
+                pstmt.setString(1, code);
+                if (update(pstmt) == 0) {
                     conn.rollback();
-                    throw e;
+                    return false;
+                }
+                commit(conn);
+                fireCancelled(cancelled);
+                return true;
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    public CachedRowSet getMatchingReservations(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode) throws SQLException {
+        return getMatchingReservations(firstName, lastName, beginDate, endDate, roomCode, reservationCode, RowSets::detach);
+    }
+
+    // Every match at once; desk lookups should page with searchReservations instead
+    public <T> T getMatchingReservations(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode, ResultHandler<T> handler) throws SQLException {
+        return searchReservations(ReservationSearch.of(firstName, lastName, beginDate, endDate, roomCode, reservationCode).pageSize(0), handler);
+    }
+
+    public <T> T searchReservations(ReservationSearch search, ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.SEARCH_RESERVATIONS);
+        try {
+            T result = querySearch(search, handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private <T> T querySearch(ReservationSearch search, ResultHandler<T> handler) throws SQLException {
+        // A LIKE on a name can't use the name indexes unless it starts with a literal; the
+        // guest index matches it against distinct names and hands the database a code list
+        GuestNameIndex names = guestNameIndex;
+        if (names != null && search.hasNamePattern()) {
+            if (names.isStale()) {
+                rebuildGuestNameIndexInBackground();
+            } else {
+                int[] codes = names.codesMatching(search.getFirstName(), search.getLastName(), MAX_NAME_PATTERN_CODES);
+                if (codes != null)
+                    search = search.withCodesForNames(codes);
+            }
+        }
+
+        try (PooledConnection pc = acquireForRead()) {
+            PreparedStatement pstmt = prepare(pc, search.toSql());
+            search.bind(pstmt);
+            pstmt.setFetchSize(fetchSize);
+
+            try (ResultSet rs = execute(pstmt)) {
+                return fetch(handler, rs);
+            }
+        }
+    }
+
+    public CachedRowSet findGuests(String firstName, String lastName, int limit) throws SQLException {
+        return findGuests(firstName, lastName, limit, RowSets::detach);
+    }
+
+    // Reservations whose guest names match exactly, by prefix or with one typo, best matches
+    // first; blank names match anyone. Without a current guest index, falls back to a prefix
+    // search in the database.
+    public <T> T findGuests(String firstName, String lastName, int limit, ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.FIND_GUESTS);
+        try {
+            T result = queryGuests(firstName, lastName, limit, handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private <T> T queryGuests(String firstName, String lastName, int limit, ResultHandler<T> handler) throws SQLException {
+        GuestNameIndex names = guestNameIndex;
+        if (names == null || names.isStale()) {
+            if (names != null)
+                rebuildGuestNameIndexInBackground();
+            ReservationSearch search = new ReservationSearch()
+                    .firstName(firstName == null || firstName.isBlank() ? null : firstName.trim() + "%")
+                    .lastName(lastName == null || lastName.isBlank() ? null : lastName.trim() + "%")
+                    .pageSize(limit);
+            return querySearch(search, handler);
+        }
+
+        List<GuestNameIndex.Match> matches = names.lookup(firstName, lastName, limit);
+        int[] codes = new int[matches.size()];
+        for (int i = 0; i < codes.length; ++i)
+            codes[i] = matches.get(i).getCode();
+        try (CachedRowSet found = querySearch(new ReservationSearch().codes(codes).pageSize(0), RowSets::detach)) {
+            String[] columns = RowSets.columnNames(found.getMetaData());
+            int[] types = RowSets.columnTypes(found.getMetaData());
+            Map<Integer, Object[]> rows = new HashMap<>();
+            int codeColumn = found.findColumn("CODE");
+            while (found.next()) {
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < row.length; ++i)
+                    row[i] = found.getObject(i + 1);
+                rows.put(found.getInt(codeColumn), row);
+            }
+            // Back into rank order; a code cancelled since the lookup simply drops out
+            try (CachedRowSet ranked = RowSets.create(columns, types)) {
+                for (int code : codes) {
+                    Object[] row = rows.get(code);
+                    if (row != null)
+                        RowSets.append(ranked, row);
                 }
+                ranked.beforeFirst();
+                return fetch(handler, ranked);
             }
         }
-        return true;
     }
 
-    public void cancelReservation(String code) throws SQLException {
-        String sql = "DELETE FROM gholland.lab7_reservations WHERE Code = ?";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, code);
-            pstmt.execute();
-            conn.commit();
-        } catch(SQLException e) {
-            conn.rollback();
+    public CachedRowSet getRevenue() throws SQLException {
+        return getRevenue(RowSets::detach);
+    }
+
+    public <T> T getRevenue(ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.REVENUE);
+        try {
+            T result = queryRevenue(handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
             throw e;
         }
     }
 
-    public ResultSet getMatchingReservations(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode) throws SQLException {
-        String sql =
-                "SELECT CODE, Room, RoomName, CheckIn, Checkout, LastName, FirstName, Rate, Adults, Kids, maxOcc\n" +
-                        "FROM gholland.lab7_reservations reservations JOIN gholland.lab7_rooms rooms ON Room = RoomCode\n" +
-                        "WHERE (FirstName LIKE ? OR ?)\n" +
-                        "  AND (LastName LIKE ? OR ?)\n" +
-                        "  AND (CheckIn = ? OR ?)\n" +
-                        "  AND (Checkout = ? OR ?)\n" +
-                        "  AND (RoomCode LIKE ? OR ?)\n" +
-                        "  AND (CODE LIKE ? OR ?)\n;";
-
-        PreparedStatement pstmt = conn.prepareStatement(sql);
-        pstmt.setString(1, firstName);
-        pstmt.setBoolean(2, firstName.equals("Any") || firstName.equals(""));
-        pstmt.setString(3, lastName);
-        pstmt.setBoolean(4, lastName.equals("Any") || lastName.equals(""));
-        pstmt.setString(5, beginDate);
-        pstmt.setBoolean(6, beginDate.equals("Any") || beginDate.equals(""));
-        pstmt.setString(7, endDate);
-        pstmt.setBoolean(8, endDate.equals("Any") || endDate.equals(""));
-        pstmt.setString(9, roomCode);
-        pstmt.setBoolean(10, roomCode.equals("Any") || roomCode.equals(""));
-        pstmt.setString(11, reservationCode);
-        pstmt.setBoolean(12, reservationCode.equals("Any") || reservationCode.equals(""));
-
-        return pstmt.executeQuery();
-    }
-
-    public ResultSet getRevenue() throws SQLException {
-        String sql =
-                "WITH revenues AS (\n" +
-                        "    SELECT \n" +
-                        "        Room,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-02-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-01-01'))), 0))) January,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-03-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-02-01'))), 0))) February,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-04-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-03-01'))), 0))) March,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-05-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-04-01'))), 0))) April,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-06-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-05-01'))), 0))) May,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-07-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-06-01'))), 0))) June,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-08-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-07-01'))), 0))) July,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-09-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-08-01'))), 0))) August,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-10-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-09-01'))), 0))) September,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-11-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-10-01'))), 0))) October,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE()), '-12-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-11-01'))), 0))) November,\n" +
-                        "        ROUND(SUM(Rate * GREATEST(DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE())+1, '-01-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-12-01'))), 0))) December,\n" +
-                        "        ROUND(SUM(Rate * DATEDIFF(LEAST(Checkout, CONCAT(YEAR(CURDATE())+1, '-01-01')), GREATEST(CheckIn, CONCAT(YEAR(CURDATE()), '-01-01'))))) Total\n" +
-                        "    FROM gholland.lab7_reservations\n" +
-                        "    WHERE YEAR(CURDATE()) BETWEEN YEAR(CheckIn) AND YEAR(Checkout)\n" +
-                        "    GROUP BY Room\n" +
-                        ")\n" +
-                        "SELECT *\n" +
-                        "FROM (\n" +
-                        "    (SELECT * FROM revenues) \n" +
-                        "    UNION ALL \n" +
-                        "    (SELECT 'All Rooms', SUM(January), SUM(February), SUM(March), SUM(April), SUM(May), SUM(June), SUM(July), SUM(August), SUM(September), SUM(October), SUM(November), SUM(December), SUM(Total) FROM revenues)\n" +
-                        ") result\n";
-        Statement statement = conn.createStatement();
-
-        return statement.executeQuery(sql);
+    private <T> T queryRevenue(ResultHandler<T> handler) throws SQLException {
+        RevenueRollup rollup = revenueRollup;
+        if (rollup != null) {
+            if (!rollup.isStale()) {
+                try (CachedRowSet crs = revenueRowSet(rollup.getYear(LocalDate.now().getYear()))) {
+                    return fetch(handler, crs);
+                }
+            }
+            rebuildRevenueRollupInBackground();
+        }
+        ReservationSnapshot snapshot = analyticsSnapshot;
+        if (rollup == null && snapshot != null) {
+            if (!snapshot.isStale()) {
+                try (CachedRowSet crs = revenueRowSet(snapshot.getYear(LocalDate.now().getYear()))) {
+                    return fetch(handler, crs);
+                }
+            }
+            rebuildAnalyticsSnapshotInBackground();
+        }
+
+        try (PooledConnection pc = acquireForRead()) {
+            PreparedStatement pstmt = prepare(pc, REVENUE_SQL);
+            pstmt.setFetchSize(fetchSize);
+            try (ResultSet rs = execute(pstmt)) {
+                return fetch(handler, rs);
+            }
+        }
+    }
+
+    public CachedRowSet getRoomStatistics(LocalDate from, LocalDate to) throws SQLException {
+        return getRoomStatistics(from, to, RowSets::detach);
+    }
+
+    // Per room over [from, to): stays, nights booked, occupancy, revenue and the popularity score
+    // as of 'to'. Uses the analytics snapshot if enabled; otherwise loads a temporary one.
+    public <T> T getRoomStatistics(LocalDate from, LocalDate to, ResultHandler<T> handler) throws SQLException {
+        long start = OperationMetrics.begin(OperationMetrics.Operation.ROOM_STATISTICS);
+        try {
+            T result = computeRoomStatistics(from, to, handler);
+            OperationMetrics.finish(start, rowCount(result));
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            OperationMetrics.fail(start);
+            throw e;
+        }
+    }
+
+    private <T> T computeRoomStatistics(LocalDate from, LocalDate to, ResultHandler<T> handler) throws SQLException {
+        if (!to.isAfter(from))
+            throw new IllegalArgumentException("The end date must be after the start date");
+        ReservationSnapshot snapshot = analyticsSnapshot;
+        if (snapshot == null || snapshot.isStale()) {
+            if (snapshot != null)
+                rebuildAnalyticsSnapshotInBackground();
+            snapshot = loadSnapshot(true);
+        }
+
+        String[] columns = {"Room", "Stays", "Nights", "Occupancy", "Revenue", "Popularity"};
+        int[] types = {Types.VARCHAR, Types.BIGINT, Types.BIGINT, Types.DOUBLE, Types.BIGINT, Types.DOUBLE};
+        try (CachedRowSet crs = RowSets.create(columns, types)) {
+            for (Map.Entry<String, ReservationSnapshot.RoomStatistics> room : snapshot.getRoomStatistics(from, to).entrySet()) {
+                ReservationSnapshot.RoomStatistics stats = room.getValue();
+                RowSets.append(crs, new Object[] {room.getKey(), stats.getStays(), stats.getNights(),
+                        Math.round(stats.getOccupancy() * 10000) / 10000.0, roundCents(stats.getRevenueCents()), stats.getPopularity()});
+            }
+            crs.beforeFirst();
+            return fetch(handler, crs);
+        }
+    }
+
+    // Same shape as the SQL revenue report: one row per room plus an 'All Rooms' total row,
+    // every amount rounded to whole dollars before the totals are summed
+    private CachedRowSet revenueRowSet(Map<String, long[]> year) throws SQLException {
+        String[] columns = {"Room", "January", "February", "March", "April", "May", "June", "July", "August", "September", "October", "November", "December", "Total"};
+        int[] types = new int[columns.length];
+        Arrays.fill(types, Types.BIGINT);
+        types[0] = Types.VARCHAR;
+        CachedRowSet crs = RowSets.create(columns, types);
+
+        Object[] allRooms = new Object[columns.length];
+        allRooms[0] = "All Rooms";
+        long[] totals = new long[columns.length - 1];
+        for (Map.Entry<String, long[]> room : year.entrySet()) {
+            Object[] row = new Object[columns.length];
+            row[0] = room.getKey();
+            for (int i = 0; i < totals.length; ++i) {
+                long dollars = roundCents(room.getValue()[i]);
+                row[i + 1] = dollars;
+                totals[i] += dollars;
+            }
+            RowSets.append(crs, row);
+        }
+        for (int i = 0; i < totals.length; ++i)
+            allRooms[i + 1] = year.isEmpty() ? null : totals[i];
+        RowSets.append(crs, allRooms);
+        crs.beforeFirst();
+        return crs;
+    }
+
+    // ROUND() semantics: halves round away from zero
+    private static long roundCents(long cents) {
+        return cents >= 0 ? (cents + 50) / 100 : -((-cents + 50) / 100);
+    }
+
+    // Every statement this class sends, with representative parameters, for QueryPlanCheck.
+    // lab7_rooms is read whole wherever all rooms are listed or filtered on unindexed columns;
+    // lab7_reservations only by the bulk loads behind the in-memory views.
+    static List<QueryPlanCheck.Query> plannedQueries(String room, int code, LocalDate today) {
+        Date from = Date.valueOf(today.plusDays(7));
+        Date to = Date.valueOf(today.plusDays(10));
+        return List.of(
+                new QueryPlanCheck.Query("Rooms and rates", ROOMS_AND_RATES_SQL, QueryPlanCheck.params(), "rooms"),
+                new QueryPlanCheck.Query("Rooms and rates for one room", ROOM_RATES_SQL, QueryPlanCheck.params(room, room, room, room)),
+                new QueryPlanCheck.Query("Last stays", LAST_STAYS_SQL, QueryPlanCheck.params(), "rooms"),
+                new QueryPlanCheck.Query("Last stay for one room", ROOM_LAST_STAY_SQL, QueryPlanCheck.params(room, room)),
+                new QueryPlanCheck.Query("Occupancy fingerprint", OccupancyBitmap.FINGERPRINT_SQL, QueryPlanCheck.params(Date.valueOf(today.minusDays(OccupancyBitmap.POPULARITY_DAYS)))),
+                new QueryPlanCheck.Query("Rooms", ROOMS_SQL, QueryPlanCheck.params(), "lab7_rooms"),
+                new QueryPlanCheck.Query("Occupied rooms", OCCUPIED_ROOMS_SQL, QueryPlanCheck.params(to, from)),
+                new QueryPlanCheck.Query("Pricing parity", PRICING_PARITY_SQL, QueryPlanCheck.params(to, from, to, to, from, from, from, to), "lab7_rooms"),
+                new QueryPlanCheck.Query("Reservation", RESERVATION_SQL, QueryPlanCheck.params(code)),
+                new QueryPlanCheck.Query("Lock room", LOCK_ROOM_SQL, QueryPlanCheck.params(room)),
+                new QueryPlanCheck.Query("Lock reservation", LOCK_RESERVATION_SQL, QueryPlanCheck.params(code)),
+                new QueryPlanCheck.Query("Overlapping stays", OVERLAPPING_STAYS_SQL, QueryPlanCheck.params(room, code, to, from)),
+                new QueryPlanCheck.Query("Update reservation", UPDATE_RESERVATION_SQL, QueryPlanCheck.params("EMILY", "SMITH", from, to, 0, 2, code)),
+                new QueryPlanCheck.Query("Delete reservation", DELETE_RESERVATION_SQL, QueryPlanCheck.params(code)),
+                new QueryPlanCheck.Query("Revenue", REVENUE_SQL, QueryPlanCheck.params()),
+                new QueryPlanCheck.Query("Reservations ending after", RESERVATIONS_ENDING_AFTER_SQL, QueryPlanCheck.params(Date.valueOf(today)), "lab7_reservations"),
+                new QueryPlanCheck.Query("All reservations", ALL_RESERVATIONS_SQL, QueryPlanCheck.params(), "lab7_reservations"),
+                new QueryPlanCheck.Query("Analytics snapshot", SNAPSHOT_SQL, QueryPlanCheck.params(), "lab7_reservations"),
+                new QueryPlanCheck.Query("Guest names", GUEST_NAMES_SQL, QueryPlanCheck.params(), "lab7_reservations"));
+    }
+
+    // Statement and transaction steps, timed as phases of the operation running on this thread
+
+    private static PreparedStatement prepare(PooledConnection pc, String sql) throws SQLException {
+        long phase = OperationMetrics.now();
+        PreparedStatement pstmt = pc.prepare(sql);
+        OperationMetrics.phase(OperationMetrics.Phase.PREPARE, phase);
+        return pstmt;
+    }
+
+    private static ResultSet execute(PreparedStatement pstmt) throws SQLException {
+        long phase = OperationMetrics.now();
+        ResultSet rs = pstmt.executeQuery();
+        OperationMetrics.phase(OperationMetrics.Phase.EXECUTE, phase);
+        return rs;
+    }
+
+    private static int update(PreparedStatement pstmt) throws SQLException {
+        long phase = OperationMetrics.now();
+        int count = pstmt.executeUpdate();
+        OperationMetrics.phase(OperationMetrics.Phase.EXECUTE, phase);
+        return count;
+    }
+
+    private static int[] updateBatch(PreparedStatement pstmt) throws SQLException {
+        long phase = OperationMetrics.now();
+        int[] counts = pstmt.executeBatch();
+        OperationMetrics.phase(OperationMetrics.Phase.EXECUTE, phase);
+        return counts;
+    }
+
+    private static void commit(Connection conn) throws SQLException {
+        long phase = OperationMetrics.now();
+        conn.commit();
+        OperationMetrics.phase(OperationMetrics.Phase.COMMIT, phase);
+    }
+
+    private static <T> T fetch(ResultHandler<T> handler, ResultSet rs) throws SQLException {
+        long phase = OperationMetrics.now();
+        T result = handler.handle(rs);
+        OperationMetrics.phase(OperationMetrics.Phase.FETCH, phase);
+        return result;
+    }
+
+    // Rows are known when the handler kept them or counted them, as the desk renderer does
+    private static long rowCount(Object result) throws SQLException {
+        if (result instanceof Number)
+            return ((Number) result).longValue();
+        if (result instanceof CachedRowSet)
+            return ((CachedRowSet) result).size();
+        if (result instanceof Collection)
+            return ((Collection<?>) result).size();
+        return 0;
     }
 }
@@ -0,0 +1,445 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+// Guest names -> reservation codes, in memory. The distinct upper-cased first and last names
+// each live in a trie whose name nodes carry an id and the sorted codes booked under that name,
+// and every code maps back to its first and last name ids. Prefix lookups list one subtree,
+// LIKE patterns are matched against the distinct names rather than every reservation, and
+// lookups allowing a typo walk the trie with a budget of one edit (insert, delete, substitute
+// or swap two adjacent letters). The work grows with the number of distinct names, which
+// levels off, instead of with the reservation history.
+public class GuestNameIndex implements ReservationListener {
+
+    // Lower is better
+    public static final int EXACT = 0;
+    public static final int PREFIX = 1;
+    public static final int ONE_EDIT = 2;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NameTrie firstNames = new NameTrie();
+    private final NameTrie lastNames = new NameTrie();
+    private final CodeIndex firstNameByCode = new CodeIndex();
+    private final CodeIndex lastNameByCode = new CodeIndex();
+    private volatile boolean stale = false;
+
+    public static class Match {
+        private final int code;
+        private final String firstName;
+        private final String lastName;
+        private final int score;
+
+        Match(int code, String firstName, String lastName, int score) {
+            this.code = code;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.score = score;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getFirstName() {
+            return firstName;
+        }
+
+        public String getLastName() {
+            return lastName;
+        }
+
+        // Sum of EXACT, PREFIX or ONE_EDIT over the names that were given
+        public int getScore() {
+            return score;
+        }
+    }
+
+    public GuestNameIndex(Collection<Reservation> reservations) {
+        for (Reservation reservation : reservations)
+            add(reservation.getCode(), reservation.getFirstName(), reservation.getLastName());
+    }
+
+    // For streaming loads; the caller publishes the index only once every row is in
+    GuestNameIndex() {
+    }
+
+    void add(int code, String firstName, String lastName) {
+        lock.writeLock().lock();
+        try {
+            remove(code);
+            int first = firstNames.add(normalize(firstName), code);
+            int last = lastNames.add(normalize(lastName), code);
+            firstNameByCode.put(code, first);
+            lastNameByCode.put(code, last);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void invalidate() {
+        stale = true;
+    }
+
+    // Reservations matching the given names exactly, by prefix or within one edit, best first:
+    // lower score, then by name and code. A null or blank name matches anything; with both
+    // blank nothing matches.
+    public List<Match> lookup(String firstName, String lastName, int limit) {
+        String first = blankToNull(firstName);
+        String last = blankToNull(lastName);
+        if (first == null && last == null)
+            return List.of();
+
+        lock.readLock().lock();
+        try {
+            Map<Integer, Integer> firstIds = first == null ? null : firstNames.candidates(normalize(first));
+            Map<Integer, Integer> lastIds = last == null ? null : lastNames.candidates(normalize(last));
+            // Walk the codes of whichever side has fewer, checking the other side per code
+            boolean byLast = firstIds == null || (lastIds != null && lastNames.codeCount(lastIds) <= firstNames.codeCount(firstIds));
+            NameTrie driving = byLast ? lastNames : firstNames;
+            Map<Integer, Integer> drivingIds = byLast ? lastIds : firstIds;
+            Map<Integer, Integer> otherIds = byLast ? firstIds : lastIds;
+            CodeIndex otherByCode = byLast ? firstNameByCode : lastNameByCode;
+
+            List<Match> matches = new ArrayList<>();
+            if (otherIds == null) {
+                // One name: names in rank order, each name's codes already sorted, so only
+                // the first limit codes are ever touched
+                List<Map.Entry<Integer, Integer>> candidates = new ArrayList<>(drivingIds.entrySet());
+                candidates.sort(Comparator.comparing((Map.Entry<Integer, Integer> candidate) -> candidate.getValue())
+                        .thenComparing(candidate -> driving.names.get(candidate.getKey())));
+                for (Map.Entry<Integer, Integer> candidate : candidates) {
+                    Codes codes = driving.codes.get(candidate.getKey());
+                    for (int i = 0; i < codes.size && matches.size() < limit; ++i)
+                        matches.add(match(codes.values[i], candidate.getValue()));
+                }
+                return matches;
+            }
+
+            for (Map.Entry<Integer, Integer> candidate : drivingIds.entrySet()) {
+                Codes codes = driving.codes.get(candidate.getKey());
+                for (int i = 0; i < codes.size; ++i) {
+                    int code = codes.values[i];
+                    Integer otherScore = otherIds.get(otherByCode.get(code));
+                    if (otherScore != null)
+                        matches.add(match(code, candidate.getValue() + otherScore));
+                }
+            }
+            matches.sort(Comparator.comparingInt(Match::getScore)
+                    .thenComparing(Match::getLastName)
+                    .thenComparing(Match::getFirstName)
+                    .thenComparingInt(Match::getCode));
+            return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The codes whose names satisfy FirstName LIKE firstPattern AND LastName LIKE lastPattern
+    // (either may be null), sorted, or null if there are more than maxCodes of them or a
+    // pattern uses an escape this index doesn't interpret
+    public int[] codesMatching(String firstPattern, String lastPattern, int maxCodes) {
+        if ((firstPattern != null && firstPattern.indexOf('\\') >= 0) || (lastPattern != null && lastPattern.indexOf('\\') >= 0))
+            return null;
+        lock.readLock().lock();
+        try {
+            List<Integer> firstIds = firstPattern == null ? null : firstNames.like(normalize(firstPattern));
+            List<Integer> lastIds = lastPattern == null ? null : lastNames.like(normalize(lastPattern));
+            if (firstIds == null && lastIds == null)
+                return null;
+            boolean byLast = firstIds == null || (lastIds != null && lastNames.codeCount(lastIds) <= firstNames.codeCount(firstIds));
+            NameTrie driving = byLast ? lastNames : firstNames;
+            List<Integer> drivingIds = byLast ? lastIds : firstIds;
+            List<Integer> otherIds = byLast ? firstIds : lastIds;
+            CodeIndex otherByCode = byLast ? firstNameByCode : lastNameByCode;
+
+            int[] matched = new int[16];
+            int count = 0;
+            for (int id : drivingIds) {
+                Codes codes = driving.codes.get(id);
+                for (int i = 0; i < codes.size; ++i) {
+                    int code = codes.values[i];
+                    if (otherIds != null && Collections.binarySearch(otherIds, otherByCode.get(code)) < 0)
+                        continue;
+                    if (count == maxCodes)
+                        return null;
+                    if (count == matched.length)
+                        matched = Arrays.copyOf(matched, count * 2);
+                    matched[count++] = code;
+                }
+            }
+            int[] result = Arrays.copyOf(matched, count);
+            Arrays.sort(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        add(reservation.getCode(), reservation.getFirstName(), reservation.getLastName());
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        add(after.getCode(), after.getFirstName(), after.getLastName());
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            remove(reservation.getCode());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Caller holds the write lock
+    private void remove(int code) {
+        int first = firstNameByCode.remove(code);
+        int last = lastNameByCode.remove(code);
+        if (first >= 0)
+            firstNames.codes.get(first).remove(code);
+        if (last >= 0)
+            lastNames.codes.get(last).remove(code);
+    }
+
+    private Match match(int code, int score) {
+        return new Match(code, firstNames.names.get(firstNameByCode.get(code)), lastNames.names.get(lastNameByCode.get(code)), score);
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toUpperCase(Locale.ROOT);
+    }
+
+    private static String blankToNull(String name) {
+        return name == null || name.isBlank() ? null : name;
+    }
+
+    private static class NameTrie {
+        final Node root = new Node();
+        // By name id
+        final List<String> names = new ArrayList<>();
+        final List<Codes> codes = new ArrayList<>();
+
+        int add(String name, int code) {
+            Node node = root;
+            for (int i = 0; i < name.length(); ++i)
+                node = node.childOrAdd(name.charAt(i));
+            if (node.id < 0) {
+                node.id = names.size();
+                names.add(name);
+                codes.add(new Codes());
+            }
+            codes.get(node.id).add(code);
+            return node.id;
+        }
+
+        // Name id -> best score, over the names equal to, starting with, or one edit from name
+        Map<Integer, Integer> candidates(String name) {
+            Map<Integer, Integer> candidates = new HashMap<>();
+            Node node = find(name);
+            if (node != null)
+                collect(node, PREFIX, candidates);
+            oneEdit(root, name, 0, candidates);
+            if (node != null && node.id >= 0)
+                candidates.put(node.id, EXACT);
+            return candidates;
+        }
+
+        // Name ids satisfying LIKE pattern, sorted
+        List<Integer> like(String pattern) {
+            int wildcard = firstWildcard(pattern);
+            List<Integer> ids = new ArrayList<>();
+            if (wildcard < 0) {
+                Node node = find(pattern);
+                if (node != null && node.id >= 0)
+                    ids.add(node.id);
+            } else if (wildcard == pattern.length() - 1 && pattern.charAt(wildcard) == '%') {
+                Node node = find(pattern.substring(0, wildcard));
+                if (node != null)
+                    collect(node, ids);
+            } else {
+                // Only the literal prefix narrows the walk; the rest is checked per distinct name
+                Node node = find(pattern.substring(0, wildcard));
+                if (node != null) {
+                    Pattern regex = likeToRegex(pattern);
+                    List<Integer> prefixed = new ArrayList<>();
+                    collect(node, prefixed);
+                    for (int id : prefixed) {
+                        if (regex.matcher(names.get(id)).matches())
+                            ids.add(id);
+                    }
+                }
+            }
+            ids.sort(null);
+            return ids;
+        }
+
+        long codeCount(Map<Integer, Integer> ids) {
+            return codeCount(ids.keySet());
+        }
+
+        long codeCount(Collection<Integer> ids) {
+            long count = 0;
+            for (int id : ids)
+                count += codes.get(id).size;
+            return count;
+        }
+
+        private Node find(String name) {
+            Node node = root;
+            for (int i = 0; i < name.length() && node != null; ++i)
+                node = node.child(name.charAt(i));
+            return node;
+        }
+
+        private void collect(Node node, int score, Map<Integer, Integer> candidates) {
+            if (node.id >= 0 && codes.get(node.id).size > 0)
+                candidates.merge(node.id, score, Math::min);
+            for (Node child : node.children)
+                collect(child, score, candidates);
+        }
+
+        private void collect(Node node, List<Integer> ids) {
+            if (node.id >= 0 && codes.get(node.id).size > 0)
+                ids.add(node.id);
+            for (Node child : node.children)
+                collect(child, ids);
+        }
+
+        // Names exactly one edit from name[i..] below node, having already matched name[..i)
+        private void oneEdit(Node node, String name, int i, Map<Integer, Integer> candidates) {
+            // Delete name[i]
+            if (i < name.length())
+                exactly(node, name, i + 1, candidates);
+            for (int c = 0; c < node.labels.length; ++c) {
+                Node child = node.children[c];
+                // Insert a letter before name[i]
+                exactly(child, name, i, candidates);
+                // Substitute name[i]
+                if (i < name.length() && node.labels[c] != name.charAt(i))
+                    exactly(child, name, i + 1, candidates);
+            }
+            // Swap name[i] and name[i + 1]
+            if (i + 1 < name.length() && name.charAt(i) != name.charAt(i + 1)) {
+                Node swapped = node.child(name.charAt(i + 1));
+                if (swapped != null && (swapped = swapped.child(name.charAt(i))) != null)
+                    exactly(swapped, name, i + 2, candidates);
+            }
+            // Or spend the edit further along
+            if (i < name.length()) {
+                Node next = node.child(name.charAt(i));
+                if (next != null)
+                    oneEdit(next, name, i + 1, candidates);
+            }
+        }
+
+        private void exactly(Node node, String name, int i, Map<Integer, Integer> candidates) {
+            for (; i < name.length() && node != null; ++i)
+                node = node.child(name.charAt(i));
+            if (node != null && node.id >= 0 && codes.get(node.id).size > 0)
+                candidates.merge(node.id, ONE_EDIT, Math::min);
+        }
+
+        private static int firstWildcard(String pattern) {
+            for (int i = 0; i < pattern.length(); ++i) {
+                if (pattern.charAt(i) == '%' || pattern.charAt(i) == '_')
+                    return i;
+            }
+            return -1;
+        }
+
+        private static Pattern likeToRegex(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < pattern.length(); ++i) {
+                char c = pattern.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0)
+                        regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                    regex.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0)
+                regex.append(Pattern.quote(literal.toString()));
+            return Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    private static class Node {
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        // Sorted, parallel to children
+        char[] labels = NO_LABELS;
+        Node[] children = NO_CHILDREN;
+        int id = -1;
+
+        Node child(char label) {
+            int i = Arrays.binarySearch(labels, label);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node childOrAdd(char label) {
+            int i = Arrays.binarySearch(labels, label);
+            if (i >= 0)
+                return children[i];
+            int at = -i - 1;
+            char[] newLabels = new char[labels.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newLabels[at] = label;
+            newChildren[at] = new Node();
+            System.arraycopy(labels, at, newLabels, at + 1, labels.length - at);
+            System.arraycopy(children, at, newChildren, at + 1, children.length - at);
+            labels = newLabels;
+            children = newChildren;
+            return newChildren[at];
+        }
+    }
+
+    // A sorted set of codes; new codes are almost always the largest yet, so adds append
+    private static class Codes {
+        int[] values = new int[2];
+        int size = 0;
+
+        void add(int code) {
+            int i = Arrays.binarySearch(values, 0, size, code);
+            if (i >= 0)
+                return;
+            int at = -i - 1;
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            System.arraycopy(values, at, values, at + 1, size - at);
+            values[at] = code;
+            ++size;
+        }
+
+        void remove(int code) {
+            int i = Arrays.binarySearch(values, 0, size, code);
+            if (i < 0)
+                return;
+            System.arraycopy(values, i + 1, values, i, size - i - 1);
+            --size;
+        }
+    }
+}
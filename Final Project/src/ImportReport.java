@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Per-row outcome of DatabaseHandler.importReservations. Rows are numbered from 1 in the
+// order the input stream produced them.
+public class ImportReport {
+
+    public enum Status { ACCEPTED, CONFLICTING, INVALID }
+
+    public static class Outcome {
+        private final int row;
+        private final Status status;
+        private final int code;
+        private final String message;
+
+        Outcome(int row, Status status, int code, String message) {
+            this.row = row;
+            this.status = status;
+            this.code = code;
+            this.message = message;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        // The assigned reservation code, or 0 if the row was not accepted
+        public int getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final List<Outcome> outcomes = new ArrayList<>();
+    private final int[] counts = new int[Status.values().length];
+
+    void add(int row, Status status, int code, String message) {
+        outcomes.add(new Outcome(row, status, code, message));
+        counts[status.ordinal()]++;
+    }
+
+    public List<Outcome> getOutcomes() {
+        List<Outcome> sorted = new ArrayList<>(outcomes);
+        sorted.sort(Comparator.comparingInt(Outcome::getRow));
+        return sorted;
+    }
+
+    public int count(Status status) {
+        return counts[status.ordinal()];
+    }
+
+    public int size() {
+        return outcomes.size();
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Measures each DatabaseHandler operation against a SyntheticInn dataset, at each requested
+// dataset size and thread count, with the in-memory views on, off or both. Every result is one
+// JSON object per line, so runs can be kept and compared. Given a baseline file from an
+// earlier run, any result whose throughput fell by more than the tolerance is reported and
+// the exit status is 1.
+//
+//   java InnBenchmark --url jdbc:... [--user u] [--password p]
+//       [--rows 10k,1m,10m] [--generate] [--replace] [--seed 365]
+//       [--threads 1,4,16] [--warmup 5] [--measure 10] [--views off|on|both]
+//       [--ops getRoomsAndRates,getAvailableRooms,createReservation,getMatchingReservations,getRevenue]
+//       [--out results.jsonl] [--baseline earlier.jsonl] [--tolerance 0.10]
+//       [--replicas jdbc:...,jdbc:...] [--staleness 5000]
+//
+// JMH would be the usual choice, but there is no build to add it to, so this is a plain
+// timed loop: warm up for a while, then count operations and record each one's latency.
+// --generate rebuilds the dataset for each size before measuring it; without it the tables
+// must already hold a dataset generated with the same size and seed. With --replicas the
+// reports are routed to those databases, which must replicate from --url.
+public class InnBenchmark {
+
+    public static final String[] OPERATIONS = {"getRoomsAndRates", "getAvailableRooms", "createReservation", "getMatchingReservations", "getRevenue"};
+    private static final int FAR_FUTURE_DAYS = 3650;
+
+    interface Operation {
+        void run(Random random) throws SQLException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        String url = options.get("url");
+        if (url == null) {
+            System.err.println("--url is required");
+            System.exit(2);
+        }
+        String user = options.getOrDefault("user", "");
+        String password = options.getOrDefault("password", "");
+        long seed = Long.parseLong(options.getOrDefault("seed", Long.toString(SyntheticInn.DEFAULT_SEED)));
+        int[] threadCounts = parseInts(options.getOrDefault("threads", "1,4,16"));
+        long warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "5")));
+        long measureMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("measure", "10")));
+        String[] ops = options.getOrDefault("ops", String.join(",", OPERATIONS)).split(",");
+        boolean[] viewSettings = switch (options.getOrDefault("views", "both")) {
+            case "on" -> new boolean[] {true};
+            case "off" -> new boolean[] {false};
+            case "both" -> new boolean[] {false, true};
+            default -> throw new IllegalArgumentException("--views must be on, off or both");
+        };
+        int maxThreads = Arrays.stream(threadCounts).max().orElse(1);
+
+        List<String> results = new ArrayList<>();
+        try (PrintStream out = options.containsKey("out")
+                ? new PrintStream(Files.newOutputStream(Path.of(options.get("out"))), true, StandardCharsets.UTF_8)
+                : System.out) {
+            for (String size : options.getOrDefault("rows", "10k").split(",")) {
+                SyntheticInn inn = new SyntheticInn(SyntheticInn.parseSize(size), seed);
+                try (ConnectionPool pool = new ConnectionPool(url, user, password, Math.max(ConnectionPool.DEFAULT_MAX_SIZE, maxThreads),
+                        ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS, ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS, ConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE)) {
+                    if (options.containsKey("generate")) {
+                        long start = System.nanoTime();
+                        inn.generate(pool, options.containsKey("replace"));
+                        System.err.printf("Generated %d reservations over %d rooms in %.1fs%n", inn.getReservationCount(), inn.getRoomCount(), (System.nanoTime() - start) / 1e9);
+                    }
+                    for (boolean views : viewSettings) {
+                        DatabaseHandler dbHandler = new DatabaseHandler(pool);
+                        if (views) {
+                            dbHandler.enableAvailabilityIndex(Long.MAX_VALUE);
+                            dbHandler.enableRoomsAndRatesCache();
+                            dbHandler.enableRevenueRollup();
+                        }
+                        if (options.containsKey("replicas")) {
+                            List<ConnectionPool> replicas = new ArrayList<>();
+                            for (String replicaUrl : options.get("replicas").split(","))
+                                replicas.add(new ConnectionPool(replicaUrl, user, password));
+                            dbHandler.enableReadReplicas(replicas, Long.parseLong(options.getOrDefault("staleness", Long.toString(ReplicaRouter.DEFAULT_MAX_STALENESS_MILLIS))));
+                        }
+                        try {
+                            for (String op : ops) {
+                                for (int threads : threadCounts) {
+                                    String result = measure(dbHandler, inn, op.trim(), threads, views, warmupMillis, measureMillis);
+                                    out.println(result);
+                                    results.add(result);
+                                }
+                            }
+                        } finally {
+                            dbHandler.disableReadReplicas();
+                        }
+                    }
+                }
+            }
+        }
+
+        if (options.containsKey("baseline")) {
+            double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.10"));
+            List<String> regressions = compare(Files.readAllLines(Path.of(options.get("baseline"))), results, tolerance);
+            for (String regression : regressions)
+                System.err.println("REGRESSION " + regression);
+            if (!regressions.isEmpty())
+                System.exit(1);
+        }
+    }
+
+    static String measure(DatabaseHandler dbHandler, SyntheticInn inn, String name, int threads, boolean views, long warmupMillis, long measureMillis) throws Exception {
+        Queue<Integer> created = new ConcurrentLinkedQueue<>();
+        Operation operation = operation(dbHandler, inn, name, created);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            run(executor, operation, threads, warmupMillis, null);
+            long[][] latencies = new long[threads][];
+            long[] errors = new long[1];
+            long start = System.nanoTime();
+            run(executor, operation, threads, measureMillis, (thread, samples, failed) -> {
+                latencies[thread] = samples;
+                synchronized (errors) {
+                    errors[0] += failed;
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+
+            long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+            long total = 0;
+            for (long latency : all)
+                total += latency;
+            return Json.object("benchmark", name,
+                    "rows", inn.getReservationCount(),
+                    "rooms", inn.getRoomCount(),
+                    "threads", threads,
+                    "views", views,
+                    "ops", all.length,
+                    "errors", errors[0],
+                    "opsPerSec", round(all.length / (elapsed / 1e9)),
+                    "meanMicros", all.length == 0 ? 0 : round(total / 1e3 / all.length),
+                    "p50Micros", percentileMicros(all, 0.50),
+                    "p90Micros", percentileMicros(all, 0.90),
+                    "p99Micros", percentileMicros(all, 0.99),
+                    "p999Micros", percentileMicros(all, 0.999),
+                    "maxMicros", all.length == 0 ? 0 : round(all[all.length - 1] / 1e3));
+        } finally {
+            executor.shutdownNow();
+            // Leave the dataset as it was generated for the next measurement
+            for (Integer code : created)
+                dbHandler.cancelReservation(code.toString());
+        }
+    }
+
+    interface Collector {
+        void collect(int thread, long[] latencies, long errors);
+    }
+
+    private static void run(ExecutorService executor, Operation operation, int threads, long durationMillis, Collector collector) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; ++t) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(31L * thread + durationMillis);
+                long[] samples = new long[1024];
+                int count = 0;
+                long errors = 0;
+                ready.countDown();
+                go.await();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+                long now;
+                while ((now = System.nanoTime()) < deadline) {
+                    try {
+                        operation.run(random);
+                    } catch (SQLException e) {
+                        ++errors;
+                        continue;
+                    }
+                    if (collector != null) {
+                        if (count == samples.length)
+                            samples = Arrays.copyOf(samples, count * 2);
+                        samples[count++] = System.nanoTime() - now;
+                    }
+                }
+                if (collector != null)
+                    collector.collect(thread, Arrays.copyOf(samples, count), errors);
+                return null;
+            }));
+        }
+        ready.await();
+        go.countDown();
+        for (Future<?> future : futures)
+            future.get();
+    }
+
+    private static Operation operation(DatabaseHandler dbHandler, SyntheticInn inn, String name, Queue<Integer> created) {
+        LocalDate today = LocalDate.now();
+        int rooms = inn.getRoomCount();
+        return switch (name) {
+            case "getRoomsAndRates" -> random -> dbHandler.getRoomsAndRates(InnBenchmark::drain);
+            case "getAvailableRooms" -> random -> {
+                LocalDate checkIn = today.plusDays(random.nextInt(60));
+                LocalDate checkOut = checkIn.plusDays(1 + random.nextInt(7));
+                String room = random.nextInt(4) == 0 ? SyntheticInn.roomCode(random.nextInt(rooms)) : "Any";
+                dbHandler.getAvailableRooms(room, "Any", checkIn.toString(), checkOut.toString(), "0", "1", InnBenchmark::drain);
+            };
+            // Booked far beyond the generated stays so bookings never pile onto the searched dates
+            case "createReservation" -> random -> {
+                LocalDate checkIn = today.plusDays(FAR_FUTURE_DAYS + random.nextInt(FAR_FUTURE_DAYS));
+                int code = dbHandler.createReservation(SyntheticInn.roomCode(random.nextInt(rooms)), checkIn.toString(), checkIn.plusDays(1 + random.nextInt(7)).toString(),
+                        "100", SyntheticInn.randomLastName(random), "BENCH", "1", "0");
+                created.add(code);
+            };
+            case "getMatchingReservations" -> random -> dbHandler.getMatchingReservations("", SyntheticInn.randomLastName(random), "", "",
+                    SyntheticInn.roomCode(random.nextInt(rooms)), "", InnBenchmark::drain);
+            case "getRevenue" -> random -> dbHandler.getRevenue(InnBenchmark::drain);
+            default -> throw new IllegalArgumentException("Unknown operation " + name + "; expected one of " + String.join(", ", OPERATIONS));
+        };
+    }
+
+    // Reads every row, as a caller printing the result would, without keeping any of it
+    private static Integer drain(ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        int rows = 0;
+        while (rs.next()) {
+            for (int i = 1; i <= columns; ++i)
+                rs.getString(i);
+            ++rows;
+        }
+        return rows;
+    }
+
+    // Results are matched on benchmark, rows, threads and views; only throughput is compared
+    static List<String> compare(List<String> baselineLines, List<String> resultLines, double tolerance) {
+        Map<String, Double> baseline = new HashMap<>();
+        for (String line : baselineLines) {
+            if (line.isBlank())
+                continue;
+            Map<String, String> result = Json.parseObject(line);
+            baseline.put(key(result), Double.parseDouble(result.get("opsPerSec")));
+        }
+        List<String> regressions = new ArrayList<>();
+        for (String line : resultLines) {
+            Map<String, String> result = Json.parseObject(line);
+            Double before = baseline.get(key(result));
+            double now = Double.parseDouble(result.get("opsPerSec"));
+            if (before != null && now < before * (1 - tolerance))
+                regressions.add(key(result) + ": " + before + " -> " + now + " ops/s");
+        }
+        return regressions;
+    }
+
+    private static String key(Map<String, String> result) {
+        return result.get("benchmark") + " rows=" + result.get("rows") + " threads=" + result.get("threads") + " views=" + result.get("views");
+    }
+
+    private static double percentileMicros(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return round(sorted[Math.max(0, index)] / 1e3);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                options.put(name, args[++i]);
+            else
+                options.put(name, "");
+        }
+        return options;
+    }
+}
@@ -0,0 +1,302 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.sql.rowset.CachedRowSet;
+
+// Several inns, each its own database behind its own DatabaseHandler. Bookings and changes go
+// to the property they name. Chain-wide reports run on every property at once and hand rows to
+// the caller as each property streams them, so the whole report takes as long as the slowest
+// property rather than the sum of all of them. A property that fails or hasn't finished by the
+// shard timeout is left out and named in the Report instead of failing the whole report.
+public class InnChain implements AutoCloseable {
+
+    public static final long DEFAULT_SHARD_TIMEOUT_MILLIS = 2_000;
+    private static final int FALLBACK_THREADS = 16;
+
+    private final Map<String, DatabaseHandler> properties = new LinkedHashMap<>();
+    private final ExecutorService executor = BookingServer.newRequestExecutor("inn-chain", FALLBACK_THREADS);
+    private volatile long shardTimeoutMillis = DEFAULT_SHARD_TIMEOUT_MILLIS;
+
+    // Receives merged rows, one call at a time, positioned on a row of the named property's
+    // result. Rows from different properties interleave in arrival order.
+    @FunctionalInterface
+    public interface RowSink {
+        void row(String property, ResultSet row) throws SQLException;
+
+        // Called once per property before its first row, including properties with no rows
+        default void start(String property, ResultSetMetaData rsmd) throws SQLException {
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardQuery {
+        void run(DatabaseHandler handler, DatabaseHandler.ResultHandler<Void> rows) throws SQLException;
+    }
+
+    public static class Report {
+        private final List<String> complete;
+        private final Map<String, String> failures;
+        private final Map<String, Long> shardMillis;
+        private final int rows;
+
+        Report(List<String> complete, Map<String, String> failures, Map<String, Long> shardMillis, int rows) {
+            this.complete = Collections.unmodifiableList(complete);
+            this.failures = Collections.unmodifiableMap(failures);
+            this.shardMillis = Collections.unmodifiableMap(shardMillis);
+            this.rows = rows;
+        }
+
+        public List<String> getCompleteProperties() {
+            return complete;
+        }
+
+        // Property -> why its rows are missing or incomplete
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+
+        // How long each property that finished took
+        public Map<String, Long> getShardMillis() {
+            return shardMillis;
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public boolean isPartial() {
+            return !failures.isEmpty();
+        }
+    }
+
+    public static class Result implements AutoCloseable {
+        private final CachedRowSet rows;
+        private final Report report;
+
+        Result(CachedRowSet rows, Report report) {
+            this.rows = rows;
+            this.report = report;
+        }
+
+        // The properties' rows with a leading Property column
+        public CachedRowSet getRows() {
+            return rows;
+        }
+
+        public Report getReport() {
+            return report;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            rows.close();
+        }
+    }
+
+    // One property's part of a fan-out; everything but the future is guarded by the fan-out's lock
+    private static class Shard {
+        final String property;
+        final DatabaseHandler handler;
+        Future<?> future;
+        boolean abandoned = false;
+        int rows = 0;
+
+        Shard(String property, DatabaseHandler handler) {
+            this.property = property;
+            this.handler = handler;
+        }
+    }
+
+    public synchronized void addProperty(String property, DatabaseHandler handler) {
+        if (properties.containsKey(property))
+            throw new IllegalArgumentException("Property " + property + " is already part of the chain");
+        properties.put(property, handler);
+    }
+
+    public synchronized List<String> getProperties() {
+        return new ArrayList<>(properties.keySet());
+    }
+
+    public synchronized DatabaseHandler property(String property) {
+        DatabaseHandler handler = properties.get(property);
+        if (handler == null)
+            throw new IllegalArgumentException("Unknown property " + property);
+        return handler;
+    }
+
+    public void setShardTimeoutMillis(long shardTimeoutMillis) {
+        if (shardTimeoutMillis <= 0)
+            throw new IllegalArgumentException("Shard timeout must be positive");
+        this.shardTimeoutMillis = shardTimeoutMillis;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (DatabaseHandler handler : snapshot().values())
+            handler.close();
+    }
+
+    public int createReservation(String property, String roomCode, String checkIn, String checkOut, String rate, String lastName, String firstName, String numAdults, String numChildren) throws SQLException {
+        return property(property).createReservation(roomCode, checkIn, checkOut, rate, lastName, firstName, numAdults, numChildren);
+    }
+
+    public Reservation getReservation(String property, String code) throws SQLException {
+        return property(property).getReservation(code);
+    }
+
+    public ReservationChange.Result changeReservation(String property, ReservationChange change) throws SQLException {
+        return property(property).changeReservation(change);
+    }
+
+    public boolean cancelReservation(String property, String code) throws SQLException {
+        return property(property).cancelReservation(code);
+    }
+
+    public Result getAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults) throws SQLException {
+        return collect((handler, rows) -> handler.getAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, rows));
+    }
+
+    public Report getAvailableRooms(String roomCode, String bedType, String checkIn, String checkOut, String numChildren, String numAdults, RowSink sink) {
+        return fanOut((handler, rows) -> handler.getAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults, rows), sink);
+    }
+
+    // Each property's revenue report, 'All Rooms' row included
+    public Result getRevenue() throws SQLException {
+        return collect(DatabaseHandler::getRevenue);
+    }
+
+    public Report getRevenue(RowSink sink) {
+        return fanOut(DatabaseHandler::getRevenue, sink);
+    }
+
+    public Result getMatchingReservations(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode) throws SQLException {
+        return collect((handler, rows) -> handler.getMatchingReservations(firstName, lastName, beginDate, endDate, roomCode, reservationCode, rows));
+    }
+
+    public Report getMatchingReservations(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode, RowSink sink) {
+        return fanOut((handler, rows) -> handler.getMatchingReservations(firstName, lastName, beginDate, endDate, roomCode, reservationCode, rows), sink);
+    }
+
+    private synchronized Map<String, DatabaseHandler> snapshot() {
+        return new LinkedHashMap<>(properties);
+    }
+
+    // Merges every property's rows into one CachedRowSet, shaped like the first result to arrive
+    private Result collect(ShardQuery query) throws SQLException {
+        CachedRowSet[] merged = new CachedRowSet[1];
+        Report report = fanOut(query, new RowSink() {
+            @Override
+            public void start(String property, ResultSetMetaData rsmd) throws SQLException {
+                if (merged[0] != null)
+                    return;
+                String[] columns = RowSets.columnNames(rsmd);
+                int[] types = RowSets.columnTypes(rsmd);
+                String[] withProperty = new String[columns.length + 1];
+                int[] withPropertyTypes = new int[types.length + 1];
+                withProperty[0] = "Property";
+                withPropertyTypes[0] = Types.VARCHAR;
+                System.arraycopy(columns, 0, withProperty, 1, columns.length);
+                System.arraycopy(types, 0, withPropertyTypes, 1, types.length);
+                merged[0] = RowSets.create(withProperty, withPropertyTypes);
+            }
+
+            @Override
+            public void row(String property, ResultSet row) throws SQLException {
+                Object[] values = new Object[merged[0].getMetaData().getColumnCount()];
+                values[0] = property;
+                for (int i = 1; i < values.length; ++i)
+                    values[i] = row.getObject(i);
+                RowSets.append(merged[0], values);
+            }
+        });
+        if (merged[0] == null)
+            merged[0] = RowSets.create(new String[] {"Property"}, new int[] {Types.VARCHAR});
+        merged[0].beforeFirst();
+        return new Result(merged[0], report);
+    }
+
+    // Runs the query on every property at once and waits for them until one shared deadline.
+    // A property still running at the deadline is abandoned: its remaining rows are dropped, and
+    // its query is left to finish on its own rather than interrupted, since interrupting a
+    // thread blocked in the driver can leave the pooled connection unusable.
+    private Report fanOut(ShardQuery query, RowSink sink) {
+        Object lock = new Object();
+        List<Shard> shards = new ArrayList<>();
+        Map<String, Long> shardMillis = new LinkedHashMap<>();
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMillis);
+
+        for (Map.Entry<String, DatabaseHandler> property : snapshot().entrySet()) {
+            Shard shard = new Shard(property.getKey(), property.getValue());
+            shards.add(shard);
+            shard.future = executor.submit(() -> {
+                query.run(shard.handler, rs -> {
+                    synchronized (lock) {
+                        if (shard.abandoned)
+                            return null;
+                        sink.start(shard.property, rs.getMetaData());
+                    }
+                    while (rs.next()) {
+                        synchronized (lock) {
+                            if (shard.abandoned)
+                                return null;
+                            sink.row(shard.property, rs);
+                            ++shard.rows;
+                        }
+                    }
+                    return null;
+                });
+                synchronized (lock) {
+                    shardMillis.put(shard.property, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                }
+                return null;
+            });
+        }
+
+        List<String> complete = new ArrayList<>();
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (Shard shard : shards) {
+            String failure = null;
+            try {
+                shard.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                failure = "Timed out after " + shardTimeoutMillis + "ms";
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                failure = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = "Interrupted";
+            }
+            synchronized (lock) {
+                if (failure == null) {
+                    complete.add(shard.property);
+                } else {
+                    shard.abandoned = true;
+                    shard.future.cancel(false);
+                    failures.put(shard.property, shard.rows == 0 ? failure : failure + " after " + shard.rows + " rows");
+                    shardMillis.remove(shard.property);
+                }
+            }
+        }
+
+        synchronized (lock) {
+            int rows = 0;
+            for (Shard shard : shards)
+                rows += shard.rows;
+            return new Report(complete, failures, new LinkedHashMap<>(shardMillis), rows);
+        }
+    }
+}
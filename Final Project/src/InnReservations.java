@@ -1,22 +1,66 @@
-import java.sql.ResultSetMetaData;
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
 import java.util.Map;
 import java.sql.SQLException;
 import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 
 public class InnReservations {
 
+    private static final long AVAILABILITY_INDEX_MAX_AGE_MILLIS = 5 * 60 * 1000;
+    private static final long SLOW_OPERATION_MILLIS = OperationMetrics.DEFAULT_SLOW_THRESHOLD_MILLIS;
+    private static final int SIMILAR_GUESTS = 10;
+    // Optional comma-separated JDBC URLs of read replicas, reached with the same credentials
+    private static final String REPLICA_URLS = "INN_REPLICA_URLS";
+    // Optional file to keep room occupancy in between runs
+    private static final String OCCUPANCY_FILE = "INN_OCCUPANCY_FILE";
+    // Optional directory for the change journal the occupancy file catches up from
+    private static final String JOURNAL_DIRECTORY = "INN_JOURNAL_DIR";
+    // Set to true to bring the menu up before the database is reached
+    private static final String LAZY_STARTUP = "INN_LAZY_STARTUP";
+    private static final int WARM_CONNECTIONS = 4;
+    // Set to true to record operation timings for option 7; slow calls are kept in memory
+    private static final String METRICS = "INN_METRICS";
+    // Set to true to also print each slow call to stderr as it happens
+    private static final String SLOW_LOG_TO_STDERR = "INN_SLOW_LOG_TO_STDERR";
+    private static final String CANCEL_CHANGE = "exit";
+
+    // Columns kept from each numbered room option, and their positions in the captured rows.
+    // Exact matches echo the requested dates; suggestions carry their own.
+    private static final String[] AVAILABLE_OPTION_COLUMNS = {"RoomCode", "RoomName", "bedType", "basePrice", "Cost", "UserCheckIn", "UserCheckout"};
+    private static final String[] SUGGESTED_OPTION_COLUMNS = {"RoomCode", "RoomName", "bedType", "basePrice", "Cost", "CheckIn", "Checkout"};
+    private static final int OPTION_ROOM_CODE = 0;
+    private static final int OPTION_ROOM_NAME = 1;
+    private static final int OPTION_BED_TYPE = 2;
+    private static final int OPTION_BASE_PRICE = 3;
+    private static final int OPTION_COST = 4;
+    private static final int OPTION_CHECK_IN = 5;
+    private static final int OPTION_CHECK_OUT = 6;
+
+    private static BookingCoordinator bookings;
+
     public static void main(String[] args) {
         if (setup() == 1) {
             System.out.println("Setup failed");
             System.exit(1);
         }
 
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(args.length > 1 ? Integer.parseInt(args[1]) : BookingServer.DEFAULT_PORT);
+            return;
+        }
+
         System.out.println("Welcome to our inn!");
         System.out.println();
 
+        bookings = new BookingCoordinator(dbHandler);
         mainMenuShell();
+        bookings.close();
+        dbHandler.close();
 
         System.out.println();
         System.out.println();
@@ -40,16 +84,105 @@ public class InnReservations {
             return 1;
         }
 
+        boolean printSlow = Boolean.parseBoolean(System.getenv(SLOW_LOG_TO_STDERR));
+        OperationMetrics.setEnabled(printSlow || Boolean.parseBoolean(System.getenv(METRICS)));
+        OperationMetrics.setSlowLog(SLOW_OPERATION_MILLIS, printSlow ? System.err : null);
+
+        // A lazy start connects, warms up and loads the in-memory views on a background thread;
+        // anything asked for before they finish simply goes to the database
+        boolean lazy = Boolean.parseBoolean(System.getenv(LAZY_STARTUP));
         try {
-            dbHandler = new DatabaseHandler(url, username, password);
+            dbHandler = lazy ? new DatabaseHandler(new ConnectionPool(url, username, password)) : new DatabaseHandler(url, username, password);
         } catch (SQLException e) {
             System.out.println("Connection to database unsuccessful. Are all of the connection variables the correct values?");
             return 1;
         }
 
+        if (lazy) {
+            Thread startup = new Thread(() -> {
+                try {
+                    dbHandler.warmUp(WARM_CONNECTIONS);
+                } catch (SQLException e) {
+                    System.out.println("Connection to database unsuccessful. Are all of the connection variables the correct values?");
+                    return;
+                }
+                enableViews(username, password);
+            }, "inn-startup");
+            startup.setDaemon(true);
+            startup.start();
+            return 0;
+        }
+
+        try {
+            dbHandler.warmUp(WARM_CONNECTIONS);
+        } catch (SQLException e) {
+            System.out.println("Could not warm up database connections: " + e.getMessage());
+        }
+        enableViews(username, password);
         return 0;
     }
 
+    private static void enableViews(String username, String password) {
+        String replicaUrls = System.getenv(REPLICA_URLS);
+        if (replicaUrls != null && !replicaUrls.isBlank()) {
+            List<ConnectionPool> replicas = new ArrayList<>();
+            for (String replicaUrl : replicaUrls.split(","))
+                replicas.add(new ConnectionPool(replicaUrl.trim(), username, password));
+            dbHandler.enableReadReplicas(replicas, ReplicaRouter.DEFAULT_MAX_STALENESS_MILLIS);
+        }
+
+        String journalDirectory = System.getenv(JOURNAL_DIRECTORY);
+        if (journalDirectory != null && !journalDirectory.isBlank()) {
+            try {
+                dbHandler.enableChangeJournal(Path.of(journalDirectory));
+            } catch (IOException e) {
+                System.out.println("Could not open the change journal, writes will not be journaled: " + e.getMessage());
+            }
+        }
+
+        String occupancyFile = System.getenv(OCCUPANCY_FILE);
+        try {
+            dbHandler.enableAvailabilityIndex(AVAILABILITY_INDEX_MAX_AGE_MILLIS, occupancyFile == null || occupancyFile.isBlank() ? null : Path.of(occupancyFile));
+        } catch (SQLException e) {
+            System.out.println("Could not load room availability, searches will go to the database: " + e.getMessage());
+        }
+        dbHandler.enableRoomsAndRatesCache();
+        try {
+            dbHandler.enableRevenueRollup();
+        } catch (SQLException e) {
+            System.out.println("Could not load revenue totals, reports will go to the database: " + e.getMessage());
+        }
+        try {
+            dbHandler.enableGuestNameIndex();
+        } catch (SQLException e) {
+            System.out.println("Could not load guest names, name searches will go to the database: " + e.getMessage());
+        }
+        try {
+            dbHandler.enableAnalyticsSnapshot();
+        } catch (SQLException e) {
+            System.out.println("Could not load the analytics snapshot, statistics will be loaded per report: " + e.getMessage());
+        }
+    }
+
+    // Runs the JSON booking service instead of the desk menu, until the process is stopped
+    private static void serve(int port) {
+        BookingServer server;
+        try {
+            server = new BookingServer(dbHandler, port);
+        } catch (IOException e) {
+            System.out.println("Could not start the booking service on port " + port + ": " + e.getMessage());
+            dbHandler.close();
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            dbHandler.close();
+        }, "booking-shutdown"));
+        server.start();
+        System.out.println("Booking service listening on port " + server.getPort());
+    }
+
     private static void mainMenuShell() {
         displayPrompt();
         while (inputScanner.hasNextLine()) {
@@ -64,13 +197,15 @@ public class InnReservations {
     }
 
     private static void displayPrompt() {
-        System.out.println("Choose an option by entering a number (1-6):");
+        System.out.println("Choose an option by entering a number (1-8):");
         System.out.println("  1) Rooms and Rates");
         System.out.println("  2) Reservations");
         System.out.println("  3) Reservation Change");
         System.out.println("  4) Reservation Cancellation");
         System.out.println("  5) Detailed Reservation Information");
         System.out.println("  6) Revenue");
+        System.out.println("  7) Performance Metrics");
+        System.out.println("  8) Room Statistics");
         System.out.println();
         System.out.print("Option: ");
     }
@@ -84,7 +219,9 @@ public class InnReservations {
                 case "4" -> reservationCancellation();
                 case "5" -> detailedReservationInformation();
                 case "6" -> revenue();
-                default -> System.out.println("Unrecognized option. Make sure to select a number from 1-6");
+                case "7" -> performanceMetrics();
+                case "8" -> roomStatistics();
+                default -> System.out.println("Unrecognized option. Make sure to select a number from 1-8");
             }
         } catch (SQLException e) {
             System.out.println("SQLException: " + e.getMessage());
@@ -92,10 +229,7 @@ public class InnReservations {
     }
 
     private static void roomsAndRates() throws SQLException {
-        ResultSet rs = dbHandler.getRoomsAndRates();
-
-        System.out.println("Rooms and Rates:");
-        output(rs, false, 13);
+        dbHandler.getRoomsAndRates(rs -> output(rs, "Rooms and Rates:", 13));
     }
 
     private static void reservations() throws SQLException {
@@ -123,14 +257,14 @@ public class InnReservations {
             return;
         }
 
-        ResultSet rs = dbHandler.getAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults);
-        if (!rs.isBeforeFirst()) {
+        List<String[]> options = dbHandler.getAvailableRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults,
+                rs -> outputOptions(rs, "Available rooms:", 12, false, AVAILABLE_OPTION_COLUMNS));
+        if (options == null) {
             System.out.println("No available rooms matching your preferences exactly. Searching for similar rooms");
-            rs = dbHandler.getSimilarRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults);
+            options = dbHandler.getSimilarRooms(roomCode, bedType, checkIn, checkOut, numChildren, numAdults,
+                    rs -> outputOptions(rs, "Available rooms:", 12, true, SUGGESTED_OPTION_COLUMNS));
         }
 
-        System.out.println("Available rooms:");
-        output(rs, true, 12);
         System.out.print("Choose an option by entering a valid number, or enter anything else to cancel: ");
 
         String optionStr = inputScanner.nextLine();
@@ -140,82 +274,92 @@ public class InnReservations {
             return;
         }
         int option = Integer.parseInt(optionStr);
-        if (option < 1 || option > rs.getRow()) {
+        if (option < 1 || option > options.size()) {
             return;
         }
 
-        rs.absolute(option);
+        String[] room = options.get(option - 1);
+        checkIn = room[OPTION_CHECK_IN];
+        checkOut = room[OPTION_CHECK_OUT];
+        // Held while the guest looks over the preview, so nobody else can confirm it meanwhile
+        BookingCoordinator.Hold hold = bookings.hold(room[OPTION_ROOM_CODE], LocalDate.parse(checkIn), LocalDate.parse(checkOut),
+                Double.parseDouble(room[OPTION_BASE_PRICE]), Integer.parseInt(numAdults), Integer.parseInt(numChildren), BookingCoordinator.DEFAULT_HOLD_MILLIS);
+        if (hold == null) {
+            System.out.println("That room is being booked by someone else, please choose another");
+            return;
+        }
         System.out.println();
         System.out.println("Preview of your reservation:");
         System.out.printf("%s %s\n", firstName, lastName);
-        System.out.printf("%s, %s, %s beds\n", rs.getString("RoomCode"), rs.getString("RoomName"), rs.getString("bedType"));
+        System.out.printf("%s, %s, %s beds\n", room[OPTION_ROOM_CODE], room[OPTION_ROOM_NAME], room[OPTION_BED_TYPE]);
         System.out.printf("%s through %s\n", checkIn, checkOut);
         System.out.printf("%s adults\n", numAdults);
         System.out.printf("%s children\n", numChildren);
-        System.out.printf("Costing $%.2f\n", rs.getFloat("Cost"));
+        System.out.printf("Costing $%.2f\n", Float.parseFloat(room[OPTION_COST]));
         System.out.println();
 
         System.out.print("Confirm? y/n: ");
         String confirm = inputScanner.nextLine();
         if (!confirm.equals("y")) {
+            bookings.release(hold.getToken());
             System.out.println("Reservation cancelled, returning to main menu");
             return;
         }
-        dbHandler.createReservation(rs.getString("RoomCode"), checkIn, checkOut, rs.getString("basePrice"), lastName, firstName, numAdults, numChildren);
-        System.out.println("Reservation created");
+        BookingCoordinator.Result result = bookings.confirm(hold.getToken(), lastName, firstName);
+        if (result.getStatus() == BookingCoordinator.Status.BOOKED)
+            System.out.println("Reservation created, your code is " + result.getCode());
+        else
+            System.out.println("Reservation not created: " + result.getMessage());
     }
 
     private static void reservationChange() throws SQLException {
-        String firstName = "";
-        String lastName = "";
-        String beginDate = "";
-        String endDate = "";
-        String numChildren = "";
-        String numAdults = "";
-        System.out.print("Please enter your reservation code to change reservation information: ");
+        System.out.print("Please enter your reservation code to change reservation information, or (0) to exit: ");
         String code = inputScanner.nextLine();
-        System.out.println("\nSelect what you would like to choose within your reservation.");
-        System.out.println("  1) First Name");
-        System.out.println("  2) Last Name");
-        System.out.println("  3) Begin Date");
-        System.out.println("  4) End Date");
-        System.out.println("  5) Number of Children");
-        System.out.println("  6) Number of Adults");
-        System.out.print("Choose an option by entering a valid number: ");
-        String changing = inputScanner.nextLine();
-        switch (changing) {
-            case "1" -> {
-                System.out.print("Please enter what you would like the new first name to be or (0) to exit: ");
-                firstName = inputScanner.nextLine();
-            }
-            case "2" -> {
-                System.out.print("Please enter what you would like the new last name to be or (0) to exit: ");
-                lastName = inputScanner.nextLine();
-            }
-            case "3" -> {
-                System.out.print("Please enter what you would like the new check in date (YYYY-MM-DD) to be or (0) to exit: ");
-                beginDate = inputScanner.nextLine();
-            }
-            case "4" -> {
-                System.out.print("Please enter what you would like the new check out date (YYYY-MM-DD) to be or (0) to exit: ");
-                endDate = inputScanner.nextLine();
-            }
-            case "5" -> {
-                System.out.print("Please enter what you would like the new number of children to be or (0) to exit: ");
-                numChildren = inputScanner.nextLine();
-            }
-            case "6" -> {
-                System.out.print("Please enter what you would like the new number of adults to be or (0) to exit: ");
-                numAdults = inputScanner.nextLine();
-            }
+        if (code.equals("0"))
+            return;
+        Reservation current = dbHandler.getReservation(code);
+        if (current == null) {
+            System.out.println("No reservation found with code " + code);
+            return;
+        }
+
+        System.out.println("\nEnter the new value for each field you would like to change, leave it blank to keep it, or enter (" + CANCEL_CHANGE + ") to exit.");
+        System.out.print("First name (" + current.getFirstName() + "): ");
+        String firstName = inputScanner.nextLine();
+        System.out.print("Last name (" + current.getLastName() + "): ");
+        String lastName = inputScanner.nextLine();
+        System.out.print("Check in date YYYY-MM-DD (" + current.getCheckIn() + "): ");
+        String beginDate = inputScanner.nextLine();
+        System.out.print("Check out date YYYY-MM-DD (" + current.getCheckout() + "): ");
+        String endDate = inputScanner.nextLine();
+        System.out.print("Number of children (" + current.getKids() + "): ");
+        String numChildren = inputScanner.nextLine();
+        System.out.print("Number of adults (" + current.getAdults() + "): ");
+        String numAdults = inputScanner.nextLine();
+        // "0" is a real guest count, so only the dedicated token backs out
+        for (String field : new String[] {firstName, lastName, beginDate, endDate, numChildren, numAdults}) {
+            if (field.equalsIgnoreCase(CANCEL_CHANGE))
+                return;
         }
-        if (firstName.equals("0") || lastName.equals("0") || beginDate.equals("0") || endDate.equals("0") || numChildren.equals("0") || numAdults.equals("0")) {
+
+        ReservationChange change;
+        try {
+            change = ReservationChange.of(code, firstName, lastName, beginDate, endDate, numChildren, numAdults).expect(current);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            System.out.println("Dates must be YYYY-MM-DD and guest counts must be numbers, try again");
             return;
         }
-        if (dbHandler.changeReservation(changing, firstName, lastName, beginDate, endDate, numChildren, numAdults, code)) {
-            System.out.println("Reservation successfully changed");
-        } else {
-            System.out.println("New requested dates conflict with existing reservations, try again");
+        if (change.isEmpty()) {
+            System.out.println("Nothing to change");
+            return;
+        }
+
+        ReservationChange.Result result = dbHandler.changeReservation(change);
+        switch (result.getStatus()) {
+            case CHANGED -> System.out.println("Reservation successfully changed");
+            case CONFLICTING -> System.out.println("New requested dates conflict with existing reservations, try again");
+            case STALE -> System.out.println("Reservation was changed by someone else while you were editing it, try again");
+            default -> System.out.println(result.getMessage());
         }
     }
 
@@ -229,10 +373,21 @@ public class InnReservations {
             return;
         }
 
-        dbHandler.cancelReservation(code);
+        if (!dbHandler.cancelReservation(code)) {
+            System.out.println("\nNo reservation found with code " + code + ". Returning to main menu");
+            return;
+        }
         System.out.println("\nReservation successfully cancelled. Come again.");
     }
 
+    private static void performanceMetrics() {
+        if (!OperationMetrics.isEnabled()) {
+            System.out.println("Metrics are not being recorded. Set " + METRICS + "=true to record them");
+            return;
+        }
+        OperationMetrics.dump(System.out);
+    }
+
     private static void detailedReservationInformation() throws SQLException {
         System.out.println("Please enter the following reservation search fields:");
         System.out.print("First name (\"Any\" or blank for no preference): ");
@@ -248,61 +403,63 @@ public class InnReservations {
         System.out.print("Reservation code (\"Any\" or blank for no preference): ");
         String reservationCode = inputScanner.nextLine();
 
-        ResultSet rs = dbHandler.getMatchingReservations(firstName,
-                lastName,
-                beginDate,
-                endDate,
-                roomCode,
-                reservationCode);
+        ReservationSearch search = ReservationSearch.of(firstName, lastName, beginDate, endDate, roomCode, reservationCode);
+        boolean firstPage = true;
+        while (true) {
+            String[] last = new String[2];
+            long rows = dbHandler.searchReservations(search, rs -> output(rs, "\nMatching Reservation Information:", 12, row -> {
+                last[0] = row.getString("CheckIn");
+                last[1] = row.getString("CODE");
+            }));
+            if (rows == 0 && firstPage) {
+                suggestGuests(search);
+                return;
+            }
+            if (rows < search.getPageSize())
+                return;
+            System.out.print("Show more results? y/n: ");
+            if (!inputScanner.nextLine().equals("y"))
+                return;
+            search.after(last[0], last[1]);
+            firstPage = false;
+        }
+    }
 
-        System.out.println("\nMatching Reservation Information:");
-        output(rs, false, 12);
+    // Nothing matched exactly; a misspelled or partial name may still find the guest
+    private static void suggestGuests(ReservationSearch search) throws SQLException {
+        String firstName = search.getFirstName();
+        String lastName = search.getLastName();
+        if ((firstName == null && lastName == null) || search.hasNamePattern())
+            return;
+        dbHandler.findGuests(firstName, lastName, SIMILAR_GUESTS, rs -> output(rs, "\nNo exact matches. Guests with similar names:", 12));
     }
 
     private static void revenue() throws SQLException {
-        ResultSet rs = dbHandler.getRevenue();
-
-        System.out.println("Revenue by Room: ");
-        output(rs, false, 12);
+        dbHandler.getRevenue(rs -> output(rs, "Revenue by Room: ", 12));
     }
 
-    private static void output(ResultSet rs, boolean numbered, int default_column_padding) throws SQLException {
-        rs.beforeFirst();
-        ResultSetMetaData rsmd = rs.getMetaData();
-        ArrayList<String> columns = new ArrayList<>();
-        for (int i = 1; i <= rsmd.getColumnCount(); ++i)
-            columns.add(rsmd.getColumnName(i));
-        if (numbered)
-            System.out.print(" ".repeat(NUMBERING_PADDING));
-        for (String column : columns)
-            System.out.format("%-"+getColumnPadding(column, default_column_padding)+"s", column);
-        System.out.println();
-        if (numbered)
-            System.out.print("-".repeat(NUMBERING_PADDING));
-        for (String column : columns)
-            System.out.print("-".repeat(getColumnPadding(column, default_column_padding)));
+    private static void roomStatistics() throws SQLException {
+        System.out.print("From date: ");
+        String from = inputScanner.nextLine();
+        System.out.print("To date: ");
+        String to = inputScanner.nextLine();
         System.out.println();
-        while (rs.next()) {
-            if (numbered) {
-                String rowNum = rs.getRow() + ")";
-                System.out.format("%-"+NUMBERING_PADDING+"s", rowNum);
-            }
-            for (String column : columns) {
-                System.out.format("%-"+getColumnPadding(column, default_column_padding)+"s", rs.getString(column));
-            }
-            System.out.println();
-        }
-        rs.previous();
-        if (!rs.isBeforeFirst()) {
-            if (numbered)
-                System.out.print(" ".repeat(NUMBERING_PADDING));
-            System.out.println("<No results>");
+        try {
+            dbHandler.getRoomStatistics(LocalDate.parse(from), LocalDate.parse(to), rs -> output(rs, "Room Statistics: ", 12));
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            System.out.println("Invalid date range: " + e.getMessage());
         }
     }
 
-    private static int getColumnPadding(String column, int default_column_padding) {
-        Integer padding = COLUMN_PADDINGS.get(column);
+    private static long output(ResultSet rs, String title, int default_column_padding) throws SQLException {
+        return new ResultRenderer(System.out, COLUMN_PADDINGS, NUMBERING_PADDING).render(rs, title, default_column_padding);
+    }
+
+    private static long output(ResultSet rs, String title, int default_column_padding, ResultRenderer.RowCallback callback) throws SQLException {
+        return new ResultRenderer(System.out, COLUMN_PADDINGS, NUMBERING_PADDING).render(rs, title, default_column_padding, callback);
+    }
 
-        return padding == null ? default_column_padding : padding;
+    private static List<String[]> outputOptions(ResultSet rs, String title, int default_column_padding, boolean printIfEmpty, String[] captureColumns) throws SQLException {
+        return new ResultRenderer(System.out, COLUMN_PADDINGS, NUMBERING_PADDING).renderOptions(rs, title, default_column_padding, printIfEmpty, captureColumns);
     }
 }
\ No newline at end of file
@@ -0,0 +1,218 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Creates the lab7 tables and the indexes DatabaseHandler's queries are written against.
+// Migrations are numbered and recorded in lab7_schema_version once applied; each step is also
+// safe to repeat on its own, so a migration interrupted halfway simply runs again, and an
+// index somebody already created by hand (under any name, as long as it starts with the same
+// columns) is left alone instead of duplicated. QueryPlanCheck is meant to verify the result,
+// but it has not been run against MySQL yet: the index choices below follow the queries'
+// predicates and are untested against real EXPLAIN output.
+public class InnSchema {
+
+    static final String CODE_BLOCKS_DDL = "CREATE TABLE IF NOT EXISTS gholland.lab7_code_blocks (Name VARCHAR(32) PRIMARY KEY, HighWater INT NOT NULL)";
+
+    private static final String VERSION_DDL = "CREATE TABLE IF NOT EXISTS gholland.lab7_schema_version (Version INT PRIMARY KEY, Description VARCHAR(100) NOT NULL, AppliedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+    private static final String LOCK_NAME = "gholland.lab7_schema";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Rooms and reservations tables",
+                    statement("CREATE TABLE IF NOT EXISTS gholland.lab7_rooms (\n" +
+                            "    RoomCode CHAR(5) PRIMARY KEY,\n" +
+                            "    RoomName VARCHAR(30) NOT NULL,\n" +
+                            "    Beds INT NOT NULL,\n" +
+                            "    bedType VARCHAR(8) NOT NULL,\n" +
+                            "    maxOcc INT NOT NULL,\n" +
+                            "    basePrice DECIMAL(6, 2) NOT NULL,\n" +
+                            "    decor VARCHAR(20) NOT NULL\n" +
+                            ")"),
+                    statement("CREATE TABLE IF NOT EXISTS gholland.lab7_reservations (\n" +
+                            "    CODE INT PRIMARY KEY,\n" +
+                            "    Room CHAR(5) NOT NULL,\n" +
+                            "    CheckIn DATE NOT NULL,\n" +
+                            "    Checkout DATE NOT NULL,\n" +
+                            "    Rate DECIMAL(6, 2) NOT NULL,\n" +
+                            "    LastName VARCHAR(15) NOT NULL,\n" +
+                            "    FirstName VARCHAR(15) NOT NULL,\n" +
+                            "    Adults INT NOT NULL,\n" +
+                            "    Kids INT NOT NULL,\n" +
+                            "    FOREIGN KEY (Room) REFERENCES gholland.lab7_rooms (RoomCode)\n" +
+                            ")")),
+            new Migration(2, "Reservation code blocks", statement(CODE_BLOCKS_DDL)),
+            // Availability and change overlap checks (Room = ? AND CheckIn < ? AND Checkout > ?),
+            // the back-to-back stay join in Rooms and Rates, and room searches
+            new Migration(3, "Room stay index",
+                    index("lab7_reservations", "lab7_reservations_room_stay", "Room", "CheckIn", "Checkout")),
+            // Checkout ranges around CURDATE(), the revenue year and the availability index load;
+            // with Rate included the revenue report never touches the rows themselves
+            new Migration(4, "Checkout index",
+                    index("lab7_reservations", "lab7_reservations_checkout", "Checkout", "CheckIn", "Room", "Rate")),
+            // Searches by guest, and the (CheckIn, CODE) order searches are paged by, since
+            // InnoDB appends the primary key to every secondary index
+            new Migration(5, "Guest and check-in search indexes",
+                    index("lab7_reservations", "lab7_reservations_guest", "LastName", "FirstName"),
+                    index("lab7_reservations", "lab7_reservations_first_name", "FirstName"),
+                    index("lab7_reservations", "lab7_reservations_check_in", "CheckIn")),
+            // One row per running ReplicaRouter, replicated like everything else
+            new Migration(6, "Replica heartbeat",
+                    statement("CREATE TABLE IF NOT EXISTS gholland.lab7_heartbeat (Source VARCHAR(64) PRIMARY KEY, Beat BIGINT NOT NULL)"))
+    );
+
+    @FunctionalInterface
+    interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final Step[] steps;
+
+        Migration(int version, String description, Step... steps) {
+            this.version = version;
+            this.description = description;
+            this.steps = steps;
+        }
+    }
+
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    public static List<String> migrate(ConnectionPool pool) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            return migrate(pc.connection());
+        }
+    }
+
+    // Applies every migration this database hasn't recorded yet and returns their descriptions.
+    // A named lock keeps two processes from migrating the same database at once.
+    public static List<String> migrate(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE SCHEMA IF NOT EXISTS gholland");
+            stmt.execute(VERSION_DDL);
+        }
+        lock(conn);
+        try {
+            Set<Integer> applied = appliedVersions(conn);
+            List<String> descriptions = new ArrayList<>();
+            for (Migration migration : MIGRATIONS) {
+                if (applied.contains(migration.version))
+                    continue;
+                try {
+                    for (Step step : migration.steps)
+                        step.apply(conn);
+                    try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO gholland.lab7_schema_version (Version, Description) VALUES (?, ?)")) {
+                        pstmt.setInt(1, migration.version);
+                        pstmt.setString(2, migration.description);
+                        pstmt.executeUpdate();
+                    }
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw new SQLException("Migration " + migration.version + " (" + migration.description + ") failed: " + e.getMessage(), e);
+                }
+                descriptions.add(migration.version + ": " + migration.description);
+            }
+            return descriptions;
+        } finally {
+            unlock(conn);
+        }
+    }
+
+    // 0 for a database that has never been migrated
+    public static int getVersion(Connection conn) throws SQLException {
+        Set<Integer> applied;
+        try {
+            applied = appliedVersions(conn);
+        } catch (SQLException e) {
+            if ("42S02".equals(e.getSQLState()))
+                return 0;
+            throw e;
+        }
+        int version = 0;
+        for (int v : applied)
+            version = Math.max(version, v);
+        return version;
+    }
+
+    private static Set<Integer> appliedVersions(Connection conn) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT Version FROM gholland.lab7_schema_version")) {
+            while (rs.next())
+                versions.add(rs.getInt("Version"));
+        }
+        return versions;
+    }
+
+    private static void lock(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) != 1)
+                    throw new SQLException("Another process has been migrating the schema for over " + LOCK_TIMEOUT_SECONDS + "s");
+            }
+        }
+    }
+
+    private static void unlock(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.executeQuery().close();
+        }
+    }
+
+    private static Step statement(String sql) {
+        return conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(sql);
+            }
+        };
+    }
+
+    // MySQL has no CREATE INDEX IF NOT EXISTS, so look for any index that already leads with
+    // these columns
+    private static Step index(String table, String name, String... columns) {
+        return conn -> {
+            if (hasIndex(conn, table, columns))
+                return;
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE INDEX " + name + " ON gholland." + table + " (" + String.join(", ", columns) + ")");
+            }
+        };
+    }
+
+    static boolean hasIndex(Connection conn, String table, String... columns) throws SQLException {
+        String sql = "SELECT INDEX_NAME, COLUMN_NAME FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = 'gholland' AND TABLE_NAME = ? ORDER BY INDEX_NAME, SEQ_IN_INDEX";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                String index = null;
+                int matched = 0;
+                while (rs.next()) {
+                    if (!rs.getString("INDEX_NAME").equals(index)) {
+                        index = rs.getString("INDEX_NAME");
+                        matched = 0;
+                    }
+                    if (matched >= 0 && matched < columns.length && rs.getString("COLUMN_NAME").equalsIgnoreCase(columns[matched])) {
+                        if (++matched == columns.length)
+                            return true;
+                    } else {
+                        matched = -1;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
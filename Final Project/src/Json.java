@@ -0,0 +1,214 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Just enough JSON for BookingServer: result sets out as arrays of objects, and flat request
+// objects in, with every value handed back as a string the way the desk prompts hand them to
+// DatabaseHandler. Nested objects and arrays in requests are rejected.
+public class Json {
+
+    private Json() {
+    }
+
+    public static String rows(ResultSet rs) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int columns = meta.getColumnCount();
+        String[] labels = new String[columns];
+        boolean[] numeric = new boolean[columns];
+        for (int i = 0; i < columns; ++i) {
+            labels[i] = quote(meta.getColumnLabel(i + 1));
+            numeric[i] = isNumeric(meta.getColumnType(i + 1));
+        }
+
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        while (rs.next()) {
+            json.append(first ? "\n  {" : ",\n  {");
+            first = false;
+            for (int i = 0; i < columns; ++i) {
+                if (i > 0)
+                    json.append(", ");
+                json.append(labels[i]).append(": ");
+                String value = rs.getString(i + 1);
+                if (value == null)
+                    json.append("null");
+                else if (numeric[i])
+                    json.append(value);
+                else
+                    json.append(quote(value));
+            }
+            json.append('}');
+        }
+        return json.append(first ? "]" : "\n]").toString();
+    }
+
+    public static String object(Object... keysAndValues) {
+        if (keysAndValues.length % 2 != 0)
+            throw new IllegalArgumentException("Every key needs a value");
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (i > 0)
+                json.append(", ");
+            json.append(quote(String.valueOf(keysAndValues[i]))).append(": ");
+            Object value = keysAndValues[i + 1];
+            if (value == null)
+                json.append("null");
+            else if (value instanceof Number || value instanceof Boolean)
+                json.append(value);
+            else
+                json.append(quote(value.toString()));
+        }
+        return json.append('}').toString();
+    }
+
+    public static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // Parses {"key": value, ...} where each value is a string, number, true, false or null.
+    // Numbers and booleans come back as their literal text; null comes back as null.
+    public static Map<String, String> parseObject(String text) {
+        Parser parser = new Parser(text);
+        Map<String, String> values = new LinkedHashMap<>();
+        parser.skipSpace();
+        if (parser.atEnd())
+            return values;
+        parser.expect('{');
+        parser.skipSpace();
+        if (!parser.take('}')) {
+            do {
+                parser.skipSpace();
+                String key = parser.string();
+                parser.skipSpace();
+                parser.expect(':');
+                parser.skipSpace();
+                values.put(key, parser.value());
+                parser.skipSpace();
+            } while (parser.take(','));
+            parser.expect('}');
+        }
+        parser.skipSpace();
+        if (!parser.atEnd())
+            throw parser.error("Unexpected text after object");
+        return values;
+    }
+
+    private static boolean isNumeric(int type) {
+        return switch (type) {
+            case Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT, Types.FLOAT, Types.REAL, Types.DOUBLE, Types.NUMERIC, Types.DECIMAL -> true;
+            default -> false;
+        };
+    }
+
+    private static class Parser {
+        private final String text;
+        private int pos = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        boolean atEnd() {
+            return pos >= text.length();
+        }
+
+        void skipSpace() {
+            while (!atEnd() && Character.isWhitespace(text.charAt(pos)))
+                ++pos;
+        }
+
+        boolean take(char c) {
+            if (!atEnd() && text.charAt(pos) == c) {
+                ++pos;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!take(c))
+                throw error("Expected '" + c + "'");
+        }
+
+        String value() {
+            if (atEnd())
+                throw error("Expected a value");
+            char c = text.charAt(pos);
+            if (c == '"')
+                return string();
+            if (c == '{' || c == '[')
+                throw error("Nested objects and arrays are not supported");
+            int start = pos;
+            while (!atEnd() && ",} \t\r\n".indexOf(text.charAt(pos)) < 0)
+                ++pos;
+            String literal = text.substring(start, pos);
+            if (literal.equals("null"))
+                return null;
+            if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"))
+                return literal;
+            throw error("Unexpected value " + literal);
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (atEnd())
+                    throw error("Unterminated string");
+                char c = text.charAt(pos++);
+                if (c == '"')
+                    return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (atEnd())
+                    throw error("Unterminated string");
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case '"', '\\', '/' -> value.append(escaped);
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> {
+                        if (pos + 4 > text.length())
+                            throw error("Bad unicode escape");
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        pos += 4;
+                    }
+                    default -> throw error("Bad escape \\" + escaped);
+                }
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+}
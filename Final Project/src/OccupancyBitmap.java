@@ -0,0 +1,468 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// One bit per room per night over [origin, origin + days): a room's bit d is set when some stay
+// has checkIn <= origin + d < checkout. Each room owns a run of 64-bit words, so "is the room
+// free for these nights" is a masked test of one or two words, popularity is a popcount over
+// 180 bits, and the next check-in is found a word at a time.
+//
+// The words live either on the heap or in a memory-mapped file. A mapped bitmap is written
+// through as reservations change, and its header carries the number of stays it holds and the
+// sum of their CRC32s, computed exactly as FINGERPRINT_SQL computes them in the database, so a
+// restarted process can check that the file still matches the table before trusting it.
+//
+// Bits are a union, so removing one of two overlapping stays (which the handler never writes,
+// but the table doesn't forbid) would free nights the other still occupies; once a stay is
+// added over occupied nights, removals mark the bitmap stale instead.
+public class OccupancyBitmap implements ReservationListener {
+
+    public static final int POPULARITY_DAYS = 180;
+    public static final int DEFAULT_DAYS = POPULARITY_DAYS + 3 * 365;
+    private static final int MAX_DAYS = 20 * 366;
+
+    // The stay count and CRC32 sum to compare with getStayCount() and getChecksum(), over the
+    // stays ending after the origin (one date parameter)
+    public static final String FINGERPRINT_SQL = "SELECT COUNT(*) stays, IFNULL(SUM(CRC32(CONCAT_WS(',', CODE, Room, CheckIn, Checkout))), 0) checksum FROM gholland.lab7_reservations WHERE Checkout > ?";
+
+    private static final int MAGIC = 0x494E4E42;
+    private static final int FORMAT_VERSION = 2;
+    private static final int FLAG_OVERLAPPING = 1;
+    private static final int FLAG_CLIPPED = 2;
+    // magic, version, origin, days, rooms, flags, stays, checksum, journal sequence, room names
+    private static final int ORIGIN_OFFSET = 8;
+    private static final int DAYS_OFFSET = 16;
+    private static final int ROOMS_OFFSET = 20;
+    private static final int FLAGS_OFFSET = 24;
+    private static final int STAYS_OFFSET = 28;
+    private static final int CHECKSUM_OFFSET = 36;
+    private static final int JOURNAL_SEQUENCE_OFFSET = 44;
+    private static final int NAMES_LENGTH_OFFSET = 52;
+    private static final int NAMES_OFFSET = 56;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<String> rooms;
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    private final long origin;
+    private final MappedByteBuffer mapping;
+    private ByteBuffer header;
+    private LongBuffer words;
+    private int wordsPerRoom;
+    private volatile boolean stale = false;
+
+    private OccupancyBitmap(List<String> rooms, long origin, ByteBuffer header, LongBuffer words, MappedByteBuffer mapping) {
+        this.rooms = rooms;
+        for (int i = 0; i < rooms.size(); ++i)
+            roomIds.put(rooms.get(i), i);
+        this.origin = origin;
+        this.header = header;
+        this.words = words;
+        this.mapping = mapping;
+        this.wordsPerRoom = rooms.isEmpty() ? 0 : words.capacity() / rooms.size();
+    }
+
+    public static OccupancyBitmap create(Collection<String> rooms, LocalDate origin, int days) {
+        List<String> names = new ArrayList<>(rooms);
+        int wordsPerRoom = wordsFor(days);
+        ByteBuffer header = newHeader(names, origin.toEpochDay(), wordsPerRoom * 64, ByteBuffer.allocate(headerLength(names)));
+        return new OccupancyBitmap(names, origin.toEpochDay(), header, LongBuffer.allocate(wordsPerRoom * names.size()), null);
+    }
+
+    // A new, empty bitmap backed by the file, replacing whatever the file held
+    public static OccupancyBitmap create(Path file, Collection<String> rooms, LocalDate origin, int days) throws IOException {
+        List<String> names = new ArrayList<>(rooms);
+        int wordsPerRoom = wordsFor(days);
+        int headerLength = headerLength(names);
+        long length = headerLength + 8L * wordsPerRoom * names.size();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer header = newHeader(names, origin.toEpochDay(), wordsPerRoom * 64, buffer.slice(0, headerLength).order(ByteOrder.LITTLE_ENDIAN));
+            LongBuffer words = buffer.slice(headerLength, (int) (length - headerLength)).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            return new OccupancyBitmap(names, origin.toEpochDay(), header, words, buffer);
+        }
+    }
+
+    // Maps a bitmap written earlier, or returns null if the file is missing or not one of ours.
+    // One that ever held overlapping stays opens stale.
+    public static OccupancyBitmap open(Path file) throws IOException {
+        if (!file.toFile().isFile())
+            return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < NAMES_OFFSET)
+                return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+                return null;
+            int roomCount = buffer.getInt(ROOMS_OFFSET);
+            int namesLength = buffer.getInt(NAMES_LENGTH_OFFSET);
+            int headerLength = align(NAMES_OFFSET + namesLength);
+            int wordsPerRoom = buffer.getInt(DAYS_OFFSET) / 64;
+            if (channel.size() != headerLength + 8L * wordsPerRoom * roomCount)
+                return null;
+
+            byte[] names = new byte[namesLength];
+            buffer.get(NAMES_OFFSET, names);
+            List<String> rooms = new ArrayList<>();
+            for (String room : new String(names, StandardCharsets.UTF_8).split("\n", -1)) {
+                if (rooms.size() < roomCount)
+                    rooms.add(room);
+            }
+            if (rooms.size() != roomCount)
+                return null;
+            ByteBuffer header = buffer.slice(0, headerLength).order(ByteOrder.LITTLE_ENDIAN);
+            LongBuffer words = buffer.slice(headerLength, (int) (channel.size() - headerLength)).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            OccupancyBitmap occupancy = new OccupancyBitmap(rooms, buffer.getLong(ORIGIN_OFFSET), header, words, buffer);
+            // The file can't say whether a stay was removed from overlapping nights since, which
+            // would have cleared bits another stay still holds
+            if ((header.getInt(FLAGS_OFFSET) & FLAG_OVERLAPPING) != 0)
+                occupancy.stale = true;
+            return occupancy;
+        }
+    }
+
+
+    public LocalDate getOrigin() {
+        return LocalDate.ofEpochDay(origin);
+    }
+
+    public List<String> getRooms() {
+        return rooms;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void invalidate() {
+        stale = true;
+    }
+
+    public long getStayCount() {
+        lock.readLock().lock();
+        try {
+            return header.getLong(STAYS_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getChecksum() {
+        lock.readLock().lock();
+        try {
+            return header.getLong(CHECKSUM_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The last ChangeJournal sequence applied, or -1 if the bitmap isn't kept in step with one
+    public long getJournalSequence() {
+        lock.readLock().lock();
+        try {
+            return header.getLong(JOURNAL_SEQUENCE_OFFSET);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void setJournalSequence(long sequence) {
+        lock.writeLock().lock();
+        try {
+            header.putLong(JOURNAL_SEQUENCE_OFFSET, sequence);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // True if every night of [from, to) is known: on or after the origin, and either before the
+    // end or past every stay ever added
+    public boolean covers(LocalDate from, LocalDate to) {
+        lock.readLock().lock();
+        try {
+            return !stale && from.toEpochDay() >= origin
+                    && (to.toEpochDay() <= origin + days() || (header.getInt(FLAGS_OFFSET) & FLAG_CLIPPED) == 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isFree(String room, LocalDate checkIn, LocalDate checkout) {
+        Integer id = roomIds.get(room);
+        if (id == null)
+            return false;
+        lock.readLock().lock();
+        try {
+            return countOccupied(id, checkIn.toEpochDay(), checkout.toEpochDay(), true) == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int occupiedNights(String room, LocalDate from, LocalDate to) {
+        Integer id = roomIds.get(room);
+        if (id == null)
+            return 0;
+        lock.readLock().lock();
+        try {
+            return countOccupied(id, from.toEpochDay(), to.toEpochDay(), false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Occupied share of the POPULARITY_DAYS nights before today, as ROUND(nights / 180, 2)
+    public BigDecimal getPopularity(String room, LocalDate today) {
+        int nights = occupiedNights(room, today.minusDays(POPULARITY_DAYS), today);
+        return BigDecimal.valueOf(nights).divide(BigDecimal.valueOf(POPULARITY_DAYS), 2, RoundingMode.HALF_UP);
+    }
+
+    // The first checkout on or after today that isn't followed by a check-in the same day, i.e.
+    // the end of the room's current or next run of occupied nights; null if it has none
+    public LocalDate getNextCheckIn(String room, LocalDate today) {
+        Integer id = roomIds.get(room);
+        if (id == null)
+            return null;
+        lock.readLock().lock();
+        try {
+            int base = id * wordsPerRoom;
+            long first = Math.max(today.toEpochDay() - origin, 1);
+            if (first >= days())
+                return null;
+            for (int word = (int) (first >>> 6); word < wordsPerRoom; ++word) {
+                long bits = words.get(base + word);
+                long previous = (bits << 1) | (word > 0 ? words.get(base + word - 1) >>> 63 : 0);
+                // Night d - 1 occupied and night d free: a checkout on day d
+                long ends = previous & ~bits;
+                if (word == first >>> 6)
+                    ends &= -1L << (first & 63);
+                if (ends != 0)
+                    return LocalDate.ofEpochDay(origin + ((long) word << 6) + Long.numberOfTrailingZeros(ends));
+            }
+            long lastNight = wordsPerRoom == 0 ? 0 : words.get(base + wordsPerRoom - 1) >>> 63;
+            return lastNight != 0 ? LocalDate.ofEpochDay(origin + days()) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The last nights tracked may belong to a stay cut off at the end, so the answer near the
+    // end is only exact if nothing was
+    public boolean isClipped() {
+        lock.readLock().lock();
+        try {
+            return (header.getInt(FLAGS_OFFSET) & FLAG_CLIPPED) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Flushes a mapped bitmap to disk; the OS would otherwise do so in its own time
+    public void force() {
+        if (mapping == null)
+            return;
+        lock.readLock().lock();
+        try {
+            mapping.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            add(reservation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        lock.writeLock().lock();
+        try {
+            remove(before);
+            add(after);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            remove(reservation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // For loading; the caller publishes the bitmap only once every stay is in
+    void addAll(Collection<Reservation> reservations) {
+        lock.writeLock().lock();
+        try {
+            for (Reservation reservation : reservations)
+                add(reservation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(Reservation reservation) {
+        long checkout = reservation.getCheckout().toEpochDay();
+        if (checkout <= origin)
+            return;
+        Integer id = roomIds.get(reservation.getRoom());
+        if (id == null) {
+            // A room we have never heard of; only the database can answer correctly now
+            stale = true;
+            return;
+        }
+        if (checkout > origin + days())
+            grow(checkout - origin);
+        int base = id * wordsPerRoom;
+        long from = Math.max(reservation.getCheckIn().toEpochDay() - origin, 0);
+        long to = Math.min(checkout - origin, days());
+        boolean overlapping = false;
+        for (long night = from; night < to; ) {
+            int word = (int) (night >>> 6);
+            long mask = mask(night, to);
+            long bits = words.get(base + word);
+            overlapping |= (bits & mask) != 0;
+            words.put(base + word, bits | mask);
+            night = (long) (word + 1) << 6;
+        }
+        int flags = header.getInt(FLAGS_OFFSET);
+        if (overlapping)
+            flags |= FLAG_OVERLAPPING;
+        if (checkout - origin > days())
+            flags |= FLAG_CLIPPED;
+        header.putInt(FLAGS_OFFSET, flags);
+        header.putLong(STAYS_OFFSET, header.getLong(STAYS_OFFSET) + 1);
+        header.putLong(CHECKSUM_OFFSET, header.getLong(CHECKSUM_OFFSET) + checksum(reservation));
+    }
+
+    private void remove(Reservation reservation) {
+        long checkout = reservation.getCheckout().toEpochDay();
+        if (checkout <= origin)
+            return;
+        Integer id = roomIds.get(reservation.getRoom());
+        if (id == null)
+            return;
+        if ((header.getInt(FLAGS_OFFSET) & FLAG_OVERLAPPING) != 0)
+            stale = true;
+        int base = id * wordsPerRoom;
+        long from = Math.max(reservation.getCheckIn().toEpochDay() - origin, 0);
+        long to = Math.min(checkout - origin, days());
+        for (long night = from; night < to; ) {
+            int word = (int) (night >>> 6);
+            words.put(base + word, words.get(base + word) & ~mask(night, to));
+            night = (long) (word + 1) << 6;
+        }
+        header.putLong(STAYS_OFFSET, header.getLong(STAYS_OFFSET) - 1);
+        header.putLong(CHECKSUM_OFFSET, header.getLong(CHECKSUM_OFFSET) - checksum(reservation));
+    }
+
+    // Caller holds a lock. With exitEarly, stops at the first occupied word.
+    private int countOccupied(int id, long fromDay, long toDay, boolean exitEarly) {
+        long from = Math.max(fromDay - origin, 0);
+        long to = Math.min(toDay - origin, days());
+        int base = id * wordsPerRoom;
+        int occupied = 0;
+        for (long night = from; night < to; ) {
+            int word = (int) (night >>> 6);
+            occupied += Long.bitCount(words.get(base + word) & mask(night, to));
+            if (exitEarly && occupied > 0)
+                return occupied;
+            night = (long) (word + 1) << 6;
+        }
+        return occupied;
+    }
+
+    // Heap bitmaps widen to hold a stay that runs past the end, up to MAX_DAYS; a mapped one
+    // has a fixed size and clips instead
+    private void grow(long days) {
+        if (mapping != null || days > MAX_DAYS || rooms.isEmpty())
+            return;
+        int newWordsPerRoom = wordsFor((int) Math.max(days, 2L * days()));
+        newWordsPerRoom = Math.min(newWordsPerRoom, wordsFor(MAX_DAYS));
+        LongBuffer grown = LongBuffer.allocate(newWordsPerRoom * rooms.size());
+        for (int room = 0; room < rooms.size(); ++room) {
+            for (int word = 0; word < wordsPerRoom; ++word)
+                grown.put(room * newWordsPerRoom + word, words.get(room * wordsPerRoom + word));
+        }
+        words = grown;
+        wordsPerRoom = newWordsPerRoom;
+        header.putInt(DAYS_OFFSET, newWordsPerRoom * 64);
+    }
+
+    private int days() {
+        return wordsPerRoom * 64;
+    }
+
+    // Bits of the word holding 'night' that fall inside [night, to)
+    private static long mask(long night, long to) {
+        long wordEnd = ((night >>> 6) + 1) << 6;
+        long mask = -1L << (night & 63);
+        if (to < wordEnd)
+            mask &= -1L >>> (64 - (to & 63));
+        return mask;
+    }
+
+    static long checksum(Reservation reservation) {
+        CRC32 crc = new CRC32();
+        String row = reservation.getCode() + "," + reservation.getRoom() + "," + reservation.getCheckIn() + "," + reservation.getCheckout();
+        crc.update(row.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static ByteBuffer newHeader(List<String> rooms, long origin, int days, ByteBuffer header) {
+        byte[] names = String.join("\n", rooms).getBytes(StandardCharsets.UTF_8);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, FORMAT_VERSION);
+        header.putLong(ORIGIN_OFFSET, origin);
+        header.putInt(DAYS_OFFSET, days);
+        header.putInt(ROOMS_OFFSET, rooms.size());
+        header.putInt(FLAGS_OFFSET, 0);
+        header.putLong(STAYS_OFFSET, 0);
+        header.putLong(CHECKSUM_OFFSET, 0);
+        header.putLong(JOURNAL_SEQUENCE_OFFSET, -1);
+        header.putInt(NAMES_LENGTH_OFFSET, names.length);
+        header.put(NAMES_OFFSET, names);
+        return header;
+    }
+
+    private static int headerLength(List<String> rooms) {
+        return align(NAMES_OFFSET + String.join("\n", rooms).getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static int wordsFor(int days) {
+        return Math.max(1, (days + 63) >>> 6);
+    }
+}
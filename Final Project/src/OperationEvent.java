@@ -0,0 +1,47 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// One completed DatabaseHandler operation, for Flight Recorder. Committed by
+// OperationMetrics when metrics are enabled and a recording has this event switched on,
+// e.g. java -XX:StartFlightRecording:filename=inn.jfr,settings=profile InnReservations
+@Name("inn.DatabaseOperation")
+@Label("Database Operation")
+@Category("Inn Reservations")
+@Description("A DatabaseHandler operation with its row count and time spent in each phase")
+@StackTrace(false)
+class OperationEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Total")
+    @Timespan(Timespan.NANOSECONDS)
+    long totalNanos;
+
+    @Label("Prepare")
+    @Timespan(Timespan.NANOSECONDS)
+    long prepareNanos;
+
+    @Label("Execute")
+    @Timespan(Timespan.NANOSECONDS)
+    long executeNanos;
+
+    @Label("Fetch")
+    @Timespan(Timespan.NANOSECONDS)
+    long fetchNanos;
+
+    @Label("Commit")
+    @Timespan(Timespan.NANOSECONDS)
+    long commitNanos;
+}
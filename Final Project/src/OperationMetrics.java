@@ -0,0 +1,354 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jdk.jfr.EventType;
+
+// Latency histograms and counters for each DatabaseHandler operation and each phase of it:
+// PREPARE (getting the statement), EXECUTE (running it), FETCH (the result handler reading
+// rows, which includes any rendering done while streaming), COMMIT, and RENDER (time
+// ResultRenderer spends formatting and writing, outside of reading rows). TOTAL is the whole
+// call. Each completed call is also a Flight Recorder event when a recording enables
+// inn.DatabaseOperation, and calls slower than the threshold go to the slow log.
+//
+// Disabled, every hook is a volatile read and a return. Enabled, the hot path updates
+// preallocated counters and a reused per-thread span; only slow calls and JFR events allocate.
+public class OperationMetrics {
+
+    public enum Operation {
+        ROOMS_AND_RATES, AVAILABLE_ROOMS, SIMILAR_ROOMS, CREATE_RESERVATION, BOOK_RESERVATIONS, IMPORT_RESERVATIONS,
+        CHANGE_RESERVATION, CANCEL_RESERVATION, SEARCH_RESERVATIONS, FIND_GUESTS, REVENUE, ROOM_STATISTICS
+    }
+
+    public enum Phase { PREPARE, EXECUTE, FETCH, COMMIT, RENDER, TOTAL }
+
+    public static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 500;
+    private static final int SLOW_LOG_SIZE = 100;
+    private static final EventType EVENT_TYPE = EventType.getEventType(OperationEvent.class);
+
+    private static final Histogram[][] HISTOGRAMS = new Histogram[Operation.values().length][Phase.values().length];
+    private static final AtomicLongArray ROWS = new AtomicLongArray(Operation.values().length);
+    private static final AtomicLongArray ERRORS = new AtomicLongArray(Operation.values().length);
+    private static final ThreadLocal<Span> SPANS = ThreadLocal.withInitial(Span::new);
+    private static final Deque<SlowOperation> SLOW_LOG = new ArrayDeque<>();
+
+    private static volatile boolean enabled = false;
+    private static volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_THRESHOLD_MILLIS);
+    private static volatile PrintStream slowLogStream = null;
+
+    static {
+        for (Histogram[] phases : HISTOGRAMS) {
+            for (int i = 0; i < phases.length; ++i)
+                phases[i] = new Histogram();
+        }
+    }
+
+    private OperationMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        OperationMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // Calls slower than this are kept in the slow log and, if set, printed to the stream
+    public static void setSlowLog(long thresholdMillis, PrintStream stream) {
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        slowLogStream = stream;
+    }
+
+    // Starts timing an operation on this thread. Returns 0 when disabled, which every other
+    // hook treats as "not recording". Nested calls are folded into the outermost operation.
+    static long begin(Operation operation) {
+        if (!enabled)
+            return 0;
+        Span span = SPANS.get();
+        long now = System.nanoTime();
+        if (span.depth++ == 0)
+            span.reset(operation, now);
+        return now;
+    }
+
+    // Start of a phase, or 0 when disabled
+    static long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Adds the time since 'since' to a phase of the operation running on this thread and
+    // returns the current time, so consecutive phases can be chained
+    static long phase(Phase phase, long since) {
+        if (since == 0)
+            return 0;
+        long now = System.nanoTime();
+        Span span = SPANS.get();
+        if (span.depth > 0) {
+            span.phaseNanos[phase.ordinal()] += now - since;
+            HISTOGRAMS[span.operation.ordinal()][phase.ordinal()].record(now - since);
+        }
+        return now;
+    }
+
+    static void finish(long start, long rows) {
+        end(start, rows, false);
+    }
+
+    static void fail(long start) {
+        end(start, 0, true);
+    }
+
+    private static void end(long start, long rows, boolean failed) {
+        if (start == 0)
+            return;
+        Span span = SPANS.get();
+        if (span.depth == 0 || --span.depth > 0)
+            return;
+        long total = System.nanoTime() - span.start;
+        int op = span.operation.ordinal();
+        HISTOGRAMS[op][Phase.TOTAL.ordinal()].record(total);
+        if (rows > 0)
+            ROWS.addAndGet(op, rows);
+        if (failed)
+            ERRORS.incrementAndGet(op);
+
+        if (EVENT_TYPE.isEnabled()) {
+            OperationEvent event = new OperationEvent();
+            event.operation = span.operation.name();
+            event.rows = rows;
+            event.failed = failed;
+            event.totalNanos = total;
+            event.prepareNanos = span.phaseNanos[Phase.PREPARE.ordinal()];
+            event.executeNanos = span.phaseNanos[Phase.EXECUTE.ordinal()];
+            event.fetchNanos = span.phaseNanos[Phase.FETCH.ordinal()];
+            event.commitNanos = span.phaseNanos[Phase.COMMIT.ordinal()];
+            event.commit();
+        }
+        if (total >= slowThresholdNanos)
+            logSlow(span, total, rows, failed);
+    }
+
+    private static void logSlow(Span span, long total, long rows, boolean failed) {
+        SlowOperation slow = new SlowOperation(Instant.now(), span.operation, total, rows, failed, span.phaseNanos.clone());
+        synchronized (SLOW_LOG) {
+            if (SLOW_LOG.size() == SLOW_LOG_SIZE)
+                SLOW_LOG.removeFirst();
+            SLOW_LOG.addLast(slow);
+        }
+        PrintStream stream = slowLogStream;
+        if (stream != null)
+            stream.println("SLOW " + slow);
+    }
+
+    public static List<SlowOperation> getSlowOperations() {
+        synchronized (SLOW_LOG) {
+            return new ArrayList<>(SLOW_LOG);
+        }
+    }
+
+    public static long getCount(Operation operation, Phase phase) {
+        return HISTOGRAMS[operation.ordinal()][phase.ordinal()].count.get();
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), in nanoseconds
+    public static long getPercentileNanos(Operation operation, Phase phase, double percentile) {
+        return HISTOGRAMS[operation.ordinal()][phase.ordinal()].percentile(percentile);
+    }
+
+    public static void reset() {
+        for (Histogram[] phases : HISTOGRAMS) {
+            for (Histogram histogram : phases)
+                histogram.reset();
+        }
+        for (int i = 0; i < ROWS.length(); ++i) {
+            ROWS.set(i, 0);
+            ERRORS.set(i, 0);
+        }
+        synchronized (SLOW_LOG) {
+            SLOW_LOG.clear();
+        }
+    }
+
+    // One line per operation and phase that has been recorded; times in milliseconds
+    public static void dump(PrintStream out) {
+        out.printf("%-20s %-8s %9s %9s %9s %9s %9s %9s %9s %7s%n", "Operation", "Phase", "Count", "Mean", "p50", "p90", "p99", "Max", "Rows", "Errors");
+        for (Operation operation : Operation.values()) {
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = HISTOGRAMS[operation.ordinal()][phase.ordinal()];
+                long count = histogram.count.get();
+                if (count == 0)
+                    continue;
+                boolean total = phase == Phase.TOTAL;
+                out.printf("%-20s %-8s %9d %9.2f %9.2f %9.2f %9.2f %9.2f %9s %7s%n", operation, phase, count,
+                        millis(histogram.sum.get() / count), millis(histogram.percentile(50)), millis(histogram.percentile(90)),
+                        millis(histogram.percentile(99)), millis(histogram.max.get()),
+                        total ? Long.toString(ROWS.get(operation.ordinal())) : "", total ? Long.toString(ERRORS.get(operation.ordinal())) : "");
+            }
+        }
+        List<SlowOperation> slow = getSlowOperations();
+        if (!slow.isEmpty()) {
+            out.println();
+            out.println("Slowest recent operations (over " + millis(slowThresholdNanos) + " ms):");
+            for (SlowOperation operation : slow)
+                out.println("  " + operation);
+        }
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        boolean first = true;
+        for (Operation operation : Operation.values()) {
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = HISTOGRAMS[operation.ordinal()][phase.ordinal()];
+                long count = histogram.count.get();
+                if (count == 0)
+                    continue;
+                json.append(first ? "\n  " : ",\n  ");
+                first = false;
+                boolean total = phase == Phase.TOTAL;
+                json.append(Json.object("operation", operation.name(),
+                        "phase", phase.name(),
+                        "count", count,
+                        "meanMillis", millis(histogram.sum.get() / count),
+                        "p50Millis", millis(histogram.percentile(50)),
+                        "p90Millis", millis(histogram.percentile(90)),
+                        "p99Millis", millis(histogram.percentile(99)),
+                        "maxMillis", millis(histogram.max.get()),
+                        "rows", total ? ROWS.get(operation.ordinal()) : null,
+                        "errors", total ? ERRORS.get(operation.ordinal()) : null));
+            }
+        }
+        return json.append(first ? "]" : "\n]").toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    public static class SlowOperation {
+        private final Instant at;
+        private final Operation operation;
+        private final long totalNanos;
+        private final long rows;
+        private final boolean failed;
+        private final long[] phaseNanos;
+
+        SlowOperation(Instant at, Operation operation, long totalNanos, long rows, boolean failed, long[] phaseNanos) {
+            this.at = at;
+            this.operation = operation;
+            this.totalNanos = totalNanos;
+            this.rows = rows;
+            this.failed = failed;
+            this.phaseNanos = phaseNanos;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getPhaseNanos(Phase phase) {
+            return phase == Phase.TOTAL ? totalNanos : phaseNanos[phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(at).append(' ').append(operation).append(' ').append(millis(totalNanos)).append(" ms, ").append(rows).append(" rows");
+            if (failed)
+                line.append(", failed");
+            for (Phase phase : Phase.values()) {
+                if (phase != Phase.TOTAL && phaseNanos[phase.ordinal()] > 0)
+                    line.append(", ").append(phase.name().toLowerCase()).append(' ').append(millis(phaseNanos[phase.ordinal()])).append(" ms");
+            }
+            return line.toString();
+        }
+    }
+
+    // The operation in progress on one thread, reused from call to call
+    private static class Span {
+        Operation operation;
+        long start;
+        int depth;
+        final long[] phaseNanos = new long[Phase.values().length];
+
+        void reset(Operation operation, long start) {
+            this.operation = operation;
+            this.start = start;
+            Arrays.fill(phaseNanos, 0);
+        }
+    }
+
+    // Log-linear buckets: four per power of two, so any recorded value is within 25% of its
+    // bucket's bounds. Covers every non-negative long in 256 buckets.
+    static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            buckets.incrementAndGet(index(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            long seen;
+            while (nanos > (seen = max.get()) && !max.compareAndSet(seen, nanos)) {
+                // lost a race with another recorder; re-read and try again
+            }
+        }
+
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i)
+                buckets.set(i, 0);
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return (exponent - 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + 1;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 2);
+            long width = 1L << (exponent - 2);
+            return lower + width - 1 < lower ? Long.MAX_VALUE : lower + width - 1;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.PreparedStatement;
+
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection conn;
+    private final StatementCache statementCache;
+    private volatile long lastUsed;
+    private boolean broken = false;
+    private boolean released = false;
+
+    PooledConnection(ConnectionPool pool, Connection conn, StatementCache statementCache) {
+        this.pool = pool;
+        this.conn = conn;
+        this.statementCache = statementCache;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public Connection connection() {
+        return conn;
+    }
+
+    // Returns a statement owned by this connection's cache; do not close it
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statementCache.prepare(sql);
+        pstmt.setQueryTimeout(pool.getQueryTimeoutSeconds());
+        return pstmt;
+    }
+
+    // Closes the connection on release instead of returning it to the pool
+    public void invalidate() {
+        broken = true;
+    }
+
+    public void rollbackQuietly() {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            broken = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (released)
+            return;
+        released = true;
+        pool.release(this);
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void markUsed() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    void checkOut() {
+        markUsed();
+        released = false;
+    }
+
+    void closeQuietly() {
+        statementCache.close();
+        try {
+            conn.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
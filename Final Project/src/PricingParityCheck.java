@@ -0,0 +1,172 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Prices every room over a spread of stays with both StayPricing and the SQL expression it
+// replaced (DatabaseHandler.verifyPricingParity) and reports every stay where they differ.
+// The stays cover each start and end day of the week, single nights, month and year
+// boundaries including a leap day, and long stays. Run against any database with rooms:
+//
+//   java PricingParityCheck --url jdbc:mysql://localhost/ --user root --password secret [--verbose]
+//
+// Without a database, --offline checks StayPricing against the same stays plus random ones,
+// inside and outside its calendar table, priced by summing each night's multiplier in
+// BigDecimal and rounding the total to cents:
+//
+//   java PricingParityCheck --offline [--stays 200000] [--seed 1] [--verbose]
+//
+// Exits with status 1 if any stay is priced differently.
+public class PricingParityCheck {
+
+    private static final int[] LONG_STAYS = {14, 28, 30, 31, 59, 90, 180, 365, 366};
+    private static final int DEFAULT_RANDOM_STAYS = 200_000;
+    // Random stays start up to this many years either side of today, past the calendar table
+    private static final int RANDOM_YEARS_EACH_WAY = 15;
+    private static final int MAX_RANDOM_NIGHTS = 400;
+    private static final double[] FIXED_PRICES = {0.01, 75, 99.99, 150, 175.5, 250.25, 1234.567};
+
+    public static void main(String[] args) {
+        String url = null;
+        String user = null;
+        String password = null;
+        boolean verbose = false;
+        boolean offline = false;
+        int randomStays = DEFAULT_RANDOM_STAYS;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--url" -> url = args[++i];
+                case "--user" -> user = args[++i];
+                case "--password" -> password = args[++i];
+                case "--verbose" -> verbose = true;
+                case "--offline" -> offline = true;
+                case "--stays" -> randomStays = Integer.parseInt(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+        if (offline) {
+            List<String> mismatches = checkOffline(randomStays, seed, verbose);
+            for (String mismatch : mismatches)
+                System.out.println("MISMATCH " + mismatch);
+            System.out.println(mismatches.isEmpty() ? "StayPricing matches the per-night sum (seed " + seed + ")" : mismatches.size() + " price(s) differ (seed " + seed + ")");
+            System.exit(mismatches.isEmpty() ? 0 : 1);
+        }
+        if (url == null) {
+            System.err.println("Usage: PricingParityCheck --url <jdbc url> [--user <user>] [--password <password>] [--verbose]");
+            System.err.println("       PricingParityCheck --offline [--stays <count>] [--seed <seed>] [--verbose]");
+            System.exit(2);
+        }
+
+        List<LocalDate[]> stays = stays(LocalDate.now());
+        LocalDate[] checkIns = new LocalDate[stays.size()];
+        LocalDate[] checkOuts = new LocalDate[stays.size()];
+        for (int i = 0; i < checkIns.length; ++i) {
+            checkIns[i] = stays.get(i)[0];
+            checkOuts[i] = stays.get(i)[1];
+            if (verbose)
+                System.out.println("Stay " + checkIns[i] + ".." + checkOuts[i]);
+        }
+
+        try (DatabaseHandler dbHandler = new DatabaseHandler(url, user, password)) {
+            List<String> mismatches = dbHandler.verifyPricingParity(checkIns, checkOuts);
+            for (String mismatch : mismatches)
+                System.out.println("MISMATCH " + mismatch);
+            System.out.println(mismatches.isEmpty() ? "StayPricing matches SQL over " + stays.size() + " stays" : mismatches.size() + " price(s) differ");
+            System.exit(mismatches.isEmpty() ? 0 : 1);
+        } catch (SQLException e) {
+            System.err.println("SQLException: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    // The fixed stays at a few prices, then randomStays random stays at random prices, some
+    // with fractions of a cent
+    static List<String> checkOffline(int randomStays, long seed, boolean verbose) {
+        List<String> mismatches = new ArrayList<>();
+        LocalDate today = LocalDate.now();
+        for (LocalDate[] stay : stays(today)) {
+            for (double basePrice : FIXED_PRICES)
+                compare(basePrice, stay[0], stay[1], mismatches);
+        }
+        Random random = new Random(seed);
+        int span = 2 * RANDOM_YEARS_EACH_WAY * 366;
+        LocalDate first = today.minusYears(RANDOM_YEARS_EACH_WAY);
+        for (int i = 0; i < randomStays; ++i) {
+            LocalDate checkIn = first.plusDays(random.nextInt(span));
+            LocalDate checkOut = checkIn.plusDays(1 + random.nextInt(MAX_RANDOM_NIGHTS));
+            double basePrice = random.nextInt(4) == 0 ? (1 + random.nextInt(1_000_000)) / 1000.0 : (1 + random.nextInt(100_000)) / 100.0;
+            if (verbose)
+                System.out.println("Stay " + checkIn + ".." + checkOut + " at " + basePrice);
+            compare(basePrice, checkIn, checkOut, mismatches);
+        }
+        return mismatches;
+    }
+
+    private static void compare(double basePrice, LocalDate checkIn, LocalDate checkOut, List<String> mismatches) {
+        double expected = perNightCost(basePrice, checkIn, checkOut);
+        double actual = StayPricing.cost(basePrice, checkIn, checkOut);
+        if (expected != actual)
+            mismatches.add(basePrice + " " + checkIn + ".." + checkOut + ": per night " + expected + ", StayPricing " + actual);
+    }
+
+    // 1.0 x basePrice for a weekday night, 1.1 x for a Saturday or Sunday night, summed
+    // exactly and rounded half up to cents
+    static double perNightCost(double basePrice, LocalDate checkIn, LocalDate checkOut) {
+        BigDecimal base = BigDecimal.valueOf(basePrice);
+        BigDecimal weekend = base.multiply(new BigDecimal("1.1"));
+        BigDecimal total = BigDecimal.ZERO;
+        for (LocalDate night = checkIn; night.isBefore(checkOut); night = night.plusDays(1)) {
+            DayOfWeek day = night.getDayOfWeek();
+            total = total.add(day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY ? weekend : base);
+        }
+        return total.setScale(2, RoundingMode.HALF_UP).doubleValue();
+    }
+
+    static List<LocalDate[]> stays(LocalDate today) {
+        List<LocalDate[]> stays = new ArrayList<>();
+
+        // Every start day of the week with 1 to 15 nights, so every pair of start and end
+        // weekdays appears, including Saturday and Sunday on both ends
+        LocalDate monday = today.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        for (int day = 0; day < 7; ++day) {
+            for (int nights = 1; nights <= 15; ++nights)
+                add(stays, monday.plusDays(day), nights);
+        }
+
+        // Stays starting, ending or straddling the first of every month, across two year ends
+        // and a leap day
+        for (int year : new int[] {2024, today.getYear(), today.getYear() + 1}) {
+            for (Month month : Month.values()) {
+                LocalDate first = LocalDate.of(year, month, 1);
+                add(stays, first, 1);
+                add(stays, first.minusDays(1), 1);
+                add(stays, first.minusDays(1), 2);
+                add(stays, first.minusDays(3), 7);
+            }
+        }
+        add(stays, LocalDate.of(2024, 2, 28), 2);
+        add(stays, LocalDate.of(2024, 2, 29), 1);
+
+        for (int nights : LONG_STAYS) {
+            add(stays, today, nights);
+            add(stays, LocalDate.of(2024, 1, 1), nights);
+            add(stays, LocalDate.of(today.getYear(), 12, 20), nights);
+        }
+        return stays;
+    }
+
+    private static void add(List<LocalDate[]> stays, LocalDate checkIn, int nights) {
+        stays.add(new LocalDate[] {checkIn, checkIn.plusDays(nights)});
+    }
+}
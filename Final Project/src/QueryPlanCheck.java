@@ -0,0 +1,163 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// Runs EXPLAIN on every statement the application sends, with representative parameters, and
+// reports each one whose plan reads a whole table (access type ALL) that the statement isn't
+// declared to scan. Meant to be run against a local database after InnSchema.migrate, e.g.
+// after loading SyntheticInn data so the optimizer sees realistic table sizes:
+//
+//   java QueryPlanCheck --url jdbc:mysql://localhost/ --user root --password secret [--migrate] [--verbose]
+//
+// Exits with status 1 if any statement falls back to a full scan. It has not yet been run
+// against a MySQL server, so neither InnSchema's indexes nor the expected full scans listed
+// below have been confirmed by a real plan.
+public class QueryPlanCheck {
+
+    @FunctionalInterface
+    interface Binder {
+        void bind(PreparedStatement pstmt) throws SQLException;
+    }
+
+    static class Query {
+        final String name;
+        final String sql;
+        final Binder binder;
+        final Set<String> fullScans;
+
+        // fullScans lists the tables (by the name or alias EXPLAIN reports) this statement is
+        // expected to read in full
+        Query(String name, String sql, Binder binder, String... fullScans) {
+            this.name = name;
+            this.sql = sql;
+            this.binder = binder;
+            this.fullScans = Set.of(fullScans);
+        }
+    }
+
+    static Binder params(Object... values) {
+        return pstmt -> {
+            for (int i = 0; i < values.length; ++i)
+                pstmt.setObject(i + 1, values[i]);
+        };
+    }
+
+    public static void main(String[] args) {
+        String url = null;
+        String user = null;
+        String password = null;
+        boolean migrate = false;
+        boolean verbose = false;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--url" -> url = args[++i];
+                case "--user" -> user = args[++i];
+                case "--password" -> password = args[++i];
+                case "--migrate" -> migrate = true;
+                case "--verbose" -> verbose = true;
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+        if (url == null) {
+            System.err.println("Usage: QueryPlanCheck --url <jdbc url> [--user <user>] [--password <password>] [--migrate] [--verbose]");
+            System.exit(2);
+        }
+
+        try (ConnectionPool pool = new ConnectionPool(url, user, password)) {
+            if (migrate) {
+                for (String applied : InnSchema.migrate(pool))
+                    System.out.println("Applied migration " + applied);
+            }
+            List<String> problems = check(pool, verbose ? System.out : null);
+            for (String problem : problems)
+                System.out.println("FULL SCAN " + problem);
+            System.out.println(problems.isEmpty() ? "All query plans use indexes" : problems.size() + " statement(s) fall back to a full scan");
+            System.exit(problems.isEmpty() ? 0 : 1);
+        } catch (SQLException e) {
+            System.err.println("SQLException: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    // Returns one line per unexpected full scan; empty means every plan uses an index.
+    // With a log, every plan row is printed as it is checked.
+    public static List<String> check(ConnectionPool pool, PrintStream log) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                if (InnSchema.getVersion(conn) < InnSchema.getLatestVersion())
+                    problems.add("schema is at version " + InnSchema.getVersion(conn) + " of " + InnSchema.getLatestVersion() + "; run with --migrate");
+
+                String room = "";
+                int code = 0;
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT (SELECT MIN(RoomCode) FROM gholland.lab7_rooms) room, (SELECT MAX(CODE) FROM gholland.lab7_reservations) code")) {
+                    if (rs.next()) {
+                        room = rs.getString("room");
+                        code = rs.getInt("code");
+                    }
+                }
+
+                for (Query query : queries(room, code, LocalDate.now())) {
+                    try (PreparedStatement pstmt = conn.prepareStatement("EXPLAIN " + query.sql)) {
+                        query.binder.bind(pstmt);
+                        try (ResultSet rs = pstmt.executeQuery()) {
+                            while (rs.next()) {
+                                String table = rs.getString("table");
+                                String type = rs.getString("type");
+                                if (log != null)
+                                    log.println(query.name + ": " + table + " " + type + " key=" + rs.getString("key") + " rows=" + rs.getString("rows"));
+                                // <derivedN>, <subqueryN> and <unionN> are materialized results, not tables
+                                if ("ALL".equals(type) && table != null && !table.startsWith("<") && !query.fullScans.contains(table))
+                                    problems.add(query.name + ": " + table + " (about " + rs.getString("rows") + " rows)");
+                            }
+                        }
+                    }
+                }
+            } finally {
+                // EXPLAIN never writes, but FOR UPDATE and UPDATE statements were handed to it
+                conn.rollback();
+            }
+        }
+        return problems;
+    }
+
+    static List<Query> queries(String room, int code, LocalDate today) {
+        List<Query> queries = new ArrayList<>(DatabaseHandler.plannedQueries(room, code, today));
+        queries.add(new Query("Code allocator advance", ReservationCodeAllocator.ADVANCE_SQL,
+                params(ReservationCodeAllocator.DEFAULT_BLOCK_SIZE, ReservationCodeAllocator.SEQUENCE_NAME)));
+        queries.add(new Query("Code allocator seed", ReservationCodeAllocator.SEED_SQL,
+                params(ReservationCodeAllocator.SEQUENCE_NAME)));
+
+        // One search per kind of filter the desk and the booking service can send. lab7_rooms
+        // may be read in full to join against, as the optimizer sees fit for so small a table.
+        String checkIn = today.toString();
+        queries.add(search("Search, first page", new ReservationSearch()));
+        queries.add(search("Search, next page", new ReservationSearch().after(checkIn, Integer.toString(code))));
+        queries.add(search("Search by last name", new ReservationSearch().lastName("SMITH")));
+        queries.add(search("Search by last name prefix", new ReservationSearch().lastName("SM%")));
+        queries.add(search("Search by full name", new ReservationSearch().lastName("SMITH").firstName("EMILY")));
+        queries.add(search("Search by first name", new ReservationSearch().firstName("EMILY")));
+        queries.add(search("Search by check-in", new ReservationSearch().checkIn(checkIn)));
+        queries.add(search("Search by checkout", new ReservationSearch().checkout(checkIn)));
+        queries.add(search("Search by room", new ReservationSearch().roomCode(room)));
+        queries.add(search("Search by code", new ReservationSearch().reservationCode(Integer.toString(code))));
+        queries.add(search("Search by guest codes", new ReservationSearch().codes(code, code - 1, code - 2)));
+        return queries;
+    }
+
+    private static Query search(String name, ReservationSearch search) {
+        return new Query(name, search.toSql(), search::bind, "rooms");
+    }
+}
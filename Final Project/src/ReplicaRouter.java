@@ -0,0 +1,166 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Picks the connection a read-only report runs on: a read replica when one is known to be
+// fresh enough, the primary otherwise. Freshness is measured without trusting any clock or
+// needing replication privileges: every probe interval the router bumps its own counter row in
+// lab7_heartbeat on the primary, remembering when each value was written, then reads the row
+// back from each replica. A replica showing value n has applied every commit that finished
+// before n was written, so that moment bounds how stale it can be.
+//
+// A replica is used only if that bound is within maxStalenessMillis and it has caught up with
+// the last write made through this handler (read-your-writes); otherwise the read goes to the
+// primary. Two databases that don't replicate to each other never see each other's heartbeat,
+// so every read simply stays on the primary.
+public class ReplicaRouter implements AutoCloseable {
+
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 5_000;
+    private static final int REMEMBERED_BEATS = 1024;
+
+    private static final String BEAT_SQL = "INSERT INTO gholland.lab7_heartbeat (Source, Beat) VALUES (?, ?) ON DUPLICATE KEY UPDATE Beat = VALUES(Beat)";
+    private static final String READ_BEAT_SQL = "SELECT Beat FROM gholland.lab7_heartbeat WHERE Source = ?";
+    private static final String REMOVE_BEAT_SQL = "DELETE FROM gholland.lab7_heartbeat WHERE Source = ?";
+
+    private final ConnectionPool primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxStalenessNanos;
+    private final String source = UUID.randomUUID().toString();
+    // Heartbeat value -> System.nanoTime() just before it was written
+    private final ConcurrentSkipListMap<Long, Long> beats = new ConcurrentSkipListMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService prober;
+    private long beat = 0;
+    private volatile long lastWriteNanos = Long.MIN_VALUE;
+
+    private static class Replica {
+        final ConnectionPool pool;
+        // nanoTime before which every primary commit is known to be on this replica
+        volatile long caughtUpTo = Long.MIN_VALUE;
+
+        Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    // The probe interval is a quarter of the staleness tolerance, so a healthy replica always
+    // has a recent enough heartbeat to qualify
+    public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas, long maxStalenessMillis) {
+        if (replicas.isEmpty())
+            throw new IllegalArgumentException("At least one replica is required");
+        if (maxStalenessMillis < 4)
+            throw new IllegalArgumentException("Staleness tolerance must be at least 4ms");
+        this.primary = primary;
+        for (ConnectionPool pool : replicas)
+            this.replicas.add(new Replica(pool));
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+
+        prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replica-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = maxStalenessMillis / 4;
+        prober.scheduleWithFixedDelay(this::probe, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Called after every commit made through the handler
+    public void recordWrite() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+    // A connection from the first fresh replica in round-robin order, or from the primary if
+    // none is fresh or reachable
+    public PooledConnection acquireForRead() throws SQLException {
+        long now = System.nanoTime();
+        long required = Math.max(lastWriteNanos, now - maxStalenessNanos);
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); ++i) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.caughtUpTo == Long.MIN_VALUE || replica.caughtUpTo < required)
+                continue;
+            try {
+                return replica.pool.acquire();
+            } catch (SQLException e) {
+                replica.caughtUpTo = Long.MIN_VALUE;
+            }
+        }
+        return primary.acquire();
+    }
+
+    // How many replicas would take a read right now, ignoring read-your-writes
+    public int getFreshReplicaCount() {
+        long required = System.nanoTime() - maxStalenessNanos;
+        int fresh = 0;
+        for (Replica replica : replicas) {
+            if (replica.caughtUpTo != Long.MIN_VALUE && replica.caughtUpTo >= required)
+                ++fresh;
+        }
+        return fresh;
+    }
+
+    private void probe() {
+        // Check the replicas before writing the next beat, which they can't have yet anyway
+        for (Replica replica : replicas) {
+            try (PooledConnection pc = replica.pool.acquire()) {
+                PreparedStatement pstmt = pc.prepare(READ_BEAT_SQL);
+                pstmt.setString(1, source);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    Long written = rs.next() ? beats.get(rs.getLong("Beat")) : null;
+                    replica.caughtUpTo = written == null ? Long.MIN_VALUE : written;
+                }
+            } catch (SQLException e) {
+                replica.caughtUpTo = Long.MIN_VALUE;
+            }
+        }
+
+        try (PooledConnection pc = primary.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                long writtenAt = System.nanoTime();
+                PreparedStatement pstmt = pc.prepare(BEAT_SQL);
+                pstmt.setString(1, source);
+                pstmt.setLong(2, ++beat);
+                beats.put(beat, writtenAt);
+                pstmt.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            // Replicas age out on their own if the primary can't be reached
+        }
+        while (beats.size() > REMEMBERED_BEATS)
+            beats.pollFirstEntry();
+    }
+
+    @Override
+    public void close() {
+        prober.shutdownNow();
+        try {
+            prober.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (PooledConnection pc = primary.acquire()) {
+            PreparedStatement pstmt = pc.prepare(REMOVE_BEAT_SQL);
+            pstmt.setString(1, source);
+            pstmt.executeUpdate();
+            pc.connection().commit();
+        } catch (SQLException e) {
+            // A leftover heartbeat row is harmless
+        }
+        for (Replica replica : replicas)
+            replica.pool.close();
+    }
+}
@@ -0,0 +1,80 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+public class Reservation {
+
+    private final int code;
+    private final String room;
+    private final LocalDate checkIn;
+    private final LocalDate checkout;
+    private final double rate;
+    private final String lastName;
+    private final String firstName;
+    private final int adults;
+    private final int kids;
+
+    public Reservation(int code, String room, LocalDate checkIn, LocalDate checkout, double rate, String lastName, String firstName, int adults, int kids) {
+        this.code = code;
+        this.room = room;
+        this.checkIn = checkIn;
+        this.checkout = checkout;
+        this.rate = rate;
+        this.lastName = lastName;
+        this.firstName = firstName;
+        this.adults = adults;
+        this.kids = kids;
+    }
+
+    public static Reservation from(ResultSet rs) throws SQLException {
+        return new Reservation(rs.getInt("CODE"),
+                rs.getString("Room"),
+                rs.getDate("CheckIn").toLocalDate(),
+                rs.getDate("Checkout").toLocalDate(),
+                rs.getDouble("Rate"),
+                rs.getString("LastName"),
+                rs.getString("FirstName"),
+                rs.getInt("Adults"),
+                rs.getInt("Kids"));
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public LocalDate getCheckIn() {
+        return checkIn;
+    }
+
+    public LocalDate getCheckout() {
+        return checkout;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public int getAdults() {
+        return adults;
+    }
+
+    public int getKids() {
+        return kids;
+    }
+
+    public boolean overlaps(LocalDate from, LocalDate to) {
+        return checkIn.isBefore(to) && checkout.isAfter(from);
+    }
+}
@@ -0,0 +1,144 @@
+import java.time.LocalDate;
+
+// Any set of field changes to one reservation, applied by DatabaseHandler.changeReservation
+// in a single transaction. Fields left unset keep their current values. Passing the
+// reservation as it was read to expect() turns the change into a compare-and-set: if anyone
+// else has changed the row since, nothing is written and the result is STALE.
+public class ReservationChange {
+
+    public enum Status { CHANGED, NOT_FOUND, STALE, CONFLICTING, INVALID }
+
+    public static class Result {
+        private final Status status;
+        private final Reservation reservation;
+        private final String message;
+
+        Result(Status status, Reservation reservation, String message) {
+            this.status = status;
+            this.reservation = reservation;
+            this.message = message;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        // The reservation after the change, or as it currently stands if nothing was written
+        public Reservation getReservation() {
+            return reservation;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final int code;
+    private String firstName;
+    private String lastName;
+    private LocalDate checkIn;
+    private LocalDate checkout;
+    private Integer kids;
+    private Integer adults;
+    private Reservation expected;
+
+    public ReservationChange(int code) {
+        this.code = code;
+    }
+
+    // Builds a change from desk input, where a blank value leaves the field as it is
+    public static ReservationChange of(String code, String firstName, String lastName, String beginDate, String endDate, String numChildren, String numAdults) {
+        ReservationChange change = new ReservationChange(Integer.parseInt(code.trim()));
+        if (!firstName.isBlank())
+            change.firstName(firstName);
+        if (!lastName.isBlank())
+            change.lastName(lastName);
+        if (!beginDate.isBlank())
+            change.checkIn(LocalDate.parse(beginDate.trim()));
+        if (!endDate.isBlank())
+            change.checkout(LocalDate.parse(endDate.trim()));
+        if (!numChildren.isBlank())
+            change.kids(Integer.parseInt(numChildren.trim()));
+        if (!numAdults.isBlank())
+            change.adults(Integer.parseInt(numAdults.trim()));
+        return change;
+    }
+
+    public ReservationChange firstName(String firstName) {
+        this.firstName = firstName;
+        return this;
+    }
+
+    public ReservationChange lastName(String lastName) {
+        this.lastName = lastName;
+        return this;
+    }
+
+    public ReservationChange checkIn(LocalDate checkIn) {
+        this.checkIn = checkIn;
+        return this;
+    }
+
+    public ReservationChange checkout(LocalDate checkout) {
+        this.checkout = checkout;
+        return this;
+    }
+
+    public ReservationChange kids(int kids) {
+        this.kids = kids;
+        return this;
+    }
+
+    public ReservationChange adults(int adults) {
+        this.adults = adults;
+        return this;
+    }
+
+    public ReservationChange expect(Reservation expected) {
+        if (expected != null && expected.getCode() != code)
+            throw new IllegalArgumentException("Expected reservation " + expected.getCode() + " does not match change to " + code);
+        this.expected = expected;
+        return this;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isEmpty() {
+        return firstName == null && lastName == null && checkIn == null && checkout == null && kids == null && adults == null;
+    }
+
+    boolean changesDates() {
+        return checkIn != null || checkout != null;
+    }
+
+    // True if the row still matches what the caller read, or if no snapshot was given
+    boolean isCurrent(Reservation current) {
+        return expected == null || sameRow(expected, current);
+    }
+
+    Reservation applyTo(Reservation current) {
+        return new Reservation(current.getCode(),
+                current.getRoom(),
+                checkIn != null ? checkIn : current.getCheckIn(),
+                checkout != null ? checkout : current.getCheckout(),
+                current.getRate(),
+                lastName != null ? lastName : current.getLastName(),
+                firstName != null ? firstName : current.getFirstName(),
+                adults != null ? adults : current.getAdults(),
+                kids != null ? kids : current.getKids());
+    }
+
+    private static boolean sameRow(Reservation a, Reservation b) {
+        return a.getCode() == b.getCode()
+                && a.getRoom().equals(b.getRoom())
+                && a.getCheckIn().equals(b.getCheckIn())
+                && a.getCheckout().equals(b.getCheckout())
+                && Double.compare(a.getRate(), b.getRate()) == 0
+                && a.getLastName().equals(b.getLastName())
+                && a.getFirstName().equals(b.getFirstName())
+                && a.getAdults() == b.getAdults()
+                && a.getKids() == b.getKids();
+    }
+}
@@ -0,0 +1,108 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Hands out reservation codes from blocks reserved in lab7_code_blocks (hi/lo allocation).
+// Only the block's high-water mark is persisted, in its own short transaction, so a booking
+// never queries MAX(CODE) and concurrent bookings, in this process or another one using the
+// same table, never see the same code. Codes of a block that is not used up, or of a booking
+// that rolls back, are simply skipped.
+public class ReservationCodeAllocator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 50;
+    static final String SEQUENCE_NAME = "reservations";
+    static final String ADVANCE_SQL = "UPDATE gholland.lab7_code_blocks SET HighWater = LAST_INSERT_ID(HighWater + ?) WHERE Name = ?";
+    static final String SEED_SQL = "INSERT IGNORE INTO gholland.lab7_code_blocks (Name, HighWater) SELECT ?, IFNULL(MAX(CODE), 0) + 1 FROM gholland.lab7_reservations";
+
+    private final ConnectionPool pool;
+    private final int blockSize;
+    private final AtomicReference<Block> current = new AtomicReference<>(new Block(0, 0));
+    private final Object refillLock = new Object();
+    private volatile boolean tableReady = false;
+
+    public ReservationCodeAllocator(ConnectionPool pool) {
+        this(pool, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ReservationCodeAllocator(ConnectionPool pool, int blockSize) {
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be at least 1");
+        this.pool = pool;
+        this.blockSize = blockSize;
+    }
+
+    public int next() throws SQLException {
+        while (true) {
+            Block block = current.get();
+            int code = block.next.getAndIncrement();
+            if (code < block.high)
+                return code;
+            synchronized (refillLock) {
+                // Another thread may have refilled while we waited
+                if (current.get() == block)
+                    current.set(reserveBlock());
+            }
+        }
+    }
+
+    private Block reserveBlock() throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                if (!tableReady)
+                    createTable(pc);
+                int high = advanceHighWater(pc);
+                if (high < 0) {
+                    seed(pc);
+                    high = advanceHighWater(pc);
+                }
+                conn.commit();
+                return new Block(high - blockSize, high);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    // LAST_INSERT_ID(expr) remembers the new value for this connection, so the update and
+    // the read-back cannot interleave with another allocator's update
+    private int advanceHighWater(PooledConnection pc) throws SQLException {
+        PreparedStatement pstmt = pc.prepare(ADVANCE_SQL);
+        pstmt.setInt(1, blockSize);
+        pstmt.setString(2, SEQUENCE_NAME);
+        if (pstmt.executeUpdate() == 0)
+            return -1;
+
+        String sql = "SELECT LAST_INSERT_ID() highWater";
+        try (ResultSet rs = pc.prepare(sql).executeQuery()) {
+            rs.next();
+            return rs.getInt("highWater");
+        }
+    }
+
+    // First use against this database: continue after the codes that already exist
+    private void seed(PooledConnection pc) throws SQLException {
+        PreparedStatement pstmt = pc.prepare(SEED_SQL);
+        pstmt.setString(1, SEQUENCE_NAME);
+        pstmt.executeUpdate();
+    }
+
+    private void createTable(PooledConnection pc) throws SQLException {
+        pc.prepare(InnSchema.CODE_BLOCKS_DDL).executeUpdate();
+        tableReady = true;
+    }
+
+    private static class Block {
+        final AtomicInteger next;
+        final int high;
+
+        Block(int low, int high) {
+            this.next = new AtomicInteger(low);
+            this.high = high;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+// Notified by DatabaseHandler after a reservation write has been committed
+public interface ReservationListener {
+
+    void reservationCreated(Reservation reservation);
+
+    void reservationChanged(Reservation before, Reservation after);
+
+    void reservationCancelled(Reservation reservation);
+}
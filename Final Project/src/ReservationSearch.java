@@ -0,0 +1,190 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Builds the reservation lookup from only the filters that were actually given, so that each
+// one can use an index: plain values become equality predicates and only values containing
+// a LIKE wildcard (% or _) become LIKE. Results are ordered by (CheckIn, CODE) and paged by
+// keyset: pass the last row of one page to after() to get the next.
+public class ReservationSearch {
+
+    public static final int DEFAULT_PAGE_SIZE = 25;
+
+    private static final String SELECT =
+            "SELECT CODE, Room, RoomName, CheckIn, Checkout, LastName, FirstName, Rate, Adults, Kids, maxOcc\n" +
+                    "FROM gholland.lab7_reservations reservations JOIN gholland.lab7_rooms rooms ON Room = RoomCode\n";
+
+    private String firstName;
+    private String lastName;
+    private String checkIn;
+    private String checkout;
+    private String roomCode;
+    private String reservationCode;
+    private int[] codes;
+    private String afterCheckIn;
+    private String afterCode;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    // Builds a search from desk input, where "Any" or a blank value means no filter
+    public static ReservationSearch of(String firstName, String lastName, String beginDate, String endDate, String roomCode, String reservationCode) {
+        return new ReservationSearch()
+                .firstName(firstName)
+                .lastName(lastName)
+                .checkIn(beginDate)
+                .checkout(endDate)
+                .roomCode(roomCode)
+                .reservationCode(reservationCode);
+    }
+
+    public ReservationSearch firstName(String firstName) {
+        this.firstName = given(firstName);
+        return this;
+    }
+
+    public ReservationSearch lastName(String lastName) {
+        this.lastName = given(lastName);
+        return this;
+    }
+
+    public ReservationSearch checkIn(String checkIn) {
+        this.checkIn = given(checkIn);
+        return this;
+    }
+
+    public ReservationSearch checkout(String checkout) {
+        this.checkout = given(checkout);
+        return this;
+    }
+
+    public ReservationSearch roomCode(String roomCode) {
+        this.roomCode = given(roomCode);
+        return this;
+    }
+
+    public ReservationSearch reservationCode(String reservationCode) {
+        this.reservationCode = given(reservationCode);
+        return this;
+    }
+
+    // Only these reservations, e.g. codes a GuestNameIndex resolved from names
+    public ReservationSearch codes(int... codes) {
+        this.codes = codes.clone();
+        return this;
+    }
+
+    // 0 returns every match in one result
+    public ReservationSearch pageSize(int pageSize) {
+        if (pageSize < 0)
+            throw new IllegalArgumentException("Page size cannot be negative");
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    // Continue after the row with this check-in date and reservation code
+    public ReservationSearch after(String checkIn, String code) {
+        this.afterCheckIn = checkIn;
+        this.afterCode = code;
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    String getFirstName() {
+        return firstName;
+    }
+
+    String getLastName() {
+        return lastName;
+    }
+
+    boolean hasNamePattern() {
+        return (firstName != null && operator(firstName).equals("LIKE")) || (lastName != null && operator(lastName).equals("LIKE"));
+    }
+
+    // The same search, with the name filters replaced by the codes they matched
+    ReservationSearch withCodesForNames(int[] codes) {
+        ReservationSearch search = new ReservationSearch()
+                .checkIn(checkIn)
+                .checkout(checkout)
+                .roomCode(roomCode)
+                .reservationCode(reservationCode)
+                .codes(codes)
+                .pageSize(pageSize);
+        if (afterCheckIn != null)
+            search.after(afterCheckIn, afterCode);
+        return search;
+    }
+
+    String toSql() {
+        List<String> predicates = new ArrayList<>();
+        if (firstName != null)
+            predicates.add("FirstName " + operator(firstName) + " ?");
+        if (lastName != null)
+            predicates.add("LastName " + operator(lastName) + " ?");
+        if (checkIn != null)
+            predicates.add("CheckIn = ?");
+        if (checkout != null)
+            predicates.add("Checkout = ?");
+        if (roomCode != null)
+            predicates.add("Room " + operator(roomCode) + " ?");
+        if (reservationCode != null)
+            predicates.add("CODE " + operator(reservationCode) + " ?");
+        if (codes != null)
+            predicates.add(codes.length == 0 ? "FALSE" : "CODE IN (" + String.join(", ", Collections.nCopies(codeParameters(), "?")) + ")");
+        if (afterCheckIn != null)
+            predicates.add("(CheckIn > ? OR (CheckIn = ? AND CODE > ?))");
+
+        StringBuilder sql = new StringBuilder(SELECT);
+        if (!predicates.isEmpty())
+            sql.append("WHERE ").append(String.join("\n  AND ", predicates)).append('\n');
+        sql.append("ORDER BY CheckIn, CODE");
+        if (pageSize > 0)
+            sql.append("\nLIMIT ?");
+        return sql.toString();
+    }
+
+    void bind(PreparedStatement pstmt) throws SQLException {
+        int i = 0;
+        if (firstName != null)
+            pstmt.setString(++i, firstName);
+        if (lastName != null)
+            pstmt.setString(++i, lastName);
+        if (checkIn != null)
+            pstmt.setString(++i, checkIn);
+        if (checkout != null)
+            pstmt.setString(++i, checkout);
+        if (roomCode != null)
+            pstmt.setString(++i, roomCode);
+        if (reservationCode != null)
+            pstmt.setString(++i, reservationCode);
+        if (codes != null && codes.length > 0) {
+            for (int p = 0; p < codeParameters(); ++p)
+                pstmt.setInt(++i, codes[Math.min(p, codes.length - 1)]);
+        }
+        if (afterCheckIn != null) {
+            pstmt.setString(++i, afterCheckIn);
+            pstmt.setString(++i, afterCheckIn);
+            pstmt.setString(++i, afterCode);
+        }
+        if (pageSize > 0)
+            pstmt.setInt(++i, pageSize);
+    }
+
+    // Code lists are padded to a power of two by repeating the last code, so the statement
+    // cache sees a handful of distinct statements rather than one per list length
+    private int codeParameters() {
+        return codes.length == 1 ? 1 : Integer.highestOneBit(codes.length - 1) << 1;
+    }
+
+    private static String given(String value) {
+        return value == null || value.equals("Any") || value.equals("") ? null : value;
+    }
+
+    private static String operator(String value) {
+        return value.indexOf('%') >= 0 || value.indexOf('_') >= 0 ? "LIKE" : "=";
+    }
+}
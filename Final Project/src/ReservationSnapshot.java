@@ -0,0 +1,328 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Every reservation as parallel primitive columns (room id, check-in and checkout epoch days,
+// rate) for management reports. An aggregate is one pass over the columns, split across the
+// common fork-join pool once there are enough rows to be worth it; each leaf sums into its
+// own per-room array and the halves are added together, so no locking or boxing is involved.
+// Writes made through DatabaseHandler are applied as they commit; a cancelled row is replaced
+// by the last row so the columns stay dense.
+public class ReservationSnapshot implements ReservationListener {
+
+    public static final int POPULARITY_WINDOW_DAYS = 180;
+    private static final int LEAF_ROWS = 1 << 14;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> roomIds = new HashMap<>();
+    private final List<String> roomCodes = new ArrayList<>();
+    private final CodeIndex rowsByCode = new CodeIndex();
+    private int size = 0;
+    private int[] codes = new int[INITIAL_CAPACITY];
+    private int[] rooms = new int[INITIAL_CAPACITY];
+    private int[] checkIns = new int[INITIAL_CAPACITY];
+    private int[] checkouts = new int[INITIAL_CAPACITY];
+    private double[] rates = new double[INITIAL_CAPACITY];
+    private volatile boolean stale = false;
+
+    public ReservationSnapshot(Collection<String> roomCodes) {
+        for (String room : roomCodes)
+            roomId(room);
+    }
+
+    // Reads CODE, Room, CheckIn, Checkout and Rate from each row without building Reservations
+    public static ReservationSnapshot load(Collection<String> roomCodes, ResultSet rs) throws SQLException {
+        ReservationSnapshot snapshot = new ReservationSnapshot(roomCodes);
+        while (rs.next()) {
+            snapshot.add(rs.getInt("CODE"), rs.getString("Room"),
+                    (int) rs.getDate("CheckIn").toLocalDate().toEpochDay(),
+                    (int) rs.getDate("Checkout").toLocalDate().toEpochDay(),
+                    rs.getDouble("Rate"));
+        }
+        return snapshot;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void invalidate() {
+        stale = true;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Same figures as the revenue report: for each room with a stay touching the year, 12
+    // monthly totals in cents followed by the yearly total, nights split across months
+    public Map<String, long[]> getYear(int year) {
+        long[] bounds = new long[13];
+        for (int month = 0; month <= 12; ++month)
+            bounds[month] = LocalDate.of(year, 1, 1).plusMonths(month).toEpochDay();
+        // Per room: 12 months of cents, then how many stays touch the year
+        final int width = 13;
+
+        lock.readLock().lock();
+        try {
+            int[] rooms = this.rooms;
+            int[] checkIns = this.checkIns;
+            int[] checkouts = this.checkouts;
+            double[] rates = this.rates;
+            long[] totals = scan(width, (row, acc) -> {
+                int in = checkIns[row];
+                int out = checkouts[row];
+                // Same test as the revenue query: check-in before next year, checkout on or after January 1
+                if (in >= bounds[12] || out < bounds[0])
+                    return;
+                int base = rooms[row] * width;
+                acc[base + 12]++;
+                long rateCents = Math.round(rates[row] * 100);
+                for (int month = 0; month < 12; ++month) {
+                    long nights = Math.min(out, bounds[month + 1]) - Math.max(in, bounds[month]);
+                    if (nights > 0)
+                        acc[base + month] += nights * rateCents;
+                }
+            });
+
+            Map<String, long[]> result = new TreeMap<>();
+            for (int room = 0; room < roomCodes.size(); ++room) {
+                int base = room * width;
+                if (totals[base + 12] == 0)
+                    continue;
+                long[] row = new long[13];
+                for (int month = 0; month < 12; ++month) {
+                    row[month] = totals[base + month];
+                    row[12] += totals[base + month];
+                }
+                result.put(roomCodes.get(room), row);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Per room, over [from, to): stays overlapping the range, nights booked inside it, revenue
+    // from those nights in cents, and nights booked in the popularity window ending at 'to'
+    public Map<String, RoomStatistics> getRoomStatistics(LocalDate from, LocalDate to) {
+        long start = from.toEpochDay();
+        long end = to.toEpochDay();
+        long windowStart = end - POPULARITY_WINDOW_DAYS;
+        final int width = 4;
+
+        lock.readLock().lock();
+        try {
+            int[] rooms = this.rooms;
+            int[] checkIns = this.checkIns;
+            int[] checkouts = this.checkouts;
+            double[] rates = this.rates;
+            long[] totals = scan(width, (row, acc) -> {
+                int in = checkIns[row];
+                int out = checkouts[row];
+                int base = rooms[row] * width;
+                long nights = Math.min(out, end) - Math.max(in, start);
+                if (nights > 0) {
+                    acc[base]++;
+                    acc[base + 1] += nights;
+                    acc[base + 2] += nights * Math.round(rates[row] * 100);
+                }
+                long recent = Math.min(out, end) - Math.max(in, windowStart);
+                if (recent > 0)
+                    acc[base + 3] += recent;
+            });
+
+            Map<String, RoomStatistics> result = new TreeMap<>();
+            for (int room = 0; room < roomCodes.size(); ++room) {
+                int base = room * width;
+                result.put(roomCodes.get(room), new RoomStatistics(end - start, totals[base], totals[base + 1], totals[base + 2], totals[base + 3]));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            add(reservation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        lock.writeLock().lock();
+        try {
+            remove(before.getCode());
+            add(after);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            remove(reservation.getCode());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(Reservation reservation) {
+        add(reservation.getCode(), reservation.getRoom(), (int) reservation.getCheckIn().toEpochDay(), (int) reservation.getCheckout().toEpochDay(), reservation.getRate());
+    }
+
+    private void add(int code, String room, int checkIn, int checkout, double rate) {
+        if (size == codes.length) {
+            int capacity = size * 2;
+            codes = Arrays.copyOf(codes, capacity);
+            rooms = Arrays.copyOf(rooms, capacity);
+            checkIns = Arrays.copyOf(checkIns, capacity);
+            checkouts = Arrays.copyOf(checkouts, capacity);
+            rates = Arrays.copyOf(rates, capacity);
+        }
+        codes[size] = code;
+        rooms[size] = roomId(room);
+        checkIns[size] = checkIn;
+        checkouts[size] = checkout;
+        rates[size] = rate;
+        rowsByCode.put(code, size);
+        ++size;
+    }
+
+    private void remove(int code) {
+        int row = rowsByCode.remove(code);
+        if (row < 0)
+            return;
+        int last = --size;
+        if (row != last) {
+            codes[row] = codes[last];
+            rooms[row] = rooms[last];
+            checkIns[row] = checkIns[last];
+            checkouts[row] = checkouts[last];
+            rates[row] = rates[last];
+            rowsByCode.put(codes[row], row);
+        }
+    }
+
+    private int roomId(String room) {
+        Integer id = roomIds.get(room);
+        if (id == null) {
+            id = roomCodes.size();
+            roomIds.put(room, id);
+            roomCodes.add(room);
+        }
+        return id;
+    }
+
+    interface RowAggregator {
+        void add(int row, long[] totals);
+    }
+
+    // Caller holds the read lock; it stays held until every leaf has finished
+    private long[] scan(int width, RowAggregator aggregator) {
+        int length = width * roomCodes.size();
+        if (size <= LEAF_ROWS) {
+            long[] totals = new long[length];
+            for (int row = 0; row < size; ++row)
+                aggregator.add(row, totals);
+            return totals;
+        }
+        return ForkJoinPool.commonPool().invoke(new ScanTask(aggregator, length, 0, size));
+    }
+
+    private static class ScanTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final RowAggregator aggregator;
+        private final int length;
+        private final int from;
+        private final int to;
+
+        ScanTask(RowAggregator aggregator, int length, int from, int to) {
+            this.aggregator = aggregator;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= LEAF_ROWS) {
+                long[] totals = new long[length];
+                for (int row = from; row < to; ++row)
+                    aggregator.add(row, totals);
+                return totals;
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(aggregator, length, from, middle);
+            left.fork();
+            long[] totals = new ScanTask(aggregator, length, middle, to).compute();
+            long[] other = left.join();
+            for (int i = 0; i < length; ++i)
+                totals[i] += other[i];
+            return totals;
+        }
+    }
+
+    public static class RoomStatistics {
+        private final long days;
+        private final long stays;
+        private final long nights;
+        private final long revenueCents;
+        private final long recentNights;
+
+        RoomStatistics(long days, long stays, long nights, long revenueCents, long recentNights) {
+            this.days = days;
+            this.stays = stays;
+            this.nights = nights;
+            this.revenueCents = revenueCents;
+            this.recentNights = recentNights;
+        }
+
+        public long getStays() {
+            return stays;
+        }
+
+        public long getNights() {
+            return nights;
+        }
+
+        public long getRevenueCents() {
+            return revenueCents;
+        }
+
+        // Fraction of the range's nights that were booked
+        public double getOccupancy() {
+            return days <= 0 ? 0 : (double) nights / days;
+        }
+
+        // Booked fraction of the POPULARITY_WINDOW_DAYS nights before the end of the range,
+        // the same measure as the Popularity column of Rooms and Rates
+        public double getPopularity() {
+            return Math.round(recentNights * 100.0 / POPULARITY_WINDOW_DAYS) / 100.0;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Prints a result as a padded table while reading it forward once. Column indexes and widths
+// are resolved from the metadata up front and every cell is written through a single
+// buffered writer, so output cost and memory do not depend on how many rows come back.
+public class ResultRenderer {
+
+    // Sees each row after it has been printed, with the cursor still on it
+    @FunctionalInterface
+    public interface RowCallback {
+        void row(ResultSet rs) throws SQLException;
+    }
+
+    private static final String NO_RESULTS = "<No results>";
+
+    private final PrintWriter out;
+    private final Map<String, Integer> columnPaddings;
+    private final int numberingPadding;
+    // Time spent in rs.next() during the current render, when metrics are on
+    private long fetchNanos;
+
+    public ResultRenderer(PrintStream stream, Map<String, Integer> columnPaddings, int numberingPadding) {
+        // Wrapping the same stream keeps our output ordered with anything printed to it directly
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream)), false);
+        this.columnPaddings = columnPaddings;
+        this.numberingPadding = numberingPadding;
+    }
+
+    // Prints the title and the table, or "<No results>" under the header when there are no rows
+    public long render(ResultSet rs, String title, int defaultPadding) throws SQLException {
+        return render(rs, title, defaultPadding, null);
+    }
+
+    public long render(ResultSet rs, String title, int defaultPadding, RowCallback callback) throws SQLException {
+        long start = OperationMetrics.now();
+        fetchNanos = 0;
+        Layout layout = new Layout(rs.getMetaData(), defaultPadding, new String[0]);
+        boolean any = next(rs, start);
+        out.println(title);
+        long rows = renderRows(rs, layout, any, false, null, callback, start);
+        out.flush();
+        recordRender(start);
+        return rows;
+    }
+
+    // Prints a numbered table and returns the values of captureColumns for each row, so the
+    // caller can act on the row the user picks without a scrollable cursor. When the result is
+    // empty and printIfEmpty is false, nothing is printed and null is returned.
+    public List<String[]> renderOptions(ResultSet rs, String title, int defaultPadding, boolean printIfEmpty, String... captureColumns) throws SQLException {
+        long start = OperationMetrics.now();
+        fetchNanos = 0;
+        Layout layout = new Layout(rs.getMetaData(), defaultPadding, captureColumns);
+        boolean any = next(rs, start);
+        if (!any && !printIfEmpty)
+            return null;
+        out.println(title);
+        List<String[]> captured = new ArrayList<>();
+        renderRows(rs, layout, any, true, captured, null, start);
+        out.flush();
+        recordRender(start);
+        return captured;
+    }
+
+    private boolean next(ResultSet rs, long start) throws SQLException {
+        if (start == 0)
+            return rs.next();
+        long before = System.nanoTime();
+        boolean hasRow = rs.next();
+        fetchNanos += System.nanoTime() - before;
+        return hasRow;
+    }
+
+    // Everything since start except reading rows, which the caller already counts as FETCH
+    private void recordRender(long start) {
+        if (start != 0)
+            OperationMetrics.phase(OperationMetrics.Phase.RENDER, start + fetchNanos);
+    }
+
+    private long renderRows(ResultSet rs, Layout layout, boolean onFirstRow, boolean numbered, List<String[]> captured, RowCallback callback, long start) throws SQLException {
+        StringBuilder line = new StringBuilder();
+        if (numbered)
+            pad(line, "", numberingPadding);
+        for (int i = 0; i < layout.names.length; ++i)
+            pad(line, layout.names[i], layout.paddings[i]);
+        out.println(line);
+
+        line.setLength(0);
+        if (numbered)
+            line.append("-".repeat(numberingPadding));
+        for (int padding : layout.paddings)
+            line.append("-".repeat(padding));
+        out.println(line);
+
+        long rows = 0;
+        boolean hasRow = onFirstRow;
+        while (hasRow) {
+            ++rows;
+            line.setLength(0);
+            if (numbered)
+                pad(line, rows + ")", numberingPadding);
+            for (int i = 0; i < layout.names.length; ++i)
+                pad(line, rs.getString(i + 1), layout.paddings[i]);
+            out.println(line);
+
+            if (captured != null) {
+                String[] values = new String[layout.captureIndexes.length];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = rs.getString(layout.captureIndexes[i]);
+                captured.add(values);
+            }
+            if (callback != null)
+                callback.row(rs);
+            hasRow = next(rs, start);
+        }
+
+        if (rows == 0) {
+            if (numbered)
+                out.print(" ".repeat(numberingPadding));
+            out.println(NO_RESULTS);
+        }
+        return rows;
+    }
+
+    // Left-aligns like "%-<padding>s": never truncates, pads with spaces up to the width
+    private static void pad(StringBuilder line, String value, int padding) {
+        int start = line.length();
+        line.append(value);
+        for (int i = line.length() - start; i < padding; ++i)
+            line.append(' ');
+    }
+
+    private class Layout {
+        final String[] names;
+        final int[] paddings;
+        final int[] captureIndexes;
+
+        Layout(ResultSetMetaData rsmd, int defaultPadding, String[] captureColumns) throws SQLException {
+            int count = rsmd.getColumnCount();
+            names = new String[count];
+            paddings = new int[count];
+            for (int i = 0; i < count; ++i) {
+                names[i] = rsmd.getColumnName(i + 1);
+                Integer padding = columnPaddings.get(names[i]);
+                paddings[i] = padding == null ? defaultPadding : padding;
+            }
+            captureIndexes = new int[captureColumns.length];
+            for (int i = 0; i < captureColumns.length; ++i)
+                captureIndexes[i] = indexOf(captureColumns[i]);
+        }
+
+        private int indexOf(String column) throws SQLException {
+            for (int i = 0; i < names.length; ++i) {
+                if (names[i].equalsIgnoreCase(column))
+                    return i + 1;
+            }
+            throw new SQLException("Result has no column " + column);
+        }
+    }
+}
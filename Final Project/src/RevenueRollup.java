@@ -0,0 +1,118 @@
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Revenue per room per calendar month, kept in cents so that applying a write and later
+// undoing it leaves the totals exactly where they were. A stay's nights are split across the
+// months they fall in, the same way the revenue query clips each stay to each month.
+public class RevenueRollup implements ReservationListener {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // Room -> year -> revenue of that room in that year
+    private final Map<String, Map<Integer, YearRevenue>> revenue = new TreeMap<>();
+    private volatile boolean stale = false;
+
+    public RevenueRollup(Collection<Reservation> reservations) {
+        for (Reservation reservation : reservations)
+            apply(reservation, 1);
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void invalidate() {
+        stale = true;
+    }
+
+    // Rooms with a stay touching the year, in room order, each with 12 monthly totals in
+    // cents followed by the yearly total
+    public Map<String, long[]> getYear(int year) {
+        Map<String, long[]> result = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Map<Integer, YearRevenue>> room : revenue.entrySet()) {
+                YearRevenue yearRevenue = room.getValue().get(year);
+                if (yearRevenue == null || yearRevenue.stays == 0)
+                    continue;
+                long[] row = new long[13];
+                for (int month = 0; month < 12; ++month) {
+                    row[month] = yearRevenue.cents[month];
+                    row[12] += yearRevenue.cents[month];
+                }
+                result.put(room.getKey(), row);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            apply(reservation, 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        lock.writeLock().lock();
+        try {
+            apply(before, -1);
+            apply(after, 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        lock.writeLock().lock();
+        try {
+            apply(reservation, -1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void apply(Reservation reservation, int sign) {
+        Map<Integer, YearRevenue> years = revenue.computeIfAbsent(reservation.getRoom(), room -> new HashMap<>());
+        LocalDate checkIn = reservation.getCheckIn();
+        LocalDate checkout = reservation.getCheckout();
+        long rateCents = Math.round(reservation.getRate() * 100);
+
+        // The revenue query counts a stay in every year from its check-in year to its checkout year
+        for (int year = checkIn.getYear(); year <= checkout.getYear(); ++year)
+            years.computeIfAbsent(year, y -> new YearRevenue()).stays += sign;
+
+        for (YearMonth month = YearMonth.from(checkIn); !month.atDay(1).isAfter(checkout); month = month.plusMonths(1)) {
+            LocalDate start = max(checkIn, month.atDay(1));
+            LocalDate end = min(checkout, month.plusMonths(1).atDay(1));
+            long nights = end.toEpochDay() - start.toEpochDay();
+            if (nights > 0)
+                years.get(month.getYear()).cents[month.getMonthValue() - 1] += sign * nights * rateCents;
+        }
+    }
+
+    private static LocalDate max(LocalDate a, LocalDate b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    private static LocalDate min(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static class YearRevenue {
+        final long[] cents = new long[12];
+        int stays = 0;
+    }
+}
@@ -0,0 +1,61 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class Room {
+
+    private final String code;
+    private final String name;
+    private final int beds;
+    private final String bedType;
+    private final int maxOccupancy;
+    private final double basePrice;
+    private final String decor;
+
+    public Room(String code, String name, int beds, String bedType, int maxOccupancy, double basePrice, String decor) {
+        this.code = code;
+        this.name = name;
+        this.beds = beds;
+        this.bedType = bedType;
+        this.maxOccupancy = maxOccupancy;
+        this.basePrice = basePrice;
+        this.decor = decor;
+    }
+
+    public static Room from(ResultSet rs) throws SQLException {
+        return new Room(rs.getString("RoomCode"),
+                rs.getString("RoomName"),
+                rs.getInt("Beds"),
+                rs.getString("bedType"),
+                rs.getInt("maxOcc"),
+                rs.getDouble("basePrice"),
+                rs.getString("decor"));
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBeds() {
+        return beds;
+    }
+
+    public String getBedType() {
+        return bedType;
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    public double getBasePrice() {
+        return basePrice;
+    }
+
+    public String getDecor() {
+        return decor;
+    }
+}
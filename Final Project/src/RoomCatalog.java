@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable copy of lab7_rooms. Rooms change about as often as the inn is renovated, so
+// DatabaseHandler keeps one catalog and swaps in a freshly loaded one only on refresh,
+// letting capacity checks and room filters run without a round trip.
+public class RoomCatalog {
+
+    private final Map<String, Room> rooms;
+    private final int maxCapacity;
+    private final long loadedAt;
+
+    public RoomCatalog(Collection<Room> rooms) {
+        Map<String, Room> byCode = new LinkedHashMap<>();
+        int max = 0;
+        for (Room room : rooms) {
+            byCode.put(room.getCode(), room);
+            max = Math.max(max, room.getMaxOccupancy());
+        }
+        this.rooms = Collections.unmodifiableMap(byCode);
+        this.maxCapacity = max;
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+    public List<Room> getRooms() {
+        return List.copyOf(rooms.values());
+    }
+
+    public Room getRoom(String roomCode) {
+        return rooms.get(roomCode);
+    }
+
+    // Guests the largest room holds, 0 with no rooms
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    // Rooms holding the occupants that match the desk's room and bed preferences
+    public List<Room> matching(int occupants, String roomCode, String bedType) {
+        List<Room> matching = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (matches(room, occupants, roomCode, bedType))
+                matching.add(room);
+        }
+        return matching;
+    }
+
+    // "Any" matches every room code or bed type; otherwise case is ignored
+    static boolean matches(Room room, int occupants, String roomCode, String bedType) {
+        return occupants <= room.getMaxOccupancy()
+                && (roomCode.equals("Any") || room.getCode().equalsIgnoreCase(roomCode))
+                && (bedType.equals("Any") || room.getBedType().equalsIgnoreCase(bedType));
+    }
+}
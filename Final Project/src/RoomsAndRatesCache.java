@@ -0,0 +1,119 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.rowset.CachedRowSet;
+
+// The Rooms and Rates view only changes when a room's reservations change or the date rolls
+// over. Rows are cached per room for the current date; a committed write marks just the
+// rooms it touched, and only those are queried again on the next read.
+public class RoomsAndRatesCache implements ReservationListener {
+
+    public interface Loader {
+        // All rooms when roomCode is null, otherwise just that room
+        CachedRowSet load(String roomCode) throws SQLException;
+    }
+
+    private static final String ROOM_CODE_COLUMN = "RoomCode";
+    private static final String POPULARITY_COLUMN = "Popularity";
+
+    private final Loader loader;
+    private final Set<String> dirtyRooms = ConcurrentHashMap.newKeySet();
+    private LocalDate date = null;
+    private String[] columns;
+    private int[] types;
+    private final Map<String, Object[]> rows = new HashMap<>();
+
+    public RoomsAndRatesCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    public synchronized CachedRowSet get(LocalDate today) throws SQLException {
+        if (!today.equals(date)) {
+            dirtyRooms.clear();
+            rows.clear();
+            date = null;
+            try (CachedRowSet crs = loader.load(null)) {
+                columns = RowSets.columnNames(crs.getMetaData());
+                types = RowSets.columnTypes(crs.getMetaData());
+                readRows(crs);
+            }
+            date = today;
+        } else {
+            Iterator<String> it = dirtyRooms.iterator();
+            while (it.hasNext()) {
+                String room = it.next();
+                it.remove();
+                rows.remove(room);
+                try (CachedRowSet crs = loader.load(room)) {
+                    readRows(crs);
+                } catch (SQLException e) {
+                    dirtyRooms.add(room);
+                    throw e;
+                }
+            }
+        }
+
+        List<Object[]> sorted = new ArrayList<>(rows.values());
+        sorted.sort(byPopularity());
+        CachedRowSet result = RowSets.create(columns, types);
+        for (Object[] row : sorted)
+            RowSets.append(result, row);
+        result.beforeFirst();
+        return result;
+    }
+
+    public synchronized void invalidate() {
+        date = null;
+    }
+
+    @Override
+    public void reservationCreated(Reservation reservation) {
+        dirtyRooms.add(reservation.getRoom());
+    }
+
+    @Override
+    public void reservationChanged(Reservation before, Reservation after) {
+        dirtyRooms.add(before.getRoom());
+        dirtyRooms.add(after.getRoom());
+    }
+
+    @Override
+    public void reservationCancelled(Reservation reservation) {
+        dirtyRooms.add(reservation.getRoom());
+    }
+
+    private void readRows(CachedRowSet crs) throws SQLException {
+        int roomColumn = crs.findColumn(ROOM_CODE_COLUMN);
+        crs.beforeFirst();
+        while (crs.next()) {
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < row.length; ++i)
+                row[i] = crs.getObject(i + 1);
+            rows.put(crs.getString(roomColumn), row);
+        }
+    }
+
+    // Matches ORDER BY Popularity DESC, where rooms without a popularity (NULL) sort last
+    @SuppressWarnings("unchecked")
+    private Comparator<Object[]> byPopularity() {
+        int popularity = indexOf(POPULARITY_COLUMN);
+        int room = indexOf(ROOM_CODE_COLUMN);
+        Comparator<Object[]> comparator = Comparator.comparing(row -> (Comparable<Object>) row[popularity], Comparator.nullsFirst(Comparator.naturalOrder()));
+        return comparator.reversed().thenComparing(row -> String.valueOf(row[room]));
+    }
+
+    private int indexOf(String column) {
+        for (int i = 0; i < columns.length; ++i) {
+            if (columns[i].equalsIgnoreCase(column))
+                return i;
+        }
+        throw new IllegalStateException("Rooms and Rates query has no " + column + " column");
+    }
+}
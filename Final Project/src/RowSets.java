@@ -0,0 +1,68 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+// Builds disconnected CachedRowSets, either copied from a live ResultSet or assembled from
+// values computed in memory, so callers see the same ResultSet API either way
+public class RowSets {
+
+    private static final RowSetFactory FACTORY;
+
+    static {
+        try {
+            FACTORY = RowSetProvider.newFactory();
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private RowSets() {
+    }
+
+    public static CachedRowSet detach(ResultSet rs) throws SQLException {
+        CachedRowSet crs = FACTORY.createCachedRowSet();
+        crs.populate(rs);
+        return crs;
+    }
+
+    public static CachedRowSet create(String[] columns, int[] types) throws SQLException {
+        CachedRowSet crs = FACTORY.createCachedRowSet();
+        RowSetMetaDataImpl rsmd = new RowSetMetaDataImpl();
+        rsmd.setColumnCount(columns.length);
+        for (int i = 0; i < columns.length; ++i) {
+            rsmd.setColumnName(i + 1, columns[i]);
+            rsmd.setColumnLabel(i + 1, columns[i]);
+            rsmd.setColumnType(i + 1, types[i]);
+        }
+        crs.setMetaData(rsmd);
+        return crs;
+    }
+
+    public static String[] columnNames(ResultSetMetaData rsmd) throws SQLException {
+        String[] columns = new String[rsmd.getColumnCount()];
+        for (int i = 0; i < columns.length; ++i)
+            columns[i] = rsmd.getColumnLabel(i + 1);
+        return columns;
+    }
+
+    public static int[] columnTypes(ResultSetMetaData rsmd) throws SQLException {
+        int[] types = new int[rsmd.getColumnCount()];
+        for (int i = 0; i < types.length; ++i)
+            types[i] = rsmd.getColumnType(i + 1);
+        return types;
+    }
+
+    public static void append(CachedRowSet crs, Object... values) throws SQLException {
+        // Rows are inserted at the cursor, so keep it on the last row to preserve order
+        crs.last();
+        crs.moveToInsertRow();
+        for (int i = 0; i < values.length; ++i)
+            crs.updateObject(i + 1, values[i]);
+        crs.insertRow();
+        crs.moveToCurrentRow();
+    }
+}
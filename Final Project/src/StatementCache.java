@@ -0,0 +1,65 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-connection LRU of prepared statements keyed by their SQL text. A connection is only
+// ever used by the thread that checked it out, so no locking is needed here. Callers must
+// not close the statements they get back; they are closed on eviction or with the cache.
+// With MySQL Connector/J, add useServerPrepStmts=true to the URL so a cached statement
+// also skips the server-side parse.
+public class StatementCache implements AutoCloseable {
+
+    private final Connection conn;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    public StatementCache(Connection conn, int capacity, LongAdder hits, LongAdder misses) {
+        this.conn = conn;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity)
+                    return false;
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt != null && !pstmt.isClosed()) {
+            hits.increment();
+            pstmt.clearParameters();
+            return pstmt;
+        }
+        misses.increment();
+        pstmt = conn.prepareStatement(sql);
+        statements.put(sql, pstmt);
+        return pstmt;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement pstmt : statements.values())
+            closeQuietly(pstmt);
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement pstmt) {
+        try {
+            pstmt.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+// Prices stays with the inn's formula, as written in SQL:
+//   ROUND(basePrice * (DATEDIFF(out, in)
+//       + DATEDIFF(<Sunday on or before out>, <Sunday on or before in>) / 7 * 0.2
+//       + (DAYOFWEEK(in) = 1) * 0.1 - (DAYOFWEEK(out) = 1) * 0.1), 2)
+// Counted night by night, that is 1.0 x basePrice for a weekday night and 1.1 x for a
+// Saturday or Sunday night. The calendar table stores each day's multiplier in tenths as
+// running totals, so any stay inside the table prices in O(1) from two lookups. Stays
+// outside it use the closed form above. Amounts are computed in integer cents, so they round
+// exactly like the SQL DECIMAL math.
+public class StayPricing {
+
+    public static final int WEEKDAY_TENTHS = 10;
+    public static final int WEEKEND_TENTHS = 11;
+    private static final int DEFAULT_YEARS_EACH_WAY = 10;
+
+    private static final StayPricing DEFAULT = new StayPricing(LocalDate.now().minusYears(DEFAULT_YEARS_EACH_WAY), 2 * DEFAULT_YEARS_EACH_WAY * 366);
+
+    private final long firstDay;
+    // prefixTenths[i] is the sum of the multipliers of the nights before firstDay + i
+    private final long[] prefixTenths;
+
+    public StayPricing(LocalDate first, int days) {
+        firstDay = first.toEpochDay();
+        prefixTenths = new long[days + 1];
+        for (int i = 0; i < days; ++i)
+            prefixTenths[i + 1] = prefixTenths[i] + nightTenths(first.plusDays(i));
+    }
+
+    public static StayPricing getDefault() {
+        return DEFAULT;
+    }
+
+    public static double cost(double basePrice, LocalDate checkIn, LocalDate checkOut) {
+        return DEFAULT.price(basePrice, checkIn, checkOut);
+    }
+
+    public double price(double basePrice, LocalDate checkIn, LocalDate checkOut) {
+        return apply(basePrice, multiplierTenths(checkIn, checkOut));
+    }
+
+    // Many rooms for the same stay: the multiplier is looked up once
+    public double[] price(double[] basePrices, LocalDate checkIn, LocalDate checkOut) {
+        long tenths = multiplierTenths(checkIn, checkOut);
+        double[] costs = new double[basePrices.length];
+        for (int i = 0; i < basePrices.length; ++i)
+            costs[i] = apply(basePrices[i], tenths);
+        return costs;
+    }
+
+    // One room over many stays, e.g. every window a suggestion search considers
+    public double[] price(double basePrice, LocalDate[] checkIns, LocalDate[] checkOuts) {
+        if (checkIns.length != checkOuts.length)
+            throw new IllegalArgumentException("Every check-in needs a check-out");
+        double[] costs = new double[checkIns.length];
+        for (int i = 0; i < checkIns.length; ++i)
+            costs[i] = apply(basePrice, multiplierTenths(checkIns[i], checkOuts[i]));
+        return costs;
+    }
+
+    public long multiplierTenths(LocalDate checkIn, LocalDate checkOut) {
+        long in = checkIn.toEpochDay() - firstDay;
+        long out = checkOut.toEpochDay() - firstDay;
+        if (in >= 0 && out >= 0 && in < prefixTenths.length && out < prefixTenths.length)
+            return prefixTenths[(int) out] - prefixTenths[(int) in];
+        return closedFormTenths(checkIn, checkOut);
+    }
+
+    static long closedFormTenths(LocalDate checkIn, LocalDate checkOut) {
+        long nights = ChronoUnit.DAYS.between(checkIn, checkOut);
+        long weeks = ChronoUnit.DAYS.between(sundayOnOrBefore(checkIn), sundayOnOrBefore(checkOut)) / 7;
+        return 10 * nights + 2 * weeks + (isSunday(checkIn) ? 1 : 0) - (isSunday(checkOut) ? 1 : 0);
+    }
+
+    private static int nightTenths(LocalDate night) {
+        DayOfWeek day = night.getDayOfWeek();
+        return day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY ? WEEKEND_TENTHS : WEEKDAY_TENTHS;
+    }
+
+    // basePrice * tenths / 10, rounded half away from zero to cents
+    private static double apply(double basePrice, long tenths) {
+        double scaled = basePrice * 100;
+        long baseCents = Math.round(scaled);
+        if (Math.abs(scaled - baseCents) > 1e-6 || Math.abs(baseCents) > Integer.MAX_VALUE) {
+            return BigDecimal.valueOf(basePrice)
+                    .multiply(BigDecimal.valueOf(tenths))
+                    .movePointLeft(1)
+                    .setScale(2, RoundingMode.HALF_UP)
+                    .doubleValue();
+        }
+        long centTenths = baseCents * tenths;
+        long cents = centTenths >= 0 ? (centTenths + 5) / 10 : -((-centTenths + 5) / 10);
+        return cents / 100.0;
+    }
+
+    // MySQL DAYOFWEEK numbers Sunday as 1, java.time numbers it as 7
+    static int dayOfWeek(LocalDate date) {
+        return date.getDayOfWeek().getValue() % 7 + 1;
+    }
+
+    private static LocalDate sundayOnOrBefore(LocalDate date) {
+        return date.minusDays(dayOfWeek(date) - 1);
+    }
+
+    private static boolean isSunday(LocalDate date) {
+        return dayOfWeek(date) == 1;
+    }
+}
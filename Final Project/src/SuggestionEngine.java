@@ -0,0 +1,97 @@
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Finds alternatives when a search has no exact match: the same length of stay shifted up to
+// maxShiftDays either way, in any room big enough for the party, including rooms that don't
+// match the requested room or bed type. Every window is checked against an AvailabilityIndex
+// snapshot in parallel, so a miss costs no extra queries. Lower scores are better.
+public class SuggestionEngine {
+
+    public static final int DEFAULT_MAX_SHIFT_DAYS = 7;
+    public static final int DEFAULT_LIMIT = 5;
+
+    private static final int DAY_PENALTY = 1;
+    private static final int BED_TYPE_PENALTY = 2;
+    private static final int ROOM_PENALTY = 3;
+
+    public static class Suggestion {
+        private final Room room;
+        private final LocalDate checkIn;
+        private final LocalDate checkout;
+        private final double cost;
+        private final int score;
+
+        Suggestion(Room room, LocalDate checkIn, LocalDate checkout, double cost, int score) {
+            this.room = room;
+            this.checkIn = checkIn;
+            this.checkout = checkout;
+            this.cost = cost;
+            this.score = score;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        public LocalDate getCheckIn() {
+            return checkIn;
+        }
+
+        public LocalDate getCheckout() {
+            return checkout;
+        }
+
+        public double getCost() {
+            return cost;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    private final AvailabilityIndex index;
+
+    public SuggestionEngine(AvailabilityIndex index) {
+        this.index = index;
+    }
+
+    public List<Suggestion> suggest(String roomCode, String bedType, LocalDate checkIn, LocalDate checkOut, int occupants, int maxShiftDays, int limit) {
+        boolean anyRoom = roomCode.equals("Any");
+        boolean anyBed = bedType.equals("Any");
+        long nights = checkOut.toEpochDay() - checkIn.toEpochDay();
+        if (nights <= 0)
+            return List.of();
+
+        return IntStream.rangeClosed(-maxShiftDays, maxShiftDays)
+                .parallel()
+                .boxed()
+                .flatMap(shift -> {
+                    LocalDate from = checkIn.plusDays(shift);
+                    LocalDate to = from.plusDays(nights);
+                    if (!index.covers(from))
+                        return Stream.<Suggestion>empty();
+                    return index.getRooms().stream()
+                            .filter(room -> room.getMaxOccupancy() >= occupants)
+                            .filter(room -> index.isFree(room.getCode(), from, to))
+                            .map(room -> {
+                                int score = Math.abs(shift) * DAY_PENALTY;
+                                if (!anyRoom && !room.getCode().equalsIgnoreCase(roomCode))
+                                    score += ROOM_PENALTY;
+                                if (!anyBed && !room.getBedType().equalsIgnoreCase(bedType))
+                                    score += BED_TYPE_PENALTY;
+                                return new Suggestion(room, from, to, StayPricing.cost(room.getBasePrice(), from, to), score);
+                            });
+                })
+                .sorted(Comparator.comparingInt(Suggestion::getScore)
+                        .thenComparingDouble(Suggestion::getCost)
+                        .thenComparing(Suggestion::getCheckIn)
+                        .thenComparing(suggestion -> suggestion.getRoom().getCode()))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,172 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Random;
+
+// Fills the lab7 tables with a reproducible synthetic inn: the same seed and reservation
+// count always produce the same rooms and stays, dated relative to the day they are
+// generated. Each room gets an unbroken history of non-overlapping stays ending about a
+// fifth of the way into the future, so the data has both past revenue and upcoming
+// bookings to search. Meant for a local or embedded database; it refuses to touch tables
+// that already hold rows unless told to replace them.
+public class SyntheticInn {
+
+    public static final long DEFAULT_SEED = 365L;
+    private static final int BATCH_SIZE = 10_000;
+    private static final int RESERVATIONS_PER_ROOM = 2_000;
+    private static final int MIN_ROOMS = 10;
+    private static final int MAX_ROOMS = 5_000;
+
+    private static final String[] BED_TYPES = {"King", "Queen", "Double"};
+    private static final String[] DECORS = {"modern", "traditional", "rustic", "bohemian"};
+    private static final String[] ADJECTIVES = {"Quiet", "Sunny", "Harbor", "Garden", "Mountain", "Ocean", "Cedar", "Maple", "Willow", "Amber"};
+    private static final String[] NOUNS = {"Retreat", "Suite", "Hideaway", "Loft", "Haven", "Nook", "Chamber", "Lodge"};
+    private static final String[] FIRST_NAMES = {"EMILY", "JAMES", "MARIA", "WEI", "AISHA", "LUCAS", "SOFIA", "OMAR", "HANNAH", "DIEGO", "PRIYA", "NOAH", "YUKI", "ELENA", "KOFI", "GRACE"};
+    private static final String[] LAST_NAMES = {"SMITH", "GARCIA", "NGUYEN", "KHAN", "MULLER", "ROSSI", "TANAKA", "OKAFOR", "SILVA", "COHEN", "PATEL", "JOHNSON", "KOWALSKI", "LARSEN", "MORALES", "CHEN"};
+
+    private final long seed;
+    private final int reservations;
+    private final int rooms;
+
+    public SyntheticInn(int reservations) {
+        this(reservations, DEFAULT_SEED);
+    }
+
+    public SyntheticInn(int reservations, long seed) {
+        if (reservations < 1)
+            throw new IllegalArgumentException("At least one reservation is required");
+        this.seed = seed;
+        this.reservations = reservations;
+        this.rooms = Math.max(MIN_ROOMS, Math.min(MAX_ROOMS, reservations / RESERVATIONS_PER_ROOM));
+    }
+
+    // Accepts plain counts and the shorthands 10k, 1m and 10m
+    public static int parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        if (s.endsWith("k"))
+            return Math.multiplyExact(Integer.parseInt(s.substring(0, s.length() - 1)), 1_000);
+        if (s.endsWith("m"))
+            return Math.multiplyExact(Integer.parseInt(s.substring(0, s.length() - 1)), 1_000_000);
+        return Integer.parseInt(s);
+    }
+
+    public int getReservationCount() {
+        return reservations;
+    }
+
+    public int getRoomCount() {
+        return rooms;
+    }
+
+    static String randomLastName(Random random) {
+        return LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+    }
+
+    public static String roomCode(int room) {
+        return "R" + Integer.toString(room, 36).toUpperCase();
+    }
+
+    public void generate(ConnectionPool pool, boolean replace) throws SQLException {
+        try (PooledConnection pc = pool.acquire()) {
+            Connection conn = pc.connection();
+            try {
+                InnSchema.migrate(conn);
+                if (!isEmpty(conn)) {
+                    if (!replace)
+                        throw new SQLException("The lab7 tables already hold data; pass replace to overwrite them");
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.executeUpdate("DELETE FROM gholland.lab7_reservations");
+                        stmt.executeUpdate("DELETE FROM gholland.lab7_rooms");
+                    }
+                }
+                conn.commit();
+
+                Random random = new Random(seed);
+                double[] basePrices = new double[rooms];
+                int[] maxOccupancy = new int[rooms];
+                insertRooms(conn, random, basePrices, maxOccupancy);
+                insertReservations(conn, random, basePrices, maxOccupancy);
+
+                // Let ReservationCodeAllocator re-seed from the new MAX(CODE) on its next block
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate("DELETE FROM gholland.lab7_code_blocks");
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static boolean isEmpty(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT (SELECT COUNT(*) FROM gholland.lab7_rooms) + (SELECT COUNT(*) FROM gholland.lab7_reservations)")) {
+            return !rs.next() || rs.getLong(1) == 0;
+        }
+    }
+
+    private void insertRooms(Connection conn, Random random, double[] basePrices, int[] maxOccupancy) throws SQLException {
+        String sql = "INSERT INTO gholland.lab7_rooms (RoomCode, RoomName, Beds, bedType, maxOcc, basePrice, decor) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int room = 0; room < rooms; ++room) {
+                int beds = 1 + random.nextInt(2);
+                basePrices[room] = 75 + 25 * random.nextInt(8);
+                maxOccupancy[room] = 2 * beds;
+                pstmt.setString(1, roomCode(room));
+                pstmt.setString(2, ADJECTIVES[random.nextInt(ADJECTIVES.length)] + " " + NOUNS[random.nextInt(NOUNS.length)] + " " + room);
+                pstmt.setInt(3, beds);
+                pstmt.setString(4, BED_TYPES[random.nextInt(BED_TYPES.length)]);
+                pstmt.setInt(5, maxOccupancy[room]);
+                pstmt.setDouble(6, basePrices[room]);
+                pstmt.setString(7, DECORS[random.nextInt(DECORS.length)]);
+                pstmt.addBatch();
+                if ((room + 1) % BATCH_SIZE == 0)
+                    pstmt.executeBatch();
+            }
+            pstmt.executeBatch();
+        }
+        conn.commit();
+    }
+
+    // Stays average about four nights plus a day's gap, so each room's history spans
+    // roughly 5 days per stay; it is placed to end about 20% of the way into the future
+    private void insertReservations(Connection conn, Random random, double[] basePrices, int[] maxOccupancy) throws SQLException {
+        int perRoom = (reservations + rooms - 1) / rooms;
+        LocalDate start = LocalDate.now().minusDays(perRoom * 4L);
+        String sql = "INSERT INTO gholland.lab7_reservations (CODE, Room, CheckIn, Checkout, Rate, LastName, FirstName, Adults, Kids) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int code = 1;
+            int pending = 0;
+            for (int room = 0; room < rooms && code <= reservations; ++room) {
+                LocalDate checkIn = start.plusDays(random.nextInt(7));
+                for (int i = 0; i < perRoom && code <= reservations; ++i) {
+                    LocalDate checkout = checkIn.plusDays(1 + random.nextInt(7));
+                    int adults = 1 + random.nextInt(Math.min(2, maxOccupancy[room]));
+                    pstmt.setInt(1, code++);
+                    pstmt.setString(2, roomCode(room));
+                    pstmt.setDate(3, Date.valueOf(checkIn));
+                    pstmt.setDate(4, Date.valueOf(checkout));
+                    pstmt.setDouble(5, basePrices[room]);
+                    pstmt.setString(6, LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+                    pstmt.setString(7, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+                    pstmt.setInt(8, adults);
+                    pstmt.setInt(9, random.nextInt(maxOccupancy[room] - adults + 1));
+                    pstmt.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        pstmt.executeBatch();
+                        conn.commit();
+                        pending = 0;
+                    }
+                    checkIn = checkout.plusDays(random.nextInt(3));
+                }
+            }
+            pstmt.executeBatch();
+        }
+        conn.commit();
+    }
+}